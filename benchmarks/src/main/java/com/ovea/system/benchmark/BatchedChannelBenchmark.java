@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.benchmark;
+
+import com.ovea.system.pipe.Pipes;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies 16 MiB written in 512 byte packets to an OS pipe, from its source channel to a gathering channel discarding
+ * the bytes, through the single buffer loop of a channel pipe and through a batched pipe. One operation is one copy.
+ * The <code>writes</code> counter reports the write calls made on the destination, the <code>packets</code> counter the
+ * packets written to the OS pipe: divide them by the score to get them per copy.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchedChannelBenchmark {
+
+    private static final int SIZE = 16 * 1024 * 1024;
+    private static final int PACKET = 512;
+
+    @Param({"single", "batched"})
+    String kind;
+
+    @Param({"true", "false"})
+    boolean blocking;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Calls {
+        public long writes;
+        public long packets;
+    }
+
+    @Benchmark
+    public long copy(Calls calls) throws Exception {
+        final Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(blocking);
+        NullChannel out = new NullChannel();
+        Thread producer = new Thread("producer") {
+            @Override
+            public void run() {
+                ByteBuffer packet = ByteBuffer.allocateDirect(PACKET);
+                try {
+                    for (int i = 0; i < SIZE; i += PACKET) {
+                        packet.clear();
+                        while (packet.hasRemaining()) {
+                            pipe.sink().write(packet);
+                        }
+                    }
+                    pipe.sink().close();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        producer.start();
+        if ("single".equals(kind)) {
+            Pipes.connect("bench", pipe.source(), out, 16 * 1024).await();
+        } else {
+            Pipes.batched("bench", pipe.source(), out, 16 * 1024, 16).connect().await();
+        }
+        producer.join();
+        calls.writes += out.writes;
+        calls.packets += SIZE / PACKET;
+        return out.count;
+    }
+
+    static final class NullChannel implements GatheringByteChannel {
+
+        long count;
+        long writes;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+            count += n;
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            writes++;
+            int n = src.remaining();
+            src.position(src.limit());
+            count += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
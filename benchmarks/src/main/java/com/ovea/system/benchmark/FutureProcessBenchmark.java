@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.benchmark;
+
+import com.ovea.system.proc.FutureProcess;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of starting <code>true</code> and waiting for its exit, directly and through a {@link FutureProcess}
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FutureProcessBenchmark {
+
+    @Benchmark
+    public int process() throws Exception {
+        return new ProcessBuilder("true").start().waitFor();
+    }
+
+    @Benchmark
+    public int futureProcess() throws Exception {
+        return new FutureProcess(new ProcessBuilder("true").start()).get();
+    }
+}
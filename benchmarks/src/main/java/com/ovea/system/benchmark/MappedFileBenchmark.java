@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.benchmark;
+
+import com.ovea.system.pipe.Pipes;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies a file to another through a stream pipe reading a {@link FileInputStream}, through a pipe reading the file by
+ * memory-mapped windows and through a pipe writing the file by memory-mapped windows. One operation is one copy.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MappedFileBenchmark {
+
+    @Param({"stream", "mappedSource", "mappedSink"})
+    String kind;
+
+    @Param({"16777216", "268435456"})
+    int size;
+
+    private Path source;
+    private Path target;
+
+    @Setup
+    public void setup() throws IOException {
+        source = Files.createTempFile("bench-source-", ".bin");
+        target = Files.createTempFile("bench-target-", ".bin");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(source.toFile()), 1024 * 1024);
+        byte[] block = new byte[1024 * 1024];
+        for (int i = 0; i < size; i += block.length) {
+            block[0] = (byte) i;
+            out.write(block, 0, Math.min(block.length, size - i));
+        }
+        out.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public long copy() throws Exception {
+        if ("stream".equals(kind)) {
+            // hides the file stream so that the pipe reads it instead of using its channel
+            InputStream in = new FilterInputStream(new FileInputStream(source.toFile())) {
+            };
+            Pipes.connect("bench", in, new FileOutputStream(target.toFile()), 65536).await();
+        } else if ("mappedSource".equals(kind)) {
+            Pipes.create(source, new FileOutputStream(target.toFile())).connect().await();
+        } else {
+            Pipes.create(new FileInputStream(source.toFile()), target).connect().await();
+        }
+        return Files.size(target);
+    }
+}
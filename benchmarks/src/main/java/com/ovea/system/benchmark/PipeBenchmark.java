@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.benchmark;
+
+import com.ovea.system.pipe.PipeStages;
+import com.ovea.system.pipe.Pipes;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies 16 MiB in memory through the stream, channel and character pipes, through a stream pipe with a pass-through
+ * stage and through a stream pipe with a ring of 4 buffers. One operation is one copy.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PipeBenchmark {
+
+    private static final int SIZE = 16 * 1024 * 1024;
+
+    @Param({"stream", "staged", "ring", "channel", "character"})
+    String kind;
+
+    @Param({"1024", "8192", "65536"})
+    int bufferSize;
+
+    private byte[] bytes;
+    private char[] chars;
+
+    @Setup
+    public void setup() {
+        bytes = new byte[SIZE];
+        chars = new char[SIZE / 2];
+    }
+
+    @Benchmark
+    public long copy() throws Exception {
+        if ("stream".equals(kind)) {
+            NullOutputStream out = new NullOutputStream();
+            Pipes.connect("bench", new ByteArrayInputStream(bytes), out, bufferSize).await();
+            return out.count;
+        }
+        if ("staged".equals(kind)) {
+            NullOutputStream out = new NullOutputStream();
+            Pipes.create("bench", new ByteArrayInputStream(bytes), out, bufferSize).through(PipeStages.passThrough()).connect().await();
+            return out.count;
+        }
+        if ("ring".equals(kind)) {
+            NullOutputStream out = new NullOutputStream();
+            Pipes.create("bench", new ByteArrayInputStream(bytes), out, bufferSize, 4).connect().await();
+            return out.count;
+        }
+        if ("channel".equals(kind)) {
+            NullOutputStream out = new NullOutputStream();
+            Pipes.connect("bench", Channels.newChannel(new ByteArrayInputStream(bytes)), Channels.newChannel(out), bufferSize).await();
+            return out.count;
+        }
+        NullWriter out = new NullWriter();
+        Pipes.connect("bench", new CharArrayReader(chars), out, bufferSize).await();
+        return out.count;
+    }
+
+    static final class NullOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    static final class NullWriter extends Writer {
+
+        long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.benchmark;
+
+import com.ovea.system.pipe.Pipes;
+import com.ovea.system.proc.ProcessPipe;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs <code>head -c 64M /dev/zero | cat | ... | cat > /dev/null</code> as a {@link ProcessPipe}. The hops between
+ * processes use splice(2) when the file descriptors can be recovered: on Java 9+ pass
+ * <code>-jvmArgsAppend --add-opens=java.base/java.io=ALL-UNNAMED</code> to JMH to enable it.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessPipeBenchmark {
+
+    private static final int SIZE = 64 * 1024 * 1024;
+
+    @Param({"2", "4"})
+    int processes;
+
+    @Param({"true", "false"})
+    String splice;
+
+    @Setup
+    public void setup() {
+        // read once, when the first pipe is spliced: each parameter set runs in its own fork
+        System.setProperty("ovea.pipe.splice", splice);
+    }
+
+    @Benchmark
+    public int chain() throws Exception {
+        Process first = new ProcessBuilder("head", "-c", String.valueOf(SIZE), "/dev/zero").start();
+        Process[] others = new Process[processes - 2];
+        for (int i = 0; i < others.length; i++) {
+            others[i] = new ProcessBuilder("cat").start();
+        }
+        Process last = new ProcessBuilder("cat").redirectOutput(Redirect.to(new File("/dev/null"))).start();
+        ProcessPipe pipe = chain(first, others, last);
+        pipe.getOutputStream().close();
+        return pipe.waitFor();
+    }
+
+    private static ProcessPipe chain(Process first, Process[] others, Process last) throws IOException {
+        if (others.length == 0) {
+            return Pipes.pipe(first, last);
+        }
+        Process[] rest = new Process[others.length];
+        System.arraycopy(others, 1, rest, 0, others.length - 1);
+        rest[others.length - 1] = last;
+        return Pipes.pipe(first, others[0], rest);
+    }
+}
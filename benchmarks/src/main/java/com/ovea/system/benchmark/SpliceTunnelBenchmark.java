@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.benchmark;
+
+import com.ovea.system.tunnel.Tunnel;
+import com.ovea.system.util.LinuxIO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client streams 1 MiB per operation to a local sink server discarding the bytes, through a {@link Tunnel} copying
+ * with stream pipes or with splice(2), all over loopback sockets. The <code>cpuNanos</code> counter reports the CPU time
+ * of the whole process, client and sink included: divide it by the score to get the CPU time per MiB.
+ * <p/>
+ * The splice mode needs Linux and, on Java 9+,
+ * <code>-jvmArgsAppend "--add-opens=java.base/java.io=ALL-UNNAMED --add-opens=java.base/java.net=ALL-UNNAMED"</code>.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SpliceTunnelBenchmark {
+
+    private static final int CHUNK = 1024 * 1024;
+
+    @Param({"stream", "splice"})
+    String mode;
+
+    private ServerSocket sinkServer;
+    private ServerSocket tunnelServer;
+    private Socket client;
+    private Tunnel tunnel;
+    private OutputStream out;
+    private final byte[] chunk = new byte[CHUNK];
+    private com.sun.management.OperatingSystemMXBean os;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Cpu {
+        public long cpuNanos;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        sinkServer = new ServerSocket(0, 1, loopback);
+        tunnelServer = new ServerSocket(0, 1, loopback);
+        Thread sink = new Thread("sink") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = sinkServer.accept();
+                    InputStream in = socket.getInputStream();
+                    byte[] buffer = new byte[64 * 1024];
+                    while (in.read(buffer) != -1) {
+                    }
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        sink.setDaemon(true);
+        sink.start();
+        client = new Socket(loopback, tunnelServer.getLocalPort());
+        Socket left = tunnelServer.accept();
+        Socket right = new Socket(loopback, sinkServer.getLocalPort());
+        if ("splice".equals(mode)) {
+            if (!LinuxIO.isSupported() || LinuxIO.fd(left) < 0) {
+                throw new IllegalStateException("splice is not available: run on Linux, with --add-opens for java.io and java.net on Java 9+");
+            }
+            tunnel = Tunnel.splice(left, right);
+        } else {
+            tunnel = Tunnel.connect(left, right);
+        }
+        out = client.getOutputStream();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        tunnel.await(10, TimeUnit.SECONDS);
+        sinkServer.close();
+        tunnelServer.close();
+    }
+
+    @Benchmark
+    public byte[] transfer(Cpu cpu) throws IOException {
+        long start = os.getProcessCpuTime();
+        out.write(chunk);
+        cpu.cpuNanos += os.getProcessCpuTime() - start;
+        return chunk;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.benchmark;
+
+import com.ovea.system.tunnel.Tunnel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client talks to a local echo server through a {@link Tunnel}, all over loopback sockets.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TunnelBenchmark {
+
+    private static final int CHUNK = 32 * 1024;
+
+    private ServerSocket echoServer;
+    private ServerSocket tunnelServer;
+    private Socket client;
+    private Tunnel tunnel;
+    private OutputStream out;
+    private DataInputStream in;
+    private final byte[] chunk = new byte[CHUNK];
+
+    @Setup
+    public void setup() throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        echoServer = new ServerSocket(0, 1, loopback);
+        tunnelServer = new ServerSocket(0, 1, loopback);
+        Thread echo = new Thread("echo") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = echoServer.accept();
+                    socket.setTcpNoDelay(true);
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    byte[] buffer = new byte[CHUNK];
+                    int len;
+                    while ((len = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, len);
+                    }
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+        client = new Socket(loopback, tunnelServer.getLocalPort());
+        client.setTcpNoDelay(true);
+        Socket left = tunnelServer.accept();
+        left.setTcpNoDelay(true);
+        Socket right = new Socket(loopback, echoServer.getLocalPort());
+        right.setTcpNoDelay(true);
+        tunnel = Tunnel.connect(left, right);
+        out = client.getOutputStream();
+        in = new DataInputStream(client.getInputStream());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        tunnel.await(10, TimeUnit.SECONDS);
+        echoServer.close();
+        tunnelServer.close();
+    }
+
+    /**
+     * One byte sent and echoed back
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int roundTrip() throws IOException {
+        out.write(1);
+        return in.read();
+    }
+
+    /**
+     * 32 KiB sent and echoed back per operation
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public byte[] throughput() throws IOException {
+        out.write(chunk);
+        in.readFully(chunk);
+        return chunk;
+    }
+}
@@ -29,6 +29,29 @@ public interface Pipe {
      */
     Pipe listenedBy(PipeListener listener);
 
+    /**
+     * Set the executor running the copy of this pipe. Defaults to {@link Pipes#defaultExecutor()} when not set.
+     */
+    Pipe executedBy(PipeExecutor executor);
+
+    /**
+     * Limit the bandwidth of this pipe. Pipes given the same limiter share its budget. Must be set before connecting,
+     * the limiters can then be reconfigured at any time.
+     */
+    Pipe limitedBy(PipeRateLimiter... limiters);
+
+    /**
+     * Run the copied chunks through the given stages, in order. Must be set before connecting. Only byte streams and
+     * byte channels can be staged: other pipes throw an {@link UnsupportedOperationException}. Staged channels are
+     * copied through a buffer, without the file transfers or the reactor.
+     */
+    Pipe through(PipeStage... stages);
+
+    /**
+     * Bytes moved and time spent reading and writing, updated while the pipe copies
+     */
+    PipeMetrics metrics();
+
     /**
      * Pipe the streams and returns immediatelly the connection handle. If the connection is already made returns the existing handle.
      *
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the copy buffers used by pipes. Sizes are rounded up to a power of two between 1 KiB and 1 MiB, larger
+ * buffers are not pooled. Released buffers go to a shared lock-free free list, so that they are reused whichever thread
+ * releases them, even when it ends right after, as with thread-per-task executors and virtual threads.
+ * <p/>
+ * Direct buffers are only freed by the garbage collector, so the pool never holds more than
+ * <code>ovea.pipe.buffers.maxDirect</code> bytes of them (default 64 MiB) and hands out heap buffers beyond.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeBuffers {
+
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 20;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    private static final PipeBuffers SHARED = new PipeBuffers(
+            Long.getLong("ovea.pipe.buffers.maxDirect", 64L * 1024 * 1024),
+            Integer.getInteger("ovea.pipe.buffers.maxPooled", 256));
+
+    private final long maxDirect;
+    private final int maxPooled;
+    private final Kind<byte[]> bytes = new Kind<byte[]>();
+    private final Kind<char[]> chars = new Kind<char[]>();
+    private final Kind<ByteBuffer> directs = new Kind<ByteBuffer>();
+    private final AtomicLong directBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxDirect maximum bytes of direct buffers allocated by this pool
+     * @param maxPooled maximum buffers kept in the shared free list of each size and kind
+     */
+    public PipeBuffers(long maxDirect, int maxPooled) {
+        if (maxDirect < 0) throw new IllegalArgumentException("Invalid direct memory cap: " + maxDirect);
+        if (maxPooled < 0) throw new IllegalArgumentException("Invalid pool size: " + maxPooled);
+        this.maxDirect = maxDirect;
+        this.maxPooled = maxPooled;
+    }
+
+    public static PipeBuffers shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return a byte array of at least the given size
+     */
+    public byte[] bytes(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            misses.incrementAndGet();
+            return new byte[size];
+        }
+        byte[] buffer = take(c, bytes);
+        return buffer != null ? buffer : new byte[1 << (c + MIN_SHIFT)];
+    }
+
+    /**
+     * @return a char array of at least the given size
+     */
+    public char[] chars(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            misses.incrementAndGet();
+            return new char[size];
+        }
+        char[] buffer = take(c, chars);
+        return buffer != null ? buffer : new char[1 << (c + MIN_SHIFT)];
+    }
+
+    /**
+     * @return a cleared direct buffer of at least the given capacity, or a heap buffer if the direct memory cap is reached
+     */
+    public ByteBuffer direct(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = take(c, directs);
+        if (buffer != null) {
+            buffer.clear();
+            return buffer;
+        }
+        int capacity = 1 << (c + MIN_SHIFT);
+        if (directBytes.addAndGet(capacity) > maxDirect) {
+            directBytes.addAndGet(-capacity);
+            return ByteBuffer.allocate(capacity);
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer != null) {
+            put(exactClass(buffer.length), bytes, buffer);
+        }
+    }
+
+    public void release(char[] buffer) {
+        if (buffer != null) {
+            put(exactClass(buffer.length), chars, buffer);
+        }
+    }
+
+    /**
+     * Gives back a buffer obtained from {@link #direct(int)}. Heap buffers are left to the garbage collector.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect()) {
+            int c = exactClass(buffer.capacity());
+            if (!put(c, directs, buffer) && c >= 0) {
+                directBytes.addAndGet(-buffer.capacity());
+            }
+        }
+    }
+
+    /**
+     * Number of buffers served from the pool
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of buffers allocated because none was available
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Bytes of direct buffers allocated by this pool, in use or pooled
+     */
+    public long directBytes() {
+        return directBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PipeBuffers[hits=" + hits() + ", misses=" + misses() + ", directBytes=" + directBytes() + "]";
+    }
+
+    private <T> T take(int c, Kind<T> shared) {
+        T buffer = shared.poll(c);
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private <T> boolean put(int c, Kind<T> shared, T buffer) {
+        return c >= 0 && shared.offer(c, buffer, maxPooled);
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 0) throw new IllegalArgumentException("Invalid buffer size: " + size);
+        if (size > 1 << MAX_SHIFT) return -1;
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    private static int exactClass(int capacity) {
+        int c = capacity > 0 && Integer.bitCount(capacity) == 1 ? sizeClass(capacity) : -1;
+        return c >= 0 && 1 << (c + MIN_SHIFT) == capacity ? c : -1;
+    }
+
+    private static final class Kind<T> {
+
+        private final Queue<T>[] free;
+        private final AtomicInteger[] sizes;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Kind() {
+            free = new Queue[CLASSES];
+            sizes = new AtomicInteger[CLASSES];
+            for (int i = 0; i < CLASSES; i++) {
+                free[i] = new ConcurrentLinkedQueue<T>();
+                sizes[i] = new AtomicInteger();
+            }
+        }
+
+        T poll(int c) {
+            T buffer = free[c].poll();
+            if (buffer != null) {
+                sizes[c].decrementAndGet();
+            }
+            return buffer;
+        }
+
+        boolean offer(int c, T buffer, int max) {
+            if (sizes[c].incrementAndGet() > max) {
+                sizes[c].decrementAndGet();
+                return false;
+            }
+            free[c].offer(buffer);
+            return true;
+        }
+    }
+}
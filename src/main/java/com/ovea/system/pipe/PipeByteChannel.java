@@ -15,39 +15,469 @@
  */
 package com.ovea.system.pipe;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
+import java.nio.channels.*;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 final class PipeByteChannel extends PipeSkeleton<ReadableByteChannel, WritableByteChannel> {
 
+    /**
+     * Maximum bytes moved by one transferTo / transferFrom call, to stay responsive to interruptions
+     */
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
     private final int bufferSize;
+    private final PipeReactor reactor;
+    private final PipeSizer sizer;
+    private final int batch;
 
     public PipeByteChannel(ReadableByteChannel from, WritableByteChannel to) {
         super(from, to);
         this.bufferSize = 64 * 1024;
+        this.reactor = null;
+        this.sizer = null;
+        this.batch = 1;
     }
 
     public PipeByteChannel(String name, ReadableByteChannel from, WritableByteChannel to, int bufferSize) {
+        this(name, from, to, bufferSize, null);
+    }
+
+    /**
+     * @param reactor if not null, the copy is made by this reactor instead of a blocked thread. Both channels must be
+     *                {@link SelectableChannel}.
+     */
+    public PipeByteChannel(String name, ReadableByteChannel from, WritableByteChannel to, int bufferSize, PipeReactor reactor) {
+        this(name, from, to, bufferSize, reactor, null);
+    }
+
+    /**
+     * Creates a pipe adapting its buffer size between the given bounds. File channels are still copied by the kernel.
+     */
+    public PipeByteChannel(String name, ReadableByteChannel from, WritableByteChannel to, int minBufferSize, int maxBufferSize) {
+        this(name, from, to, minBufferSize, null, new PipeSizer(minBufferSize, maxBufferSize), 1);
+    }
+
+    /**
+     * Creates a pipe queueing up to <code>batch</code> buffers between the reads and the writes. Scattering sources
+     * fill several buffers per read, gathering destinations write them all at once, and the short reads of a
+     * non-blocking source are batched until it has nothing more to read.
+     */
+    static PipeByteChannel batched(String name, ReadableByteChannel from, WritableByteChannel to, int bufferSize, int batch) {
+        return new PipeByteChannel(name, from, to, bufferSize, null, null, batch);
+    }
+
+    private PipeByteChannel(String name, ReadableByteChannel from, WritableByteChannel to, int bufferSize, PipeReactor reactor, PipeSizer sizer) {
+        this(name, from, to, bufferSize, reactor, sizer, 1);
+    }
+
+    private PipeByteChannel(String name, ReadableByteChannel from, WritableByteChannel to, int bufferSize, PipeReactor reactor, PipeSizer sizer, int batch) {
         super(name, from, to);
+        if (reactor != null && !PipeReactor.isSelectable(from, to)) throw new IllegalArgumentException("Channels are not selectable");
+        if (batch <= 0) throw new IllegalArgumentException("Invalid batch size: " + batch);
         this.bufferSize = bufferSize;
+        this.reactor = reactor;
+        this.sizer = sizer;
+        this.batch = batch;
+    }
+
+    @Override
+    int bufferSize() {
+        return sizer == null ? bufferSize : sizer.size();
+    }
+
+    @Override
+    boolean isAsync() {
+        // the reactor threads cannot be parked by rate limiters, nor run the stages
+        return reactor != null && !isLimited() && !isStaged();
+    }
+
+    @Override
+    boolean isStageable() {
+        return true;
+    }
+
+    @Override
+    Closeable copyAsync(ReadableByteChannel from, WritableByteChannel to, CopyCallback callback) throws IOException {
+        ByteBuffer buffer = PipeBuffers.shared().direct(bufferSize);
+        try {
+            return reactor.register(from, to, buffer, counters, callback);
+        } catch (IOException e) {
+            PipeBuffers.shared().release(buffer);
+            throw e;
+        }
     }
 
+    /**
+     * The size of procfs files, FIFOs and devices is 0: they are not seekable, or not by size, and are read through a
+     * buffer
+     */
     @Override
     protected void copy(ReadableByteChannel from, WritableByteChannel to) throws IOException, BrokenPipeException {
-        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
-        while (from.read(buffer) != -1) {
+        Readiness readiness = new Readiness();
+        try {
+            if (isStaged()) {
+                copyStaged(from, to, readiness);
+            } else if (from instanceof FileChannel && ((FileChannel) from).size() > 0) {
+                transferTo((FileChannel) from, to, readiness);
+            } else if (to instanceof FileChannel && !(from instanceof FileChannel)) {
+                transferFrom(from, (FileChannel) to, readiness);
+            } else if (batch > 1) {
+                copyBatched(from, to, readiness);
+            } else {
+                copy(from, to, readiness);
+            }
+        } finally {
+            readiness.close();
+        }
+    }
+
+    /**
+     * Lets the kernel copy from the file (sendfile on Linux) up to its size, then copies what is left, if any, through a
+     * buffer: the size of a sysfs file is not its length, and files may grow
+     */
+    private void transferTo(FileChannel from, WritableByteChannel to, Readiness readiness) throws IOException {
+        long position = from.position();
+        long size = transferSize();
+        long start = System.nanoTime();
+        while (position < from.size()) {
+            long n = from.transferTo(position, size, to);
+            if (n > 0) {
+                position += n;
+                throttle(n);
+                long now = System.nanoTime();
+                counters.onWrite(now - start, n);
+                start = now;
+            } else if (to instanceof SelectableChannel && !((SelectableChannel) to).isBlocking()) {
+                // non-blocking destination is full
+                readiness.await(to, SelectionKey.OP_WRITE);
+            } else {
+                break;
+            }
+        }
+        from.position(position);
+        copy(from, to, readiness);
+    }
+
+    /**
+     * Lets the file channel read from the source. A transfer of 0 bytes either means the end of the source or that a
+     * non-blocking source has nothing to read: a buffered read tells the difference.
+     */
+    private void transferFrom(ReadableByteChannel from, FileChannel to, Readiness readiness) throws IOException {
+        ByteBuffer buffer = null;
+        long position = to.position();
+        long size = transferSize();
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                long n = to.transferFrom(from, position, size);
+                if (n > 0) {
+                    position += n;
+                    throttle(n);
+                    long now = System.nanoTime();
+                    counters.onWrite(now - start, n);
+                    start = now;
+                    continue;
+                }
+                if (buffer == null) {
+                    buffer = PipeBuffers.shared().direct(bufferSize);
+                }
+                int len = from.read(buffer);
+                if (len == -1) {
+                    break;
+                }
+                if (len == 0) {
+                    readiness.await(from, SelectionKey.OP_READ);
+                    continue;
+                }
+                long read = System.nanoTime();
+                counters.onRead(read - start, len);
+                throttle(len);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += to.write(buffer, position);
+                }
+                buffer.clear();
+                start = System.nanoTime();
+                counters.onWrite(start - read, len);
+            }
+        } finally {
+            if (buffer != null) {
+                PipeBuffers.shared().release(buffer);
+            }
+        }
+        to.position(position);
+    }
+
+    private void copy(ReadableByteChannel from, WritableByteChannel to, Readiness readiness) throws IOException {
+        ByteBuffer buffer = PipeBuffers.shared().direct(bufferSize());
+        try {
+            int len;
+            long start = System.nanoTime();
+            // time spent waiting for the destination, recorded with the next write
+            long pending = 0;
+            boolean resize = false;
+            while ((len = from.read(buffer)) != -1) {
+                long read = System.nanoTime();
+                counters.onRead(read - start, len);
+                throttle(len);
+                buffer.flip();
+                int written = buffer.hasRemaining() ? to.write(buffer) : 0;
+                start = System.nanoTime();
+                if (written > 0) {
+                    counters.onWrite(pending + start - read, written);
+                    pending = 0;
+                } else {
+                    pending += start - read;
+                }
+                if (len == 0 && written == 0) {
+                    // no progress: wait for the non-blocking channel we depend on instead of spinning
+                    if (buffer.hasRemaining()) {
+                        readiness.await(to, SelectionKey.OP_WRITE);
+                        long now = System.nanoTime();
+                        pending += now - start;
+                        start = now;
+                    } else {
+                        readiness.await(from, SelectionKey.OP_READ);
+                    }
+                }
+                buffer.compact();
+                if (sizer != null) {
+                    // the buffer is replaced once it has no pending bytes
+                    resize |= len > 0 && sizer.onRead(len);
+                    if (resize && buffer.position() == 0) {
+                        PipeBuffers.shared().release(buffer);
+                        buffer = PipeBuffers.shared().direct(sizer.size());
+                        resize = false;
+                    }
+                }
+            }
             buffer.flip();
-            to.write(buffer);
-            buffer.compact();
+            while (buffer.hasRemaining()) {
+                int written = to.write(buffer);
+                if (written == 0) {
+                    readiness.await(to, SelectionKey.OP_WRITE);
+                } else {
+                    long now = System.nanoTime();
+                    counters.onWrite(pending + now - start, written);
+                    pending = 0;
+                    start = now;
+                }
+            }
+        } finally {
+            PipeBuffers.shared().release(buffer);
+        }
+    }
+
+    private void copyBatched(ReadableByteChannel from, WritableByteChannel to, Readiness readiness) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[batch];
+        for (int i = 0; i < batch; i++) {
+            buffers[i] = PipeBuffers.shared().direct(bufferSize);
+        }
+        boolean nonBlocking = from instanceof SelectableChannel && !((SelectableChannel) from).isBlocking();
+        try {
+            long len;
+            long start = System.nanoTime();
+            // the buffers holding bytes are always the first ones, in order, filled from the index
+            int index = 0;
+            while (true) {
+                len = 0;
+                if (index < batch) {
+                    len = from instanceof ScatteringByteChannel ?
+                            ((ScatteringByteChannel) from).read(buffers, index, batch - index) :
+                            from.read(buffers[index]);
+                    if (len == -1) {
+                        break;
+                    }
+                    if (len > 0) {
+                        counters.onRead(System.nanoTime() - start, len);
+                        throttle(len);
+                    }
+                    while (index < batch && !buffers[index].hasRemaining()) {
+                        index++;
+                    }
+                    if (len > 0 && index < batch && nonBlocking) {
+                        // more short reads may be waiting: write them together
+                        continue;
+                    }
+                }
+                long write = System.nanoTime();
+                long written = write(to, buffers);
+                start = System.nanoTime();
+                if (written > 0) {
+                    counters.onWrite(start - write, written);
+                } else if (buffers[0].position() > 0) {
+                    readiness.await(to, SelectionKey.OP_WRITE);
+                    start = System.nanoTime();
+                } else if (len == 0) {
+                    readiness.await(from, SelectionKey.OP_READ);
+                    start = System.nanoTime();
+                }
+                index = next(buffers);
+            }
+            while (buffers[0].position() > 0) {
+                long write = System.nanoTime();
+                long written = write(to, buffers);
+                if (written == 0) {
+                    readiness.await(to, SelectionKey.OP_WRITE);
+                } else {
+                    counters.onWrite(System.nanoTime() - write, written);
+                }
+            }
+        } finally {
+            for (ByteBuffer buffer : buffers) {
+                PipeBuffers.shared().release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes the bytes of the buffers, with one call if the destination is gathering, and puts the written buffers back
+     * behind the others, ready to be filled
+     *
+     * @return the bytes written
+     */
+    private static long write(WritableByteChannel to, ByteBuffer[] buffers) throws IOException {
+        int count = 0;
+        while (count < buffers.length && buffers[count].position() > 0) {
+            buffers[count++].flip();
+        }
+        long written = 0;
+        if (to instanceof GatheringByteChannel) {
+            written = count == 0 ? 0 : ((GatheringByteChannel) to).write(buffers, 0, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                written += to.write(buffers[i]);
+                if (buffers[i].hasRemaining()) {
+                    break;
+                }
+            }
+        }
+        int drained = 0;
+        while (drained < count && !buffers[drained].hasRemaining()) {
+            buffers[drained++].clear();
+        }
+        for (int i = drained; i < count; i++) {
+            buffers[i].compact();
+        }
+        if (drained > 0) {
+            // rotates in place, without allocating on the write path
+            reverse(buffers, 0, drained);
+            reverse(buffers, drained, buffers.length);
+            reverse(buffers, 0, buffers.length);
+        }
+        return written;
+    }
+
+    private static void reverse(ByteBuffer[] buffers, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            ByteBuffer buffer = buffers[i];
+            buffers[i] = buffers[j];
+            buffers[j] = buffer;
+        }
+    }
+
+    /**
+     * @return the index of the buffer to fill: the last one holding bytes if it has room, so that the bytes stay in order
+     */
+    private static int next(ByteBuffer[] buffers) {
+        int index = 0;
+        while (index < buffers.length && buffers[index].position() > 0) {
+            index++;
+        }
+        return index > 0 && buffers[index - 1].hasRemaining() ? index - 1 : index;
+    }
+
+    private void copyStaged(ReadableByteChannel from, WritableByteChannel to, Readiness readiness) throws IOException {
+        ByteBuffer buffer = PipeBuffers.shared().direct(bufferSize());
+        try {
+            int len;
+            long start = System.nanoTime();
+            while ((len = from.read(buffer)) != -1) {
+                if (len == 0) {
+                    readiness.await(from, SelectionKey.OP_READ);
+                    continue;
+                }
+                counters.onRead(System.nanoTime() - start, len);
+                buffer.flip();
+                write(to, stage(buffer, 0), readiness);
+                buffer.clear();
+                if (sizer != null && sizer.onRead(len)) {
+                    PipeBuffers.shared().release(buffer);
+                    buffer = PipeBuffers.shared().direct(sizer.size());
+                }
+                start = System.nanoTime();
+            }
+            for (int i = 0; i < stages(); i++) {
+                ByteBuffer tail = finish(i);
+                if (tail != null) {
+                    write(to, tail, readiness);
+                }
+            }
+        } finally {
+            PipeBuffers.shared().release(buffer);
+        }
+    }
+
+    private void write(WritableByteChannel to, ByteBuffer chunk, Readiness readiness) throws IOException {
+        throttle(chunk.remaining());
+        long start = System.nanoTime();
+        while (chunk.hasRemaining()) {
+            int written = to.write(chunk);
+            if (written == 0) {
+                readiness.await(to, SelectionKey.OP_WRITE);
+            } else {
+                long now = System.nanoTime();
+                counters.onWrite(now - start, written);
+                start = now;
+            }
         }
-        buffer.flip();
-        while (buffer.hasRemaining()) {
-            to.write(buffer);
+    }
+
+    /**
+     * Limited pipes move smaller chunks, so that they are throttled smoothly
+     */
+    private long transferSize() {
+        return isLimited() ? bufferSize : TRANSFER_SIZE;
+    }
+
+    /**
+     * Waits until a non-blocking channel is ready instead of spinning on it. Blocking channels are not waited for.
+     */
+    private static final class Readiness {
+
+        private Selector selector;
+
+        void await(Channel channel, int op) throws IOException {
+            if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+                if (selector == null) {
+                    selector = Selector.open();
+                }
+                SelectableChannel selectable = (SelectableChannel) channel;
+                SelectionKey key = selectable.keyFor(selector);
+                if (key == null) {
+                    key = selectable.register(selector, op);
+                } else {
+                    key.interestOps(op);
+                }
+                selector.select();
+                selector.selectedKeys().clear();
+                key.interestOps(0);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        void close() throws IOException {
+            if (selector != null) {
+                selector.close();
+            }
         }
     }
 }
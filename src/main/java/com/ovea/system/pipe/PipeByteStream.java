@@ -15,9 +15,12 @@
  */
 package com.ovea.system.pipe;
 
+import com.ovea.system.util.IoUtils;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
@@ -25,23 +28,291 @@ import java.io.OutputStream;
 final class PipeByteStream extends PipeSkeleton<InputStream, OutputStream> {
 
     private final int bufferSize;
+    private final PipeFlushPolicy flush;
+    private final int ringDepth;
+    private final PipeSizer sizer;
+    private volatile PipeRing ring;
 
     public PipeByteStream(InputStream from, OutputStream to) {
         super(from, to);
         this.bufferSize = 8192;
+        this.flush = PipeFlushPolicy.NEVER;
+        this.ringDepth = 0;
+        this.sizer = null;
     }
 
     public PipeByteStream(String name, InputStream from, OutputStream to, int bufferSize) {
+        this(name, from, to, bufferSize, PipeFlushPolicy.NEVER);
+    }
+
+    public PipeByteStream(String name, InputStream from, OutputStream to, int bufferSize, PipeFlushPolicy flush) {
+        this(name, from, to, bufferSize, flush, 0);
+    }
+
+    /**
+     * @param ringDepth if not 0, the pipe reads and writes from two threads, through a ring of this number of buffers
+     */
+    public PipeByteStream(String name, InputStream from, OutputStream to, int bufferSize, PipeFlushPolicy flush, int ringDepth) {
+        this(name, from, to, bufferSize, flush, ringDepth, null);
+    }
+
+    /**
+     * Creates a pipe adapting its buffer size between the given bounds
+     */
+    public PipeByteStream(String name, InputStream from, OutputStream to, int minBufferSize, int maxBufferSize) {
+        this(name, from, to, minBufferSize, PipeFlushPolicy.NEVER, 0, new PipeSizer(minBufferSize, maxBufferSize));
+    }
+
+    private PipeByteStream(String name, InputStream from, OutputStream to, int bufferSize, PipeFlushPolicy flush, int ringDepth, PipeSizer sizer) {
         super(name, from, to);
+        if (flush == null) throw new IllegalArgumentException("Missing flush policy");
+        if (ringDepth < 0) throw new IllegalArgumentException("Invalid ring depth: " + ringDepth);
         this.bufferSize = bufferSize;
+        this.flush = flush;
+        this.ringDepth = ringDepth;
+        this.sizer = sizer;
+    }
+
+    @Override
+    int bufferSize() {
+        return sizer == null ? bufferSize : sizer.size();
+    }
+
+    @Override
+    boolean isStageable() {
+        return true;
+    }
+
+    @Override
+    void onInterrupt() {
+        PipeRing r = ring;
+        if (r != null) {
+            r.close();
+        }
     }
 
     @Override
     protected void copy(InputStream from, OutputStream to) throws IOException, BrokenPipeException {
-        byte[] buffer = new byte[bufferSize];
-        int len;
-        while (canCopy() && (len = from.read(buffer)) != -1) {
-            to.write(buffer, 0, len);
+        if (ringDepth > 0) {
+            copyDecoupled(from, to);
+            return;
+        }
+        if (isStaged()) {
+            copyStaged(from, to);
+            return;
+        }
+        int size = bufferSize();
+        byte[] buffer = PipeBuffers.shared().bytes(size);
+        PipeFlushPolicy.Flusher flusher = flush.flusher(to);
+        try {
+            int len;
+            long start = System.nanoTime();
+            while (canCopy() && (len = from.read(buffer, 0, size)) != -1) {
+                long read = System.nanoTime();
+                counters.onRead(read - start, len);
+                throttle(len);
+                if (flusher == null) {
+                    to.write(buffer, 0, len);
+                } else {
+                    synchronized (flusher) {
+                        to.write(buffer, 0, len);
+                        flusher.onWrite(len, from);
+                    }
+                }
+                start = System.nanoTime();
+                counters.onWrite(start - read, len);
+                if (sizer != null && sizer.onRead(len)) {
+                    PipeBuffers.shared().release(buffer);
+                    size = sizer.size();
+                    buffer = PipeBuffers.shared().bytes(size);
+                }
+            }
+            if (flusher != null && isOpened()) {
+                flusher.end();
+            }
+        } finally {
+            if (flusher != null) {
+                flusher.cancel();
+            }
+            PipeBuffers.shared().release(buffer);
+        }
+    }
+
+    private void copyStaged(InputStream from, OutputStream to) throws IOException {
+        int size = bufferSize();
+        byte[] buffer = PipeBuffers.shared().bytes(size);
+        ByteBuffer chunk = ByteBuffer.wrap(buffer);
+        byte[] copy = null;
+        PipeFlushPolicy.Flusher flusher = flush.flusher(to);
+        try {
+            int len;
+            long start = System.nanoTime();
+            while (canCopy() && (len = from.read(buffer, 0, size)) != -1) {
+                counters.onRead(System.nanoTime() - start, len);
+                chunk.clear();
+                chunk.limit(len);
+                copy = write(to, stage(chunk, 0), copy, flusher, flush.isIdle(from));
+                start = System.nanoTime();
+                if (sizer != null && sizer.onRead(len)) {
+                    PipeBuffers.shared().release(buffer);
+                    size = sizer.size();
+                    buffer = PipeBuffers.shared().bytes(size);
+                    chunk = ByteBuffer.wrap(buffer);
+                }
+            }
+            if (isOpened()) {
+                for (int i = 0; i < stages(); i++) {
+                    ByteBuffer tail = finish(i);
+                    if (tail != null) {
+                        copy = write(to, tail, copy, flusher, true);
+                    }
+                }
+                if (flusher != null) {
+                    flusher.end();
+                }
+            }
+        } finally {
+            if (flusher != null) {
+                flusher.cancel();
+            }
+            PipeBuffers.shared().release(buffer);
+            PipeBuffers.shared().release(copy);
+        }
+    }
+
+    /**
+     * Reads in the copier thread and writes from another thread of the executor, so that a slow write does not delay
+     * the next read until the ring is full
+     */
+    private void copyDecoupled(InputStream from, final OutputStream to) throws IOException {
+        final PipeRing ring = new PipeRing(ringDepth, bufferSize);
+        this.ring = ring;
+        try {
+            executor().execute(name() + "-writer", new Runnable() {
+                @Override
+                public void run() {
+                    Throwable failure = null;
+                    try {
+                        drain(ring, to);
+                    } catch (Throwable e) {
+                        failure = e;
+                    } finally {
+                        ring.writerDone(failure);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            ring.writerDone(new IOException("Cannot start the writer of " + name(), e));
+        }
+        boolean done = false;
+        try {
+            int len = 0;
+            long start = System.nanoTime();
+            byte[] slot;
+            while (canCopy() && (slot = ring.claim()) != null && (len = from.read(slot, 0, bufferSize)) != -1) {
+                counters.onRead(System.nanoTime() - start, len);
+                // decided here: the writer thread must not touch the source, which may be locked by the read
+                ring.publish(len, flush.isIdle(from));
+                start = System.nanoTime();
+            }
+            ring.end();
+            ring.awaitWriter();
+            done = true;
+        } finally {
+            ring.close();
+            if (!done) {
+                // releases a writer blocked on the destination, closed anyway when the pipe ends
+                IoUtils.close(to);
+                ring.interruptWriter();
+            }
+            ring.awaitStopped();
+            ring.readerDone();
+        }
+    }
+
+    private void drain(PipeRing ring, OutputStream to) throws IOException {
+        PipeFlushPolicy.Flusher flusher = flush.flusher(to);
+        boolean staged = isStaged();
+        byte[] copy = null;
+        try {
+            int i;
+            while ((i = ring.next()) >= 0) {
+                int len = ring.length(i);
+                if (staged) {
+                    copy = write(to, stage(ring.chunk(i), 0), copy, flusher, ring.isIdle(i));
+                } else {
+                    throttle(len);
+                    long write = System.nanoTime();
+                    if (flusher == null) {
+                        to.write(ring.slot(i), 0, len);
+                    } else {
+                        synchronized (flusher) {
+                            to.write(ring.slot(i), 0, len);
+                            flusher.onWrite(len, ring.isIdle(i));
+                        }
+                    }
+                    counters.onWrite(System.nanoTime() - write, len);
+                }
+                ring.consume();
+            }
+            if (ring.isComplete()) {
+                for (int s = 0; s < stages(); s++) {
+                    ByteBuffer tail = finish(s);
+                    if (tail != null) {
+                        copy = write(to, tail, copy, flusher, true);
+                    }
+                }
+                if (flusher != null) {
+                    flusher.end();
+                }
+            }
+        } finally {
+            if (flusher != null) {
+                flusher.cancel();
+            }
+            PipeBuffers.shared().release(copy);
+        }
+    }
+
+    /**
+     * Writes the output of the stages. Buffers without array, such as direct ones, are written through a copy.
+     *
+     * @param idle if no more input was available after the read of the chunk
+     * @return the copy buffer, allocated if needed
+     */
+    private byte[] write(OutputStream to, ByteBuffer chunk, byte[] copy, PipeFlushPolicy.Flusher flusher, boolean idle) throws IOException {
+        while (chunk.hasRemaining()) {
+            int len;
+            byte[] bytes;
+            int offset;
+            if (chunk.hasArray()) {
+                bytes = chunk.array();
+                offset = chunk.arrayOffset() + chunk.position();
+                len = chunk.remaining();
+            } else {
+                if (copy == null) {
+                    copy = PipeBuffers.shared().bytes(bufferSize);
+                }
+                bytes = copy;
+                offset = 0;
+                len = Math.min(chunk.remaining(), copy.length);
+                chunk.get(copy, 0, len);
+                chunk.position(chunk.position() - len);
+            }
+            throttle(len);
+            long write = System.nanoTime();
+            if (flusher == null) {
+                to.write(bytes, offset, len);
+            } else {
+                synchronized (flusher) {
+                    to.write(bytes, offset, len);
+                    // the last write of the chunk flushes
+                    flusher.onWrite(len, idle && len == chunk.remaining());
+                }
+            }
+            counters.onWrite(System.nanoTime() - write, len);
+            chunk.position(chunk.position() + len);
         }
+        return copy;
     }
 }
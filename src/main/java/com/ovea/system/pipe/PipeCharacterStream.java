@@ -25,23 +25,60 @@ import java.io.Writer;
 final class PipeCharacterStream extends PipeSkeleton<Reader, Writer> {
 
     private final int bufferSize;
+    private final PipeFlushPolicy flush;
 
     public PipeCharacterStream(Reader from, Writer to) {
         super(from, to);
         this.bufferSize = 8192;
+        this.flush = PipeFlushPolicy.NEVER;
     }
 
     public PipeCharacterStream(String name, Reader from, Writer to, int bufferSize) {
+        this(name, from, to, bufferSize, PipeFlushPolicy.NEVER);
+    }
+
+    public PipeCharacterStream(String name, Reader from, Writer to, int bufferSize, PipeFlushPolicy flush) {
         super(name, from, to);
+        if (flush == null) throw new IllegalArgumentException("Missing flush policy");
         this.bufferSize = bufferSize;
+        this.flush = flush;
+    }
+
+    @Override
+    int bufferSize() {
+        return bufferSize;
     }
 
     @Override
     protected void copy(Reader from, Writer to) throws IOException, BrokenPipeException {
-        char[] buffer = new char[bufferSize];
-        int len;
-        while (canCopy() && (len = from.read(buffer)) != -1) {
-            to.write(buffer, 0, len);
+        char[] buffer = PipeBuffers.shared().chars(bufferSize);
+        PipeFlushPolicy.Flusher flusher = flush.flusher(to);
+        try {
+            int len;
+            long start = System.nanoTime();
+            while (canCopy() && (len = from.read(buffer, 0, bufferSize)) != -1) {
+                long read = System.nanoTime();
+                counters.onRead(read - start, len);
+                throttle(len);
+                if (flusher == null) {
+                    to.write(buffer, 0, len);
+                } else {
+                    synchronized (flusher) {
+                        to.write(buffer, 0, len);
+                        flusher.onWrite(len, from);
+                    }
+                }
+                start = System.nanoTime();
+                counters.onWrite(start - read, len);
+            }
+            if (flusher != null && isOpened()) {
+                flusher.end();
+            }
+        } finally {
+            if (flusher != null) {
+                flusher.cancel();
+            }
+            PipeBuffers.shared().release(buffer);
         }
     }
 }
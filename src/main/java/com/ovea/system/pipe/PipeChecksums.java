@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Checksums updated from buffers without copying them
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeChecksums {
+
+    // Java 9+ java.util.zip.CRC32C, computed with the CPU instructions when available
+    private static final MethodHandle CRC32C;
+    private static final MethodHandle UPDATE;
+
+    static {
+        MethodHandle crc32c = null;
+        MethodHandle update = null;
+        try {
+            Class<?> c = Class.forName("java.util.zip.CRC32C");
+            crc32c = MethodHandles.publicLookup().findConstructor(c, MethodType.methodType(void.class)).asType(MethodType.methodType(Checksum.class));
+            update = MethodHandles.publicLookup().findVirtual(Checksum.class, "update", MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (Exception e) {
+            crc32c = null;
+        }
+        CRC32C = crc32c;
+        UPDATE = update;
+    }
+
+    private PipeChecksums() {
+    }
+
+    static Checksum crc32c() {
+        if (CRC32C != null) {
+            try {
+                return (Checksum) CRC32C.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        return new Crc32c();
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes of the chunk, leaving its position unchanged
+     */
+    static void update(Checksum checksum, ByteBuffer chunk) {
+        int position = chunk.position();
+        if (checksum instanceof CRC32) {
+            ((CRC32) checksum).update(chunk);
+        } else if (checksum instanceof Adler32) {
+            ((Adler32) checksum).update(chunk);
+        } else if (checksum instanceof Crc32c) {
+            ((Crc32c) checksum).updateBuffer(chunk);
+        } else {
+            try {
+                UPDATE.invokeExact(checksum, chunk);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        chunk.position(position);
+    }
+
+    /**
+     * CRC-32C (Castagnoli) for Java 8, computed with a lookup table
+     */
+    private static final class Crc32c implements Checksum {
+
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            for (int i = off; i < off + len; i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        void updateBuffer(ByteBuffer chunk) {
+            if (chunk.hasArray()) {
+                update(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            } else {
+                int c = crc;
+                for (int i = chunk.position(); i < chunk.limit(); i++) {
+                    c = (c >>> 8) ^ TABLE[(c ^ chunk.get(i)) & 0xFF];
+                }
+                crc = c;
+            }
+            chunk.position(chunk.limit());
+        }
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A chunk read once and written by several pipes. Its pooled buffer is released by the last pipe done with it.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeChunk {
+
+    final byte[] bytes;
+    final int length;
+    private final AtomicInteger references;
+
+    PipeChunk(byte[] bytes, int length, int references) {
+        this.bytes = bytes;
+        this.length = length;
+        this.references = new AtomicInteger(references);
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            PipeBuffers.shared().release(bytes);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of chunks between one producer and the pipe writing them. The producer ends the queue when it has no
+ * more chunks; the consumer closes it when it stops, releasing what is left.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeChunkQueue implements Closeable {
+
+    private final PipeChunk[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head;
+    private int size;
+    private boolean ended;
+    private boolean closed;
+    private IOException failure;
+
+    PipeChunkQueue(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid queue size: " + capacity);
+        ring = new PipeChunk[capacity];
+    }
+
+    /**
+     * Waits for room in the queue
+     *
+     * @return false if the queue is closed
+     */
+    boolean put(PipeChunk chunk) throws InterruptedIOException {
+        lock.lock();
+        try {
+            while (size == ring.length && !closed) {
+                notFull.await();
+            }
+            return !closed && add(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return false if the queue is full or closed
+     */
+    boolean offer(PipeChunk chunk) {
+        lock.lock();
+        try {
+            return !closed && size < ring.length && add(chunk);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a chunk
+     *
+     * @return the next chunk, or null when the queue is ended and empty, or closed
+     * @throws IOException if the queue has been failed
+     */
+    PipeChunk take() throws IOException {
+        lock.lock();
+        try {
+            while (size == 0 && !ended && !closed) {
+                notEmpty.await();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (size == 0 || closed) {
+                return null;
+            }
+            PipeChunk chunk = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            notFull.signal();
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * No more chunks will be added: the consumer gets the remaining ones then the end
+     */
+    void end() {
+        lock.lock();
+        try {
+            ended = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the queued chunks and makes the consumer fail with the given error
+     */
+    void fail(IOException e) {
+        lock.lock();
+        try {
+            failure = e;
+            close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            while (size > 0) {
+                ring[head].release();
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+            }
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean add(PipeChunk chunk) {
+        ring[(head + size) % ring.length] = chunk;
+        size++;
+        notEmpty.signal();
+        return true;
+    }
+}
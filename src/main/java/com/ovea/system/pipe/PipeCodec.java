@@ -0,0 +1,464 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate and inflate stages, in zlib or gzip format. The native zlib contexts are pooled and reused between pipes.
+ * Direct chunks are given to the contexts without copy on Java 11 and above.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeCodec implements PipeStage, Closeable {
+
+    static final long NEVER = Long.MAX_VALUE;
+
+    private static final int INFLATE = -2;
+
+    private static final int MAX_POOLED = 64;
+    private static final int OUTPUT_SIZE = 64 * 1024;
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    // [level + 1][nowrap]
+    private static final Queue<Deflater>[][] DEFLATERS = pools(11);
+    private static final Queue<Inflater>[][] INFLATERS = pools(1);
+
+    private static final MethodHandle DEFLATER_INPUT = inputHandle(Deflater.class);
+    private static final MethodHandle INFLATER_INPUT = inputHandle(Inflater.class);
+
+    private static enum Header {FIXED, EXTRA_LENGTH, EXTRA, NAME, COMMENT, CRC, BODY, TRAILER}
+
+    private final boolean gzip;
+    private final int level;
+    private final long syncFlush;
+    private final CRC32 crc;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] output = PipeBuffers.shared().bytes(OUTPUT_SIZE);
+    private ByteBuffer view = ByteBuffer.wrap(output);
+    private byte[] input;
+    private int size;
+    private long lastFlush = System.nanoTime();
+
+    private Header header = Header.FIXED;
+    private final byte[] fields = new byte[10];
+    private int count;
+    private int need;
+    private int flags;
+
+    private volatile long uncompressed;
+    private volatile long compressed;
+
+    /**
+     * @param level     deflate level, or {@link #INFLATE}
+     * @param syncFlush nanos between sync flushes of the deflater, or {@link #NEVER}
+     */
+    private PipeCodec(boolean gzip, int level, long syncFlush) {
+        this.gzip = gzip;
+        this.level = level;
+        this.syncFlush = syncFlush;
+        this.crc = gzip ? new CRC32() : null;
+        if (level == INFLATE) {
+            inflater = INFLATERS[0][gzip ? 1 : 0].poll();
+            if (inflater == null) {
+                inflater = new Inflater(gzip);
+            }
+        } else {
+            deflater = DEFLATERS[level + 1][gzip ? 1 : 0].poll();
+            if (deflater == null) {
+                deflater = new Deflater(level, gzip);
+            }
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+                size = GZIP_HEADER.length;
+            }
+        }
+        need = 10;
+    }
+
+    /**
+     * @param syncFlush nanos between sync flushes, or {@link #NEVER}
+     */
+    static PipeCodec deflater(boolean gzip, int level, long syncFlush) {
+        if (level < -1 || level > 9) throw new IllegalArgumentException("Invalid compression level: " + level);
+        if (syncFlush < 0) throw new IllegalArgumentException("Invalid sync flush interval: " + syncFlush);
+        return new PipeCodec(gzip, level, syncFlush);
+    }
+
+    static PipeCodec inflater(boolean gzip) {
+        return new PipeCodec(gzip, INFLATE, NEVER);
+    }
+
+    @Override
+    public ByteBuffer apply(ByteBuffer chunk) throws IOException {
+        if (output == null) throw new IOException("Stage closed");
+        return deflater != null ? deflate(chunk) : inflate(chunk);
+    }
+
+    @Override
+    public ByteBuffer finish() throws IOException {
+        if (output == null) throw new IOException("Stage closed");
+        if (deflater != null) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                room();
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            if (gzip) {
+                room();
+                writeInt((int) crc.getValue());
+                writeInt((int) uncompressed);
+            }
+            return flip();
+        }
+        if (gzip ? header != Header.FIXED || count > 0 : inflater.getTotalIn() > 0 && !inflater.finished()) {
+            throw new IOException("Unexpected end of compressed stream");
+        }
+        return null;
+    }
+
+    /**
+     * Gives the native context back to the pool
+     */
+    @Override
+    public void close() {
+        if (output == null) {
+            return;
+        }
+        if (deflater != null) {
+            deflater.reset();
+            if (!offer(DEFLATERS[level + 1][gzip ? 1 : 0], deflater)) {
+                deflater.end();
+            }
+        } else {
+            inflater.reset();
+            if (!offer(INFLATERS[0][gzip ? 1 : 0], inflater)) {
+                inflater.end();
+            }
+        }
+        PipeBuffers.shared().release(output);
+        PipeBuffers.shared().release(input);
+        output = input = null;
+        view = null;
+    }
+
+    long uncompressed() {
+        return uncompressed;
+    }
+
+    long compressed() {
+        return compressed;
+    }
+
+    /**
+     * @return uncompressed bytes over compressed bytes of the codecs among the stages, or 1 if there is none
+     */
+    static double ratio(PipeStage[] stages) {
+        long u = 0, c = 0;
+        for (PipeStage stage : stages) {
+            if (stage instanceof PipeCodec) {
+                u += ((PipeCodec) stage).uncompressed;
+                c += ((PipeCodec) stage).compressed;
+            }
+        }
+        return c == 0 ? 1 : (double) u / c;
+    }
+
+    private ByteBuffer deflate(ByteBuffer chunk) throws IOException {
+        int len = chunk.remaining();
+        if (crc != null) {
+            crc.update(chunk.duplicate());
+        }
+        boolean buffered = input(chunk, deflater, DEFLATER_INPUT);
+        while (!deflater.needsInput()) {
+            room();
+            size += deflater.deflate(output, size, output.length - size, Deflater.NO_FLUSH);
+        }
+        if (buffered) {
+            // the deflater would read the chunk again once the pipe has refilled it
+            deflater.setInput(EMPTY);
+        }
+        uncompressed += len;
+        if (syncFlush != NEVER) {
+            long now = System.nanoTime();
+            // a chunk not filling its buffer means that the source has nothing more for now
+            if (chunk.limit() < chunk.capacity() || now - lastFlush >= syncFlush) {
+                do {
+                    room();
+                    size += deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+                } while (size == output.length);
+                lastFlush = now;
+            }
+        }
+        chunk.position(chunk.limit());
+        return flip();
+    }
+
+    private ByteBuffer inflate(ByteBuffer chunk) throws IOException {
+        compressed += chunk.remaining();
+        while (chunk.hasRemaining()) {
+            if (gzip && header != Header.BODY) {
+                if (!gzipHeader(chunk)) {
+                    break;
+                }
+                continue;
+            }
+            if (inflater.finished()) {
+                if (!gzip) throw new IOException("Data after the end of the compressed stream");
+                header = Header.TRAILER;
+                need = 8;
+                count = 0;
+                continue;
+            }
+            boolean buffered = input(chunk, inflater, INFLATER_INPUT);
+            try {
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    room();
+                    int n = inflater.inflate(output, size, output.length - size);
+                    if (n == 0 && inflater.needsDictionary()) throw new IOException("Missing deflate dictionary");
+                    if (crc != null) {
+                        crc.update(output, size, n);
+                    }
+                    size += n;
+                    uncompressed += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed stream: " + e.getMessage(), e);
+            }
+            if (buffered) {
+                inflater.setInput(EMPTY);
+            } else {
+                chunk.position(chunk.limit() - inflater.getRemaining());
+            }
+            if (inflater.finished() && !gzip && chunk.hasRemaining()) {
+                throw new IOException("Data after the end of the compressed stream");
+            }
+        }
+        return flip();
+    }
+
+    /**
+     * Parses the gzip member header, or trailer, from the chunk
+     *
+     * @return true when the compressed data starts, or false if the chunk is consumed
+     */
+    private boolean gzipHeader(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            int b = chunk.get() & 0xff;
+            switch (header) {
+                case NAME:
+                case COMMENT:
+                    if (b == 0) {
+                        next();
+                    }
+                    continue;
+                default:
+                    if (count < fields.length) {
+                        fields[count] = (byte) b;
+                    }
+                    if (++count < need) {
+                        continue;
+                    }
+            }
+            switch (header) {
+                case FIXED:
+                    if (shortAt(0) != GZIP_MAGIC) throw new IOException("Not in GZIP format");
+                    if (fields[2] != Deflater.DEFLATED) throw new IOException("Unsupported compression method: " + fields[2]);
+                    flags = fields[3] & 0xff;
+                    next();
+                    break;
+                case EXTRA_LENGTH:
+                    need = shortAt(0);
+                    header = Header.EXTRA;
+                    count = 0;
+                    if (need == 0) {
+                        next();
+                    }
+                    break;
+                case TRAILER:
+                    if (intAt(0) != (int) crc.getValue()) throw new IOException("Corrupt GZIP trailer: bad CRC");
+                    if (intAt(4) != (int) inflater.getBytesWritten()) throw new IOException("Corrupt GZIP trailer: bad size");
+                    // next member, if any
+                    inflater.reset();
+                    crc.reset();
+                    header = Header.FIXED;
+                    need = 10;
+                    count = 0;
+                    break;
+                default:
+                    next();
+            }
+            if (header == Header.BODY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the next optional header field present, falling through the absent ones
+     */
+    @SuppressWarnings({"fallthrough"})
+    private void next() {
+        count = 0;
+        switch (header) {
+            case FIXED:
+                if ((flags & FEXTRA) != 0) {
+                    header = Header.EXTRA_LENGTH;
+                    need = 2;
+                    return;
+                }
+            case EXTRA_LENGTH:
+            case EXTRA:
+                if ((flags & FNAME) != 0) {
+                    header = Header.NAME;
+                    return;
+                }
+            case NAME:
+                if ((flags & FCOMMENT) != 0) {
+                    header = Header.COMMENT;
+                    return;
+                }
+            case COMMENT:
+                if ((flags & FHCRC) != 0) {
+                    header = Header.CRC;
+                    need = 2;
+                    return;
+                }
+            default:
+                header = Header.BODY;
+        }
+    }
+
+    /**
+     * Gives the chunk to the context, directly if it is backed by an array or if the context accepts buffers
+     *
+     * @return true if the context advances the position of the chunk itself
+     */
+    private boolean input(ByteBuffer chunk, Object context, MethodHandle handle) throws IOException {
+        byte[] bytes;
+        int offset;
+        int len = chunk.remaining();
+        if (chunk.hasArray()) {
+            bytes = chunk.array();
+            offset = chunk.arrayOffset() + chunk.position();
+        } else if (handle != null) {
+            try {
+                handle.invoke(context, chunk);
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+            return true;
+        } else {
+            if (input == null || input.length < len) {
+                PipeBuffers.shared().release(input);
+                input = PipeBuffers.shared().bytes(len);
+            }
+            chunk.duplicate().get(input, 0, len);
+            bytes = input;
+            offset = 0;
+        }
+        if (context instanceof Deflater) {
+            ((Deflater) context).setInput(bytes, offset, len);
+        } else {
+            ((Inflater) context).setInput(bytes, offset, len);
+        }
+        return false;
+    }
+
+    /**
+     * Makes room in the output buffer
+     */
+    private void room() {
+        if (output.length - size < 16) {
+            byte[] bigger = PipeBuffers.shared().bytes(output.length * 2);
+            System.arraycopy(output, 0, bigger, 0, size);
+            PipeBuffers.shared().release(output);
+            output = bigger;
+            view = ByteBuffer.wrap(output);
+        }
+    }
+
+    private ByteBuffer flip() {
+        if (deflater != null) {
+            compressed += size;
+        }
+        view.clear();
+        view.limit(size);
+        size = 0;
+        return view;
+    }
+
+    private void writeInt(int value) {
+        for (int i = 0; i < 4; i++) {
+            output[size++] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private int shortAt(int i) {
+        return (fields[i] & 0xff) | (fields[i + 1] & 0xff) << 8;
+    }
+
+    private int intAt(int i) {
+        return shortAt(i) | shortAt(i + 2) << 16;
+    }
+
+    private static <T> boolean offer(Queue<T> pool, T context) {
+        // racy size check: the pool may slightly exceed its bound
+        if (pool.size() >= MAX_POOLED) {
+            return false;
+        }
+        pool.offer(context);
+        return true;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Queue<T>[][] pools(int levels) {
+        Queue<T>[][] pools = new Queue[levels][2];
+        for (int i = 0; i < levels; i++) {
+            pools[i][0] = new ConcurrentLinkedQueue<T>();
+            pools[i][1] = new ConcurrentLinkedQueue<T>();
+        }
+        return pools;
+    }
+
+    /**
+     * @return the setInput(ByteBuffer) method of Java 11 and above, or null
+     */
+    private static MethodHandle inputHandle(Class<?> type) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(type, "setInput", MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
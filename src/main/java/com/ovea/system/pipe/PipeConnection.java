@@ -15,6 +15,7 @@
  */
 package com.ovea.system.pipe;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -28,11 +29,64 @@ public interface PipeConnection {
      */
     Pipe pipe();
 
+    /**
+     * Metrics of the connected pipe
+     */
+    PipeMetrics metrics();
+
+    /**
+     * Current size of the copy buffer of the pipe, as chosen by adaptive pipes, or 0 if the pipe does not copy through a
+     * buffer of its own
+     */
+    int bufferSize();
+
+    /**
+     * Uncompressed bytes over compressed bytes of the deflate and inflate stages of the pipe, final once the pipe has
+     * ended. 1 if the pipe has no such stage.
+     */
+    double compressionRatio();
+
+    /**
+     * @return the first checksum or digest stage of the pipe, or null if it has none
+     */
+    PipeStages.Digest digest();
+
+    /**
+     * Bytes spilled to disk by a spilling pipe, 0 for other pipes
+     */
+    long spilledBytes();
+
+    /**
+     * Time since the oldest bytes read by a spilling pipe and not yet written were read, 0 if there are none or for
+     * other pipes
+     */
+    long backlogAge(TimeUnit unit);
+
     /**
      * Interrupt the pipe
      */
     void interrupt();
 
+    /**
+     * Interrupt the pipe without waiting for its copier to stop
+     *
+     * @return a future completed once the pipe has ended, as {@link #toCompletableFuture()}
+     */
+    CompletableFuture<Pipe> interruptAsync();
+
+    /**
+     * Calls the end event of the listener once the pipe has ended, from the thread ending it, or right away if it has
+     * already ended. The connect event is not called.
+     */
+    PipeConnection onComplete(PipeListener listener);
+
+    /**
+     * @return a future completed with the pipe once it is closed, completed exceptionally with the
+     *         {@link BrokenPipeException} if it is broken and cancelled if it is interrupted. Cancelling the future
+     *         interrupts the pipe without waiting.
+     */
+    CompletableFuture<Pipe> toCompletableFuture();
+
     /**
      * Wait for completion
      *
@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one pipe. Recording does not allocate: the copy loops call {@link #onRead(long, long)} and
+ * {@link #onWrite(long, long)} for every chunk.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeCounters implements PipeMetrics {
+
+    private static final int BUCKETS = 48;
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final Histogram readWaits = new Histogram();
+    private final Histogram writeWaits = new Histogram();
+    private volatile long connectedAt;
+    private volatile long firstByteAt;
+
+    void onConnect() {
+        connectedAt = System.nanoTime();
+    }
+
+    /**
+     * @param nanos time spent in the read
+     * @param len   number of bytes read
+     */
+    void onRead(long nanos, long len) {
+        readWaits.record(nanos);
+        if (len > 0 && firstByteAt == 0) {
+            firstByteAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * @param nanos time spent in the write
+     * @param len   number of bytes written
+     */
+    void onWrite(long nanos, long len) {
+        writeWaits.record(nanos);
+        bytes.add(len);
+        chunks.increment();
+        // transfers made by the kernel have no separate read
+        if (len > 0 && firstByteAt == 0) {
+            firstByteAt = System.nanoTime() - nanos;
+        }
+    }
+
+    @Override
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long chunks() {
+        return chunks.sum();
+    }
+
+    @Override
+    public long timeToFirstByte(TimeUnit unit) {
+        long first = firstByteAt;
+        return first == 0 ? -1 : unit.convert(Math.max(0, first - connectedAt), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public PipeHistogram readWaits() {
+        return readWaits;
+    }
+
+    @Override
+    public PipeHistogram writeWaits() {
+        return writeWaits;
+    }
+
+    @Override
+    public String toString() {
+        return toString(this);
+    }
+
+    static String toString(PipeMetrics metrics) {
+        return "bytes=" + metrics.bytes()
+                + ", chunks=" + metrics.chunks()
+                + ", ttfb=" + metrics.timeToFirstByte(TimeUnit.MICROSECONDS) + "us"
+                + ", read=" + metrics.readWaits()
+                + ", write=" + metrics.writeWaits();
+    }
+
+    /**
+     * @return a live view summing the given metrics
+     */
+    static PipeMetrics sum(PipeMetrics... metrics) {
+        return new Sum(metrics);
+    }
+
+    abstract static class Distribution implements PipeHistogram {
+
+        @Override
+        public final int buckets() {
+            return BUCKETS;
+        }
+
+        @Override
+        public final long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += count(i);
+            }
+            return count;
+        }
+
+        @Override
+        public final long upperBound(int bucket, TimeUnit unit) {
+            return unit.convert(1L << bucket, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public final long percentile(double percentile, TimeUnit unit) {
+            if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Invalid percentile: " + percentile);
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += counts[i] = count(i);
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            for (int i = 0; i < BUCKETS; i++) {
+                rank -= counts[i];
+                if (rank <= 0 && count > 0) {
+                    return upperBound(i, unit);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public final String toString() {
+            long count = count();
+            return count == 0 ? "[]" : "[count=" + count
+                    + ", avg=" + total(TimeUnit.MICROSECONDS) / count + "us"
+                    + ", p50<" + percentile(50, TimeUnit.MICROSECONDS) + "us"
+                    + ", p99<" + percentile(99, TimeUnit.MICROSECONDS) + "us]";
+        }
+    }
+
+    static final class Histogram extends Distribution {
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder total = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int bucket = nanos <= 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+            counts[bucket].increment();
+            total.add(nanos);
+        }
+
+        @Override
+        public long total(TimeUnit unit) {
+            return unit.convert(total.sum(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long count(int bucket) {
+            return counts[bucket].sum();
+        }
+    }
+
+    private static final class Sum implements PipeMetrics {
+
+        private final PipeMetrics[] metrics;
+        private final PipeHistogram readWaits;
+        private final PipeHistogram writeWaits;
+
+        private Sum(PipeMetrics[] metrics) {
+            this.metrics = metrics.clone();
+            PipeHistogram[] reads = new PipeHistogram[metrics.length];
+            PipeHistogram[] writes = new PipeHistogram[metrics.length];
+            for (int i = 0; i < metrics.length; i++) {
+                reads[i] = metrics[i].readWaits();
+                writes[i] = metrics[i].writeWaits();
+            }
+            this.readWaits = new HistogramSum(reads);
+            this.writeWaits = new HistogramSum(writes);
+        }
+
+        @Override
+        public long bytes() {
+            long sum = 0;
+            for (PipeMetrics m : metrics) {
+                sum += m.bytes();
+            }
+            return sum;
+        }
+
+        @Override
+        public long chunks() {
+            long sum = 0;
+            for (PipeMetrics m : metrics) {
+                sum += m.chunks();
+            }
+            return sum;
+        }
+
+        /**
+         * The earliest first byte
+         */
+        @Override
+        public long timeToFirstByte(TimeUnit unit) {
+            long min = -1;
+            for (PipeMetrics m : metrics) {
+                long t = m.timeToFirstByte(unit);
+                if (t >= 0 && (min < 0 || t < min)) {
+                    min = t;
+                }
+            }
+            return min;
+        }
+
+        @Override
+        public PipeHistogram readWaits() {
+            return readWaits;
+        }
+
+        @Override
+        public PipeHistogram writeWaits() {
+            return writeWaits;
+        }
+
+        @Override
+        public String toString() {
+            return PipeCounters.toString(this);
+        }
+    }
+
+    private static final class HistogramSum extends Distribution {
+
+        private final PipeHistogram[] histograms;
+
+        private HistogramSum(PipeHistogram[] histograms) {
+            this.histograms = histograms;
+        }
+
+        @Override
+        public long total(TimeUnit unit) {
+            long sum = 0;
+            for (PipeHistogram h : histograms) {
+                sum += h.total(TimeUnit.NANOSECONDS);
+            }
+            return unit.convert(sum, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long count(int bucket) {
+            long sum = 0;
+            for (PipeHistogram h : histograms) {
+                sum += h.count(bucket);
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import com.ovea.system.proc.FutureProcess;
+import com.ovea.system.proc.FutureProcessListener;
+import com.ovea.system.tunnel.BrokenTunnelException;
+import com.ovea.system.tunnel.Tunnel;
+import com.ovea.system.tunnel.TunnelListener;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers the events of listeners on a small pool of threads instead of the copier or process waiter thread, so that a
+ * slow listener does not delay the end of a pipe. The events of a dispatched listener are delivered one at a time, in
+ * the order they happened: dispatch a listener per pipe, tunnel or process to deliver their events in parallel.
+ * <p/>
+ * Only dispatch listeners which do not need to run before the pipe ends.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeDispatcher {
+
+    private final Executor executor;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LongAdder dispatched = new LongAdder();
+    private final PipeCounters.Histogram lag = new PipeCounters.Histogram();
+
+    /**
+     * Creates a dispatcher delivering events from 2 threads
+     */
+    public PipeDispatcher() {
+        this(2);
+    }
+
+    /**
+     * Creates a dispatcher delivering events from up to the given number of daemon threads, stopped when idle
+     */
+    public PipeDispatcher(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("Invalid thread count: " + threads);
+        final AtomicInteger ids = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pipe-dispatcher-" + ids.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * Creates a dispatcher delivering events from the given executor. Event deliveries are short tasks which can be
+     * queued.
+     */
+    public PipeDispatcher(Executor executor) {
+        if (executor == null) throw new IllegalArgumentException("Missing executor");
+        this.executor = executor;
+    }
+
+    public PipeListener dispatch(final PipeListener listener) {
+        if (listener == null) throw new IllegalArgumentException("Missing listener");
+        final Lane lane = new Lane();
+        return new PipeListener() {
+            @Override
+            public void onConnect(final Pipe pipe) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onConnect(pipe);
+                    }
+                });
+            }
+
+            @Override
+            public void onClose(final Pipe pipe) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onClose(pipe);
+                    }
+                });
+            }
+
+            @Override
+            public void onBroken(final Pipe pipe, final BrokenPipeException e) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onBroken(pipe, e);
+                    }
+                });
+            }
+
+            @Override
+            public void onInterrupt(final Pipe pipe) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onInterrupt(pipe);
+                    }
+                });
+            }
+        };
+    }
+
+    public TunnelListener dispatch(final TunnelListener listener) {
+        if (listener == null) throw new IllegalArgumentException("Missing listener");
+        final Lane lane = new Lane();
+        return new TunnelListener() {
+            @Override
+            public void onConnect(final Tunnel tunnel) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onConnect(tunnel);
+                    }
+                });
+            }
+
+            @Override
+            public void onClose(final Tunnel tunnel) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onClose(tunnel);
+                    }
+                });
+            }
+
+            @Override
+            public void onBroken(final Tunnel tunnel, final BrokenTunnelException e) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onBroken(tunnel, e);
+                    }
+                });
+            }
+
+            @Override
+            public void onInterrupt(final Tunnel tunnel) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onInterrupt(tunnel);
+                    }
+                });
+            }
+        };
+    }
+
+    public FutureProcessListener dispatch(final FutureProcessListener listener) {
+        if (listener == null) throw new IllegalArgumentException("Missing listener");
+        final Lane lane = new Lane();
+        return new FutureProcessListener() {
+            @Override
+            public void onComplete(final FutureProcess futureProcess) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onComplete(futureProcess);
+                    }
+                });
+            }
+
+            @Override
+            public void onInterrupted(final FutureProcess futureProcess) {
+                lane.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onInterrupted(futureProcess);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Number of events waiting to be delivered
+     */
+    public int queueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Number of events delivered since the creation of this dispatcher
+     */
+    public long dispatched() {
+        return dispatched.sum();
+    }
+
+    /**
+     * Time between each event and the start of its delivery
+     */
+    public PipeHistogram dispatchLag() {
+        return lag;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[depth=" + queueDepth() + ", dispatched=" + dispatched() + "]";
+    }
+
+    /**
+     * Events of one listener, delivered in order by at most one thread at a time
+     */
+    private final class Lane implements Runnable {
+
+        private final Queue<Event> events = new ConcurrentLinkedQueue<Event>();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        void post(Runnable event) {
+            events.add(new Event(event, System.nanoTime()));
+            depth.incrementAndGet();
+            if (pending.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the executor has been shut down
+                    run();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                Event event = events.poll();
+                depth.decrementAndGet();
+                lag.record(System.nanoTime() - event.time);
+                try {
+                    event.task.run();
+                } catch (Throwable e) {
+                    Thread current = Thread.currentThread();
+                    current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                } finally {
+                    dispatched.increment();
+                }
+            } while (pending.decrementAndGet() > 0);
+        }
+    }
+
+    private static final class Event {
+
+        final Runnable task;
+        final long time;
+
+        Event(Runnable task, long time) {
+            this.task = task;
+            this.time = time;
+        }
+    }
+}
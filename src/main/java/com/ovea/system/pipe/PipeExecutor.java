@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+/**
+ * Runs the copy task of connected pipes. Implementations must run each task asynchronously: a pipe copy blocks until its
+ * input ends, so a task must never wait behind another one.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface PipeExecutor {
+
+    /**
+     * Run the given task asynchronously
+     *
+     * @param name name of the task, usually the pipe name, which can be given to the thread running it
+     * @param task the task to run
+     */
+    void execute(String name, Runnable task);
+
+    /**
+     * Number of threads created by this executor since its creation
+     */
+    long createdThreads();
+
+    /**
+     * Number of threads currently running a task
+     */
+    int activeThreads();
+
+    /**
+     * Number of tasks submitted to this executor since its creation
+     */
+    long submittedTasks();
+}
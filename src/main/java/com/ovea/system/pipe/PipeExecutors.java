@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Factory of {@link PipeExecutor}
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeExecutors {
+
+    private static final int DEFAULT_MAX_THREADS = Integer.getInteger("ovea.pipe.executor.maxThreads", 1024);
+    private static final long DEFAULT_KEEP_ALIVE = Long.getLong("ovea.pipe.executor.keepAlive", 5000);
+
+    private PipeExecutors() {
+    }
+
+    /**
+     * Creates the executor selected by the <code>ovea.pipe.executor</code> system property: <code>pooled</code> (default),
+     * <code>thread</code> or <code>virtual</code>. The virtual mode falls back to the pooled one when the JVM does not
+     * support virtual threads.
+     */
+    static PipeExecutor configured() {
+        String mode = System.getProperty("ovea.pipe.executor", "pooled");
+        if ("thread".equalsIgnoreCase(mode)) {
+            return threadPerTask();
+        }
+        if ("virtual".equalsIgnoreCase(mode) && isVirtualThreadSupported()) {
+            return virtual();
+        }
+        return pooled();
+    }
+
+    /**
+     * Creates a new thread for each task. This is the behavior of previous versions.
+     */
+    public static PipeExecutor threadPerTask() {
+        return new ThreadPerTask();
+    }
+
+    /**
+     * Creates an executor reusing up to <code>ovea.pipe.executor.maxThreads</code> threads (default 1024), kept idle
+     * <code>ovea.pipe.executor.keepAlive</code> milliseconds (default 5000)
+     */
+    public static PipeExecutor pooled() {
+        return pooled(DEFAULT_MAX_THREADS, DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates an executor reusing up to <code>maxThreads</code> threads, kept idle <code>keepAlive</code> time.
+     * <p/>
+     * Copy tasks block until their input ends, so they are never queued: when all pooled threads are busy, the task
+     * runs on a new non-pooled thread, which is counted in {@link PipeExecutor#createdThreads()}.
+     */
+    public static PipeExecutor pooled(int maxThreads, long keepAlive, TimeUnit unit) {
+        if (maxThreads <= 0) throw new IllegalArgumentException("Invalid max thread count: " + maxThreads);
+        if (keepAlive < 0) throw new IllegalArgumentException("Invalid keep alive time: " + keepAlive);
+        if (unit == null) throw new IllegalArgumentException("Missing time unit");
+        return new Pooled(maxThreads, keepAlive, unit);
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads (Java 21+)
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a new virtual thread for each task. Blocking copies and process waits then park a virtual thread instead
+     * of a platform thread, so tens of thousands of pipes only use the few carrier threads of the JVM.
+     * <p/>
+     * Note that a virtual thread blocked inside a <code>synchronized</code> block, as in {@link java.io.PipedInputStream},
+     * still pins its carrier thread.
+     *
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads
+     */
+    public static PipeExecutor virtual() {
+        if (!isVirtualThreadSupported()) throw new UnsupportedOperationException("Virtual threads are not supported by this JVM: " + System.getProperty("java.version"));
+        return new Virtual();
+    }
+
+    private static abstract class CountingExecutor implements PipeExecutor {
+
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicInteger active = new AtomicInteger();
+
+        @Override
+        public final void execute(final String name, final Runnable task) {
+            if (task == null) throw new IllegalArgumentException("Missing task");
+            submitted.incrementAndGet();
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    Thread current = Thread.currentThread();
+                    String old = current.getName();
+                    if (name != null) {
+                        current.setName(name);
+                    }
+                    active.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        active.decrementAndGet();
+                        current.setName(old);
+                        // do not leak the interrupted status to the next task of a reused thread
+                        Thread.interrupted();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public final long createdThreads() {
+            return created.get();
+        }
+
+        @Override
+        public final int activeThreads() {
+            return active.get();
+        }
+
+        @Override
+        public final long submittedTasks() {
+            return submitted.get();
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[created=" + createdThreads() + ", active=" + activeThreads() + ", submitted=" + submittedTasks() + "]";
+        }
+
+        final Thread newThread(Runnable task, String name) {
+            return count(new Thread(task, name));
+        }
+
+        final Thread count(Thread thread) {
+            created.incrementAndGet();
+            return thread;
+        }
+
+        abstract void dispatch(Runnable task);
+    }
+
+    private static final class ThreadPerTask extends CountingExecutor {
+        @Override
+        void dispatch(Runnable task) {
+            newThread(task, "pipe").start();
+        }
+    }
+
+    private static final class Pooled extends CountingExecutor {
+
+        private final AtomicInteger ids = new AtomicInteger();
+        private final ThreadPoolExecutor pool;
+
+        private Pooled(int maxThreads, long keepAlive, TimeUnit unit) {
+            pool = new ThreadPoolExecutor(0, maxThreads, keepAlive, unit, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return Pooled.this.newThread(r, "pipe-worker-" + ids.incrementAndGet());
+                }
+            }, new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    newThread(r, "pipe-overflow").start();
+                }
+            });
+        }
+
+        @Override
+        void dispatch(Runnable task) {
+            pool.execute(task);
+        }
+    }
+
+    private static final class Virtual extends CountingExecutor {
+        @Override
+        void dispatch(Runnable task) {
+            count(VirtualThreads.unstarted(task)).start();
+        }
+    }
+
+    /**
+     * Reflective access to the virtual thread API so that this library still runs on older JVMs
+     */
+    private static final class VirtualThreads {
+
+        private static final Method OF_VIRTUAL;
+        private static final Method UNSTARTED;
+
+        static {
+            Method ofVirtual = null;
+            Method unstarted = null;
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            } catch (Exception ignored) {
+                ofVirtual = null;
+            }
+            OF_VIRTUAL = ofVirtual;
+            UNSTARTED = unstarted;
+        }
+
+        static Thread unstarted(Runnable task) {
+            try {
+                // builders are not thread-safe: use a new one each time
+                return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            } catch (InvocationTargetException e) {
+                Throwable t = e.getCause();
+                if (t instanceof RuntimeException)
+                    throw (RuntimeException) t;
+                if (t instanceof Error)
+                    throw (Error) t;
+                throw new IllegalStateException(t.getMessage(), t);
+            }
+        }
+    }
+}
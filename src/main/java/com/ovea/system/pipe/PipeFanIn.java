@@ -0,0 +1,389 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Merge implementation: the source pipes queue their chunks to a lock-free multi-producer queue drained by the copier
+ * of the merge pipe, the only writer of the sink.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeFanIn extends PipeSkeleton<PipeFanIn.Chunks, OutputStream> implements PipeMerge {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int QUEUE_SIZE = 64;
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    private final List<SourcePipe> sources;
+    private final int batchSize;
+
+    private PipeFanIn(String name, Chunks chunks, OutputStream to, List<SourcePipe> sources, int batchSize) {
+        super(name, chunks, to);
+        this.sources = sources;
+        this.batchSize = batchSize;
+    }
+
+    static PipeMerge create(String name, OutputStream to, List<InputStream> from, int bufferSize, boolean lines) {
+        if (name == null) throw new IllegalArgumentException("Missing pipe name");
+        if (bufferSize <= 0) throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        Chunks chunks = new Chunks(QUEUE_SIZE, from.size());
+        List<SourcePipe> sources = new ArrayList<SourcePipe>(from.size());
+        for (int i = 0; i < from.size(); i++) {
+            if (from.get(i) == null) throw new IllegalArgumentException("Missing source " + i);
+            sources.add(new SourcePipe(name + "-source-" + i, from.get(i), chunks, bufferSize, lines));
+        }
+        return new PipeFanIn(name, chunks, to, sources, Math.max(BATCH_SIZE, bufferSize));
+    }
+
+    @Override
+    public List<Source> sources() {
+        return Collections.<Source>unmodifiableList(sources);
+    }
+
+    @Override
+    protected void copy(Chunks from, OutputStream to) throws IOException, BrokenPipeException {
+        from.writer = Thread.currentThread();
+        for (SourcePipe source : sources) {
+            source.connect();
+        }
+        byte[] batch = PipeBuffers.shared().bytes(batchSize);
+        try {
+            int size = 0;
+            long start = System.nanoTime();
+            while (canCopy()) {
+                PipeChunk chunk = from.poll();
+                if (chunk == null) {
+                    // nothing more for now: write what we have, then wait
+                    if (size > 0) {
+                        write(to, batch, size, start);
+                        size = 0;
+                        start = System.nanoTime();
+                    } else if (!from.await()) {
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    counters.onRead(System.nanoTime() - start, chunk.length);
+                    if (chunk.length > batch.length - size && size > 0) {
+                        write(to, batch, size, start);
+                        size = 0;
+                        start = System.nanoTime();
+                    }
+                    if (chunk.length > batch.length) {
+                        write(to, chunk.bytes, chunk.length, start);
+                        start = System.nanoTime();
+                    } else {
+                        System.arraycopy(chunk.bytes, 0, batch, size, chunk.length);
+                        size += chunk.length;
+                    }
+                } finally {
+                    chunk.release();
+                }
+            }
+            if (size > 0) {
+                write(to, batch, size, start);
+            }
+        } finally {
+            PipeBuffers.shared().release(batch);
+        }
+        for (SourcePipe source : sources) {
+            try {
+                source.connect().await();
+            } catch (BrokenPipeException ignored) {
+                // reported to the listener of the source
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    void onInterrupt() {
+        for (SourcePipe source : sources) {
+            source.connect().interrupt();
+        }
+    }
+
+    private void write(OutputStream to, byte[] bytes, int len, long start) throws IOException {
+        throttle(len);
+        long write = System.nanoTime();
+        to.write(bytes, 0, len);
+        counters.onWrite(System.nanoTime() - write, len);
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer queue of chunks. Closing it, when the merge ends, stops the sources.
+     */
+    static final class Chunks implements Closeable {
+
+        private static final long PARK = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final Queue<PipeChunk> queue = new ConcurrentLinkedQueue<PipeChunk>();
+        private final Semaphore room;
+        private final AtomicInteger sources;
+        private volatile Thread writer;
+        private volatile boolean waiting;
+        private volatile boolean closed;
+
+        private Chunks(int capacity, int sources) {
+            this.room = new Semaphore(capacity);
+            this.sources = new AtomicInteger(sources);
+        }
+
+        /**
+         * @return the endpoint of one source, closed when the source ends
+         */
+        Closeable source() {
+            return new Closeable() {
+                private boolean ended;
+
+                @Override
+                public synchronized void close() {
+                    if (!ended) {
+                        ended = true;
+                        sources.decrementAndGet();
+                        wakeUp();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Waits for room in the queue
+         *
+         * @return false if the merge has ended
+         */
+        boolean offer(PipeChunk chunk) throws InterruptedIOException {
+            try {
+                room.acquire();
+            } catch (InterruptedException e) {
+                chunk.release();
+                throw new InterruptedIOException();
+            }
+            if (closed) {
+                chunk.release();
+                return false;
+            }
+            queue.offer(chunk);
+            wakeUp();
+            return true;
+        }
+
+        PipeChunk poll() {
+            PipeChunk chunk = queue.poll();
+            if (chunk != null) {
+                room.release();
+            }
+            return chunk;
+        }
+
+        /**
+         * Waits for the next chunk
+         *
+         * @return false if all the sources have ended and the queue is empty
+         */
+        boolean await() throws InterruptedIOException {
+            while (queue.isEmpty()) {
+                if (sources.get() == 0) {
+                    return !queue.isEmpty();
+                }
+                waiting = true;
+                if (queue.isEmpty() && sources.get() > 0) {
+                    LockSupport.parkNanos(this, PARK);
+                }
+                waiting = false;
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            PipeChunk chunk;
+            while ((chunk = queue.poll()) != null) {
+                chunk.release();
+            }
+            // unblock the sources waiting for room
+            room.release(Integer.MAX_VALUE / 2);
+        }
+
+        private void wakeUp() {
+            Thread t = writer;
+            if (waiting && t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    private static final class SourcePipe extends PipeSkeleton<InputStream, Closeable> implements Source {
+
+        private final Chunks chunks;
+        private final int bufferSize;
+        private final boolean lines;
+        private volatile byte[] prefix = new byte[0];
+
+        private SourcePipe(String name, InputStream from, Chunks chunks, int bufferSize, boolean lines) {
+            super(name, from, chunks.source());
+            this.chunks = chunks;
+            this.bufferSize = bufferSize;
+            this.lines = lines;
+        }
+
+        @Override
+        public Source prefixedBy(String prefix) {
+            if (prefix == null) throw new IllegalArgumentException("Missing prefix");
+            this.prefix = prefix.getBytes(UTF_8);
+            return this;
+        }
+
+        @Override
+        protected void copy(InputStream from, Closeable to) throws IOException, BrokenPipeException {
+            if (lines) {
+                copyLines(from);
+            } else {
+                copyChunks(from);
+            }
+        }
+
+        private void copyChunks(InputStream from) throws IOException {
+            byte[] prefix = this.prefix;
+            long start = System.nanoTime();
+            while (canCopy()) {
+                byte[] buffer = PipeBuffers.shared().bytes(prefix.length + bufferSize);
+                int len;
+                try {
+                    len = from.read(buffer, prefix.length, bufferSize);
+                } catch (IOException e) {
+                    PipeBuffers.shared().release(buffer);
+                    throw e;
+                }
+                if (len == -1) {
+                    PipeBuffers.shared().release(buffer);
+                    break;
+                }
+                long read = System.nanoTime();
+                counters.onRead(read - start, len);
+                throttle(len);
+                System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+                if (!chunks.offer(new PipeChunk(buffer, prefix.length + len, 1))) {
+                    break;
+                }
+                start = System.nanoTime();
+                counters.onWrite(start - read, len);
+            }
+        }
+
+        /**
+         * Only queues complete lines, except for lines longer than the buffer
+         */
+        private void copyLines(InputStream from) throws IOException {
+            byte[] buffer = PipeBuffers.shared().bytes(bufferSize);
+            try {
+                int size = 0;
+                boolean lineStart = true;
+                long start = System.nanoTime();
+                while (canCopy()) {
+                    int len = from.read(buffer, size, bufferSize - size);
+                    if (len == -1) {
+                        if (size > 0) {
+                            // terminates the last line, so that it is not glued to a line of another source
+                            if (size == bufferSize) {
+                                if (!queue(buffer, size, lineStart, start)) {
+                                    break;
+                                }
+                                lineStart = false;
+                                size = 0;
+                            }
+                            buffer[size++] = '\n';
+                            queue(buffer, size, lineStart, start);
+                        }
+                        break;
+                    }
+                    counters.onRead(System.nanoTime() - start, len);
+                    throttle(len);
+                    size += len;
+                    int end = size;
+                    while (end > 0 && buffer[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0 && size == bufferSize) {
+                        // line longer than the buffer
+                        end = size;
+                    }
+                    if (end > 0) {
+                        if (!queue(buffer, end, lineStart, start)) {
+                            break;
+                        }
+                        lineStart = buffer[end - 1] == '\n';
+                        System.arraycopy(buffer, end, buffer, 0, size - end);
+                        size -= end;
+                        start = System.nanoTime();
+                    }
+                }
+            } finally {
+                PipeBuffers.shared().release(buffer);
+            }
+        }
+
+        /**
+         * Queues a copy of the given lines, each preceded by the prefix
+         */
+        private boolean queue(byte[] buffer, int len, boolean lineStart, long start) throws IOException {
+            byte[] prefix = this.prefix;
+            int starts = lineStart ? 1 : 0;
+            for (int i = 0; i < len - 1; i++) {
+                if (buffer[i] == '\n') {
+                    starts++;
+                }
+            }
+            byte[] bytes = PipeBuffers.shared().bytes(len + starts * prefix.length);
+            int size = 0;
+            int from = 0;
+            for (int i = 0; i < len; i++) {
+                if (buffer[i] == '\n' || i == len - 1) {
+                    if (from > 0 || lineStart) {
+                        System.arraycopy(prefix, 0, bytes, size, prefix.length);
+                        size += prefix.length;
+                    }
+                    System.arraycopy(buffer, from, bytes, size, i + 1 - from);
+                    size += i + 1 - from;
+                    from = i + 1;
+                }
+            }
+            if (!chunks.offer(new PipeChunk(bytes, size, 1))) {
+                return false;
+            }
+            counters.onWrite(System.nanoTime() - start, len);
+            return true;
+        }
+    }
+}
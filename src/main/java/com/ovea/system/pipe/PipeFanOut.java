@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tee implementation: the copier reads the source into pooled chunks and queues them to the sink pipes.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeFanOut<IN extends Closeable, OUT extends Closeable> extends PipeSkeleton<IN, PipeFanOut.Sinks<OUT>> implements PipeTee {
+
+    static final Io<InputStream, OutputStream> STREAMS = new Io<InputStream, OutputStream>() {
+        @Override
+        int read(InputStream from, byte[] buffer, int len) throws IOException {
+            return from.read(buffer, 0, len);
+        }
+
+        @Override
+        void write(OutputStream to, byte[] buffer, int len) throws IOException {
+            to.write(buffer, 0, len);
+        }
+    };
+
+    /**
+     * Channels must be in blocking mode
+     */
+    static final Io<ReadableByteChannel, WritableByteChannel> CHANNELS = new Io<ReadableByteChannel, WritableByteChannel>() {
+        @Override
+        int read(ReadableByteChannel from, byte[] buffer, int len) throws IOException {
+            return from.read(ByteBuffer.wrap(buffer, 0, len));
+        }
+
+        @Override
+        void write(WritableByteChannel to, byte[] buffer, int len) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buffer, 0, len);
+            while (bb.hasRemaining()) {
+                to.write(bb);
+            }
+        }
+    };
+
+    private final Io<IN, OUT> io;
+    private final int bufferSize;
+    private final List<SinkPipe<OUT>> sinks;
+
+    private PipeFanOut(String name, IN from, Sinks<OUT> to, int bufferSize, Io<IN, OUT> io) {
+        super(name, from, to);
+        this.io = io;
+        this.bufferSize = bufferSize;
+        this.sinks = to.pipes;
+    }
+
+    static <IN extends Closeable, OUT extends Closeable> PipeTee create(String name, IN from, List<OUT> to, int bufferSize, int queueSize, Io<IN, OUT> io) {
+        if (name == null) throw new IllegalArgumentException("Missing pipe name");
+        if (bufferSize <= 0) throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        List<SinkPipe<OUT>> pipes = new ArrayList<SinkPipe<OUT>>(to.size());
+        for (int i = 0; i < to.size(); i++) {
+            if (to.get(i) == null) throw new IllegalArgumentException("Missing sink " + i);
+            pipes.add(new SinkPipe<OUT>(name + "-sink-" + i, new PipeChunkQueue(queueSize), to.get(i), io));
+        }
+        return new PipeFanOut<IN, OUT>(name, from, new Sinks<OUT>(pipes), bufferSize, io);
+    }
+
+    @Override
+    public List<Sink> sinks() {
+        return Collections.<Sink>unmodifiableList(sinks);
+    }
+
+    @Override
+    protected void copy(IN from, Sinks<OUT> to) throws IOException, BrokenPipeException {
+        for (SinkPipe<OUT> sink : sinks) {
+            sink.connect();
+        }
+        try {
+            long start = System.nanoTime();
+            while (canCopy()) {
+                byte[] buffer = PipeBuffers.shared().bytes(bufferSize);
+                int len = io.read(from, buffer, bufferSize);
+                if (len <= 0) {
+                    PipeBuffers.shared().release(buffer);
+                    if (len == -1) {
+                        break;
+                    }
+                    continue;
+                }
+                long read = System.nanoTime();
+                counters.onRead(read - start, len);
+                throttle(len);
+                if (!dispatch(new PipeChunk(buffer, len, sinks.size()))) {
+                    // all the sinks are gone
+                    break;
+                }
+                start = System.nanoTime();
+                counters.onWrite(start - read, len);
+            }
+        } finally {
+            to.close();
+        }
+        for (SinkPipe<OUT> sink : sinks) {
+            try {
+                sink.connect().await();
+            } catch (BrokenPipeException ignored) {
+                // reported to the listener of the sink
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    void onInterrupt() {
+        for (SinkPipe<OUT> sink : sinks) {
+            sink.connect().interrupt();
+        }
+    }
+
+    /**
+     * @return false if no sink accepts chunks anymore
+     */
+    private boolean dispatch(PipeChunk chunk) throws InterruptedIOException {
+        boolean accepted = false;
+        for (SinkPipe<OUT> sink : sinks) {
+            accepted |= sink.accept(chunk);
+        }
+        return accepted;
+    }
+
+    abstract static class Io<IN, OUT> {
+        abstract int read(IN from, byte[] buffer, int len) throws IOException;
+
+        abstract void write(OUT to, byte[] buffer, int len) throws IOException;
+    }
+
+    /**
+     * Destination of the tee: closing it ends the queues of the sinks, which write what is left
+     */
+    static final class Sinks<OUT extends Closeable> implements Closeable {
+
+        private final List<SinkPipe<OUT>> pipes;
+
+        private Sinks(List<SinkPipe<OUT>> pipes) {
+            this.pipes = pipes;
+        }
+
+        @Override
+        public void close() {
+            for (SinkPipe<OUT> pipe : pipes) {
+                pipe.queue.end();
+            }
+        }
+    }
+
+    private static final class SinkPipe<OUT extends Closeable> extends PipeSkeleton<PipeChunkQueue, OUT> implements Sink {
+
+        private final PipeChunkQueue queue;
+        private final Io<?, OUT> io;
+        private final LongAdder dropped = new LongAdder();
+        private volatile PipeOverflow overflow = PipeOverflow.BLOCK;
+
+        private SinkPipe(String name, PipeChunkQueue queue, OUT to, Io<?, OUT> io) {
+            super(name, queue, to);
+            this.queue = queue;
+            this.io = io;
+        }
+
+        @Override
+        public Sink overflow(PipeOverflow overflow) {
+            if (overflow == null) throw new IllegalArgumentException("Missing overflow policy");
+            this.overflow = overflow;
+            return this;
+        }
+
+        @Override
+        public PipeOverflow overflow() {
+            return overflow;
+        }
+
+        @Override
+        public long dropped() {
+            return dropped.sum();
+        }
+
+        @Override
+        public int queued() {
+            return queue.size();
+        }
+
+        /**
+         * @return false if this sink does not accept chunks anymore
+         */
+        boolean accept(PipeChunk chunk) throws InterruptedIOException {
+            switch (overflow) {
+                case BLOCK:
+                    if (queue.put(chunk)) {
+                        return true;
+                    }
+                    break;
+                case DROP:
+                    if (queue.offer(chunk)) {
+                        return true;
+                    }
+                    if (!queue.isClosed()) {
+                        dropped.increment();
+                        chunk.release();
+                        return true;
+                    }
+                    break;
+                case DISCONNECT:
+                    if (queue.offer(chunk)) {
+                        return true;
+                    }
+                    if (!queue.isClosed()) {
+                        queue.fail(new IOException("Sink too slow: disconnected"));
+                    }
+                    break;
+            }
+            chunk.release();
+            return false;
+        }
+
+        @Override
+        protected void copy(PipeChunkQueue from, OUT to) throws IOException, BrokenPipeException {
+            PipeChunk chunk;
+            long start = System.nanoTime();
+            while (canCopy() && (chunk = from.take()) != null) {
+                long read = System.nanoTime();
+                counters.onRead(read - start, chunk.length);
+                try {
+                    throttle(chunk.length);
+                    io.write(to, chunk.bytes, chunk.length);
+                } finally {
+                    chunk.release();
+                }
+                start = System.nanoTime();
+                counters.onWrite(start - read, chunk.length);
+            }
+        }
+    }
+}
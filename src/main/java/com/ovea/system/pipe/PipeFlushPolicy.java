@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.*;
+
+/**
+ * When stream pipes flush their destination. Without flushing, data written to a buffered destination waits until the
+ * buffer is full; flushing every chunk gives the lowest latency and the most writes.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeFlushPolicy {
+
+    private static enum Mode {NEVER, EVERY_CHUNK, WHEN_IDLE, COALESCE}
+
+    /**
+     * Never flush: the destination flushes when it decides to, and when closed
+     */
+    public static final PipeFlushPolicy NEVER = new PipeFlushPolicy(Mode.NEVER, 0, 0);
+
+    /**
+     * Flush after each chunk read
+     */
+    public static final PipeFlushPolicy EVERY_CHUNK = new PipeFlushPolicy(Mode.EVERY_CHUNK, 0, 0);
+
+    /**
+     * Flush when no more input is immediately available, so that bursts of input are written together
+     */
+    public static final PipeFlushPolicy WHEN_IDLE = new PipeFlushPolicy(Mode.WHEN_IDLE, 0, 0);
+
+    private final Mode mode;
+    private final long threshold;
+    private final long maxDelay;
+
+    private PipeFlushPolicy(Mode mode, long threshold, long maxDelay) {
+        this.mode = mode;
+        this.threshold = threshold;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Flush when the unflushed data reaches a threshold, or when the oldest unflushed byte has waited for the maximum
+     * delay, like Nagle's algorithm
+     */
+    public static PipeFlushPolicy coalesce(long threshold, long maxDelay, TimeUnit unit) {
+        if (threshold <= 0) throw new IllegalArgumentException("Invalid threshold: " + threshold);
+        if (maxDelay <= 0) throw new IllegalArgumentException("Invalid delay: " + maxDelay);
+        if (unit == null) throw new IllegalArgumentException("Missing time unit");
+        return new PipeFlushPolicy(Mode.COALESCE, threshold, unit.toNanos(maxDelay));
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.COALESCE ? "COALESCE(" + threshold + "B, " + TimeUnit.NANOSECONDS.toMillis(maxDelay) + "ms)" : mode.name();
+    }
+
+    /**
+     * @return true if the policy flushes when idle and no more input is immediately available. To be called by the
+     *         reading thread: <code>available()</code> may wait for a read in progress.
+     */
+    boolean isIdle(InputStream from) throws IOException {
+        return mode == Mode.WHEN_IDLE && from.available() == 0;
+    }
+
+    /**
+     * @return the flusher of one copy, or null if the policy never flushes
+     */
+    Flusher flusher(Flushable to) {
+        return mode == Mode.NEVER ? null : new Flusher(this, to);
+    }
+
+    /**
+     * Flushes the destination of one copy. Writes to the destination must be synchronized on the flusher, because the
+     * coalescing policy flushes from a timer thread.
+     */
+    static final class Flusher implements Runnable {
+
+        private final PipeFlushPolicy policy;
+        private final Flushable to;
+        private long pending;
+        private long pendingSince;
+        private ScheduledFuture<?> timer;
+        private IOException failure;
+        private boolean closed;
+
+        private Flusher(PipeFlushPolicy policy, Flushable to) {
+            this.policy = policy;
+            this.to = to;
+        }
+
+        synchronized void onWrite(int len, InputStream from) throws IOException {
+            onWrite(len, policy.isIdle(from));
+        }
+
+        synchronized void onWrite(int len, Reader from) throws IOException {
+            onWrite(len, policy.mode == Mode.WHEN_IDLE && !from.ready());
+        }
+
+        /**
+         * Flushes what is pending at the end of the input
+         */
+        synchronized void end() throws IOException {
+            cancel();
+            if (pending > 0) {
+                flush();
+            }
+        }
+
+        /**
+         * Stops the timer
+         */
+        synchronized void cancel() {
+            closed = true;
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            timer = null;
+            if (closed || pending == 0) {
+                return;
+            }
+            long wait = pendingSince + policy.maxDelay - System.nanoTime();
+            if (wait > 0) {
+                timer = Timer.schedule(this, wait);
+                return;
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                // reported to the copier at its next write
+                failure = e;
+            }
+        }
+
+        /**
+         * @param idle if no more input was immediately available, as seen by the reading thread
+         */
+        synchronized void onWrite(int len, boolean idle) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (pending == 0) {
+                pendingSince = System.nanoTime();
+            }
+            pending += len;
+            switch (policy.mode) {
+                case EVERY_CHUNK:
+                    flush();
+                    break;
+                case WHEN_IDLE:
+                    if (idle) {
+                        flush();
+                    }
+                    break;
+                case COALESCE:
+                    if (pending >= policy.threshold) {
+                        flush();
+                    } else if (timer == null) {
+                        timer = Timer.schedule(this, policy.maxDelay);
+                    }
+                    break;
+            }
+        }
+
+        private void flush() throws IOException {
+            pending = 0;
+            to.flush();
+        }
+    }
+
+    private static final class Timer {
+
+        private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pipe-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);
+        }
+
+        static ScheduledFuture<?> schedule(Runnable task, long delay) {
+            return EXECUTOR.schedule(task, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distribution of durations in power of two buckets: bucket <code>i</code> counts the durations lower than
+ * <code>2^i</code> nanoseconds and not counted in the previous buckets.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface PipeHistogram {
+
+    /**
+     * Number of recorded durations
+     */
+    long count();
+
+    /**
+     * Sum of the recorded durations
+     */
+    long total(TimeUnit unit);
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding this percentile, or 0 if nothing has been recorded
+     */
+    long percentile(double percentile, TimeUnit unit);
+
+    int buckets();
+
+    long count(int bucket);
+
+    long upperBound(int bucket, TimeUnit unit);
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import com.ovea.system.util.LinuxIO;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copies to a file through memory-mapped windows sliding over it, so that files of any size are written without heap
+ * buffers. The source channel, or the file stream found under the source stream, reads straight into the windows. Other
+ * streams are read through a pooled buffer. The file is truncated to the bytes copied when the pipe ends.
+ * <p/>
+ * The JDK drains the output of an exited process in memory and closes its file stream: once the channel of a source
+ * stream is closed or at its end, the rest is read through the stream.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeMappedSink<IN extends Closeable> extends PipeSkeleton<IN, FileChannel> {
+
+    private final ReadableByteChannel channel;
+    private final int windowSize;
+
+    private PipeMappedSink(String name, IN from, FileChannel to, ReadableByteChannel channel, int windowSize) {
+        super(name, from, to);
+        if (windowSize <= 0) throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        this.channel = channel;
+        this.windowSize = windowSize;
+    }
+
+    static Pipe create(String name, InputStream from, Path sink, int windowSize) throws IOException {
+        if (from == null) throw new IllegalArgumentException("Missing origin endpoint");
+        if (sink == null) throw new IllegalArgumentException("Missing destination endpoint");
+        FileInputStream file = LinuxIO.unwrap(from);
+        return new PipeMappedSink<InputStream>(name, from, open(sink), file == null ? null : file.getChannel(), windowSize);
+    }
+
+    static Pipe create(String name, ReadableByteChannel from, Path sink, int windowSize) throws IOException {
+        if (from == null) throw new IllegalArgumentException("Missing origin endpoint");
+        if (sink == null) throw new IllegalArgumentException("Missing destination endpoint");
+        return new PipeMappedSink<ReadableByteChannel>(name, from, open(sink), from, windowSize);
+    }
+
+    @Override
+    protected void copy(IN from, FileChannel to) throws IOException, BrokenPipeException {
+        MappedByteBuffer window = null;
+        byte[] copy = null;
+        long position = 0;
+        boolean direct = channel != null;
+        try {
+            long start = System.nanoTime();
+            while (canCopy()) {
+                if (window == null || !window.hasRemaining()) {
+                    PipeMapping.unmap(window);
+                    window = null;
+                    // mapping past the end grows the file
+                    window = to.map(FileChannel.MapMode.READ_WRITE, position, windowSize);
+                }
+                int max = Math.min(window.remaining(), PipeMapping.CHUNK);
+                int len;
+                if (direct) {
+                    window.limit(window.position() + max);
+                    try {
+                        len = channel.read(window);
+                    } catch (ClosedChannelException e) {
+                        if (!(from instanceof InputStream) || !canCopy()) {
+                            throw e;
+                        }
+                        len = -1;
+                    } finally {
+                        window.limit(window.capacity());
+                    }
+                    if (len == -1 && from instanceof InputStream) {
+                        // read what the JDK may have taken from us through the stream
+                        direct = false;
+                        continue;
+                    }
+                } else {
+                    if (copy == null) {
+                        copy = PipeBuffers.shared().bytes(PipeMapping.CHUNK);
+                    }
+                    len = ((InputStream) from).read(copy, 0, max);
+                    if (len > 0) {
+                        window.put(copy, 0, len);
+                    }
+                }
+                if (len == -1) {
+                    break;
+                }
+                long read = System.nanoTime();
+                counters.onRead(read - start, len);
+                throttle(len);
+                position += len;
+                start = System.nanoTime();
+                counters.onWrite(start - read, len);
+            }
+        } finally {
+            PipeMapping.unmap(window);
+            PipeBuffers.shared().release(copy);
+            if (to.isOpen()) {
+                to.truncate(position);
+            }
+        }
+    }
+
+    private static FileChannel open(Path sink) throws IOException {
+        // mapping for writing needs a readable channel
+        return FileChannel.open(sink, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
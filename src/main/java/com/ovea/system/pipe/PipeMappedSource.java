@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import com.ovea.system.util.LinuxIO;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copies a file through memory-mapped windows sliding over it, so that files of any size are read without heap buffers.
+ * The windows are written to the destination channel, or to the file stream found under the destination stream. Other
+ * streams are written through a pooled buffer.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeMappedSource<OUT extends Closeable> extends PipeSkeleton<FileChannel, OUT> {
+
+    private final WritableByteChannel channel;
+    private final int windowSize;
+
+    private PipeMappedSource(String name, FileChannel from, OUT to, WritableByteChannel channel, int windowSize) {
+        super(name, from, to);
+        if (windowSize <= 0) throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        this.channel = channel;
+        this.windowSize = windowSize;
+    }
+
+    static Pipe create(String name, Path source, OutputStream to, int windowSize) throws IOException {
+        if (source == null) throw new IllegalArgumentException("Missing origin endpoint");
+        if (to == null) throw new IllegalArgumentException("Missing destination endpoint");
+        FileOutputStream file = LinuxIO.unwrap(to);
+        return new PipeMappedSource<OutputStream>(name, FileChannel.open(source, StandardOpenOption.READ), to, file == null ? null : file.getChannel(), windowSize);
+    }
+
+    static Pipe create(String name, Path source, WritableByteChannel to, int windowSize) throws IOException {
+        if (source == null) throw new IllegalArgumentException("Missing origin endpoint");
+        if (to == null) throw new IllegalArgumentException("Missing destination endpoint");
+        return new PipeMappedSource<WritableByteChannel>(name, FileChannel.open(source, StandardOpenOption.READ), to, to, windowSize);
+    }
+
+    @Override
+    protected void copy(FileChannel from, OUT to) throws IOException, BrokenPipeException {
+        MappedByteBuffer window = null;
+        byte[] copy = null;
+        try {
+            long position = 0;
+            long start = System.nanoTime();
+            while (canCopy()) {
+                if (window == null || !window.hasRemaining()) {
+                    PipeMapping.unmap(window);
+                    window = null;
+                    // the size is read again for each window, to follow a growing file
+                    long size = from.size();
+                    if (position >= size) {
+                        break;
+                    }
+                    window = from.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+                }
+                int len = Math.min(window.remaining(), PipeMapping.CHUNK);
+                long read = System.nanoTime();
+                counters.onRead(read - start, len);
+                throttle(len);
+                if (channel != null) {
+                    window.limit(window.position() + len);
+                    while (window.hasRemaining()) {
+                        channel.write(window);
+                    }
+                    window.limit(window.capacity());
+                } else {
+                    if (copy == null) {
+                        copy = PipeBuffers.shared().bytes(PipeMapping.CHUNK);
+                    }
+                    window.get(copy, 0, len);
+                    ((OutputStream) to).write(copy, 0, len);
+                }
+                position += len;
+                start = System.nanoTime();
+                counters.onWrite(start - read, len);
+            }
+        } finally {
+            PipeMapping.unmap(window);
+            PipeBuffers.shared().release(copy);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Sliding windows of the memory-mapped file pipes
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeMapping {
+
+    static final int WINDOW = 64 * 1024 * 1024;
+    /**
+     * Bytes moved at once inside a window, so that the pipe is throttled, measured and interrupted smoothly
+     */
+    static final int CHUNK = 1024 * 1024;
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            // Java 9+
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+            unsafe = f.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private PipeMapping() {
+    }
+
+    /**
+     * Releases a window without waiting for the garbage collector, when the JVM allows it. The window must not be used
+     * anymore.
+     */
+    static void unmap(MappedByteBuffer window) {
+        if (window != null && INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, window);
+            } catch (Exception ignored) {
+                // left to the garbage collector
+            }
+        }
+    }
+}
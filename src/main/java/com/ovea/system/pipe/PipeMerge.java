@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.util.List;
+
+/**
+ * Pipe copying several sources to one sink. Each source is read by its own pipe, which queues whole chunks, or whole
+ * lines, to a single writer: the writes of the sources are never interleaved and are batched into larger writes.
+ * <p/>
+ * In line mode, a last line without line terminator gets one. A failing source only breaks itself. The merge completes
+ * when all the sources have ended.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface PipeMerge extends Pipe {
+
+    /**
+     * The sources, in the order given at creation
+     */
+    List<Source> sources();
+
+    interface Source extends Pipe {
+
+        /**
+         * Set a prefix written before each chunk, or each line, of this source. Must be set before connecting.
+         */
+        Source prefixedBy(String prefix);
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters of a pipe, updated while it copies. Character pipes count characters instead of bytes.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface PipeMetrics {
+
+    /**
+     * Number of bytes written to the destination
+     */
+    long bytes();
+
+    /**
+     * Number of writes to the destination
+     */
+    long chunks();
+
+    /**
+     * Time from the connection to the first byte read, or -1 if no byte has been read yet
+     */
+    long timeToFirstByte(TimeUnit unit);
+
+    /**
+     * Time spent reading from the origin, including waiting for data
+     */
+    PipeHistogram readWaits();
+
+    /**
+     * Time spent writing to the destination, including waiting for it to accept data and for the rate limiters
+     */
+    PipeHistogram writeWaits();
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+/**
+ * What a tee does with a chunk when the queue of a slow sink is full
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public enum PipeOverflow {
+
+    /**
+     * Wait for the sink: the slowest sink sets the pace of all the others
+     */
+    BLOCK,
+
+    /**
+     * Drop the chunk for this sink only
+     */
+    DROP,
+
+    /**
+     * Break the sink, which reports {@link PipeListener#onBroken(Pipe, BrokenPipeException)}
+     */
+    DISCONNECT
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket limiting the bandwidth of the pipes it is given to. A limiter given to several pipes shares its budget
+ * between them, and a pipe can be limited by several limiters, i.e. its own rate and the rate of its group.
+ * <p/>
+ * The bucket is a lock-free virtual schedule: each chunk reserves its transmission time and the copier parks until
+ * then, the burst size being the credit accumulated while idle. The rate can be changed at any time: parked copiers
+ * start over with the new rate.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeRateLimiter {
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AtomicLong schedule = new AtomicLong(System.nanoTime());
+    private final AtomicLong throttled = new AtomicLong();
+    private volatile Config config;
+
+    /**
+     * @param bytesPerSecond rate, or {@link #UNLIMITED}
+     * @param burst          bytes that can be sent at once after being idle
+     */
+    public PipeRateLimiter(long bytesPerSecond, long burst) {
+        configure(bytesPerSecond, burst);
+    }
+
+    /**
+     * Creates a limiter allowing bursts of a tenth of a second
+     */
+    public static PipeRateLimiter create(long bytesPerSecond) {
+        return new PipeRateLimiter(bytesPerSecond, Math.max(1, bytesPerSecond / 10));
+    }
+
+    /**
+     * Changes the rate of the pipes using this limiter, without reconnecting them
+     */
+    public void configure(long bytesPerSecond, long burst) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("Invalid rate: " + bytesPerSecond);
+        if (burst <= 0) throw new IllegalArgumentException("Invalid burst: " + burst);
+        config = new Config(bytesPerSecond, burst);
+        // forget the reservations made at the previous rate
+        schedule.set(System.nanoTime());
+    }
+
+    public void setRate(long bytesPerSecond) {
+        configure(bytesPerSecond, config.burst);
+    }
+
+    public long rate() {
+        return config.rate;
+    }
+
+    public long burst() {
+        return config.burst;
+    }
+
+    /**
+     * Total time copiers have been parked by this limiter
+     */
+    public long throttled(TimeUnit unit) {
+        return unit.convert(throttled.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits until the given number of bytes can be sent
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (bytes <= 0) {
+            return;
+        }
+        while (true) {
+            Config c = config;
+            if (c.rate == UNLIMITED) {
+                return;
+            }
+            long cost = (long) (bytes * c.nanosPerByte);
+            long now = System.nanoTime();
+            long previous, next;
+            do {
+                previous = schedule.get();
+                next = (previous - now < 0 ? now : previous) + cost;
+            } while (!schedule.compareAndSet(previous, next));
+            long deadline = next - c.burstNanos;
+            if (deadline - now <= 0 || park(deadline, c)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        Config c = config;
+        return "PipeRateLimiter[rate=" + (c.rate == UNLIMITED ? "unlimited" : c.rate + "B/s") + ", burst=" + c.burst + "]";
+    }
+
+    /**
+     * @return false if the limiter has been reconfigured while parked
+     */
+    private boolean park(long deadline, Config c) throws InterruptedIOException {
+        long start = System.nanoTime();
+        try {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                if (config != c) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK));
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+            return true;
+        } finally {
+            throttled.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static final class Config {
+
+        final long rate;
+        final long burst;
+        final double nanosPerByte;
+        final long burstNanos;
+
+        Config(long rate, long burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.nanosPerByte = rate == UNLIMITED ? 0 : 1e9 / rate;
+            this.burstNanos = (long) (burst * nanosPerByte);
+        }
+    }
+}
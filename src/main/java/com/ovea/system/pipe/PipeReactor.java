@@ -0,0 +1,399 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies between {@link SelectableChannel} endpoints from a small set of selector threads instead of one blocked thread
+ * per pipe. Data is copied when the source is readable, and a pipe waits for its destination to be writable when it
+ * cannot take more data.
+ * <p/>
+ * Channels are switched to non-blocking mode when registered.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeReactor {
+
+    private static volatile PipeReactor shared;
+
+    private final Loop[] loops;
+    private final AtomicInteger pipes = new AtomicInteger();
+
+    private PipeReactor(String name, int threads) throws IOException {
+        if (threads <= 0) throw new IllegalArgumentException("Invalid selector thread count: " + threads);
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop(Selector.open());
+            Thread thread = new Thread(loops[i], name + "-" + i);
+            thread.setDaemon(true);
+            loops[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * The reactor used by pipes created with {@link Pipes#create(ReadableByteChannel, WritableByteChannel)} on
+     * selectable channels. It runs <code>ovea.pipe.reactor.threads</code> selector threads (default: number of
+     * processors, up to 4).
+     */
+    public static PipeReactor shared() {
+        PipeReactor reactor = shared;
+        if (reactor == null) {
+            synchronized (PipeReactor.class) {
+                reactor = shared;
+                if (reactor == null) {
+                    int threads = Integer.getInteger("ovea.pipe.reactor.threads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+                    try {
+                        shared = reactor = new PipeReactor("pipe-reactor", threads);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Unable to open selector: " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        return reactor;
+    }
+
+    public static PipeReactor create(String name, int threads) throws IOException {
+        if (name == null) throw new IllegalArgumentException("Missing reactor name");
+        return new PipeReactor(name, threads);
+    }
+
+    public static boolean isSelectable(Object from, Object to) {
+        return from instanceof SelectableChannel && to instanceof SelectableChannel;
+    }
+
+    /**
+     * Number of selector threads
+     */
+    public int threads() {
+        return loops.length;
+    }
+
+    /**
+     * Number of pipes currently copying
+     */
+    public int activePipes() {
+        return pipes.get();
+    }
+
+    /**
+     * Stops the selector threads. Registered pipes are not closed.
+     */
+    public void shutdown() {
+        for (Loop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PipeReactor[threads=" + threads() + ", pipes=" + activePipes() + "]";
+    }
+
+    /**
+     * Starts copying between two channels. The buffer is given back to {@link PipeBuffers#shared()} when the copy stops.
+     */
+    Closeable register(ReadableByteChannel from, WritableByteChannel to, ByteBuffer buffer, PipeCounters counters, PipeSkeleton.CopyCallback callback) throws IOException {
+        if (!isSelectable(from, to)) throw new IllegalArgumentException("Channels are not selectable");
+        ((SelectableChannel) from).configureBlocking(false);
+        ((SelectableChannel) to).configureBlocking(false);
+        // both directions between two channels, like in a tunnel, are run by the same thread: the end of one direction
+        // closes the channels before the other one can see them closed and fail
+        int hash = System.identityHashCode(from) ^ System.identityHashCode(to);
+        hash ^= hash >>> 16;
+        final Loop loop = loops[(hash & Integer.MAX_VALUE) % loops.length];
+        final Transfer transfer = new Transfer(loop, from, to, buffer, counters, callback);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                transfer.start();
+            }
+        });
+        return new Closeable() {
+            @Override
+            public void close() {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        transfer.stop();
+                    }
+                });
+            }
+        };
+    }
+
+    private final class Loop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean running = true;
+        private Thread thread;
+
+        private Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    try {
+                        selector.select();
+                    } catch (IOException ignored) {
+                        continue;
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (Throwable e) {
+                            // a listener failing at the end of a pipe must not stop the other pipes of the loop
+                            report(e);
+                        }
+                    }
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Endpoint endpoint = (Endpoint) key.attachment();
+                        try {
+                            endpoint.process(key);
+                        } catch (Throwable e) {
+                            report(e);
+                            endpoint.fail(e);
+                        }
+                    }
+                }
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void report(Throwable e) {
+        Thread current = Thread.currentThread();
+        current.getUncaughtExceptionHandler().uncaughtException(current, e);
+    }
+
+    /**
+     * State of a channel registered with a selector. A channel can be read by a pipe and written by another one, like
+     * in a tunnel.
+     */
+    private static final class Endpoint {
+
+        private final SelectionKey key;
+        private Transfer reader;
+        private Transfer writer;
+
+        private Endpoint(SelectableChannel channel, Selector selector) throws ClosedChannelException {
+            this.key = channel.register(selector, 0, this);
+        }
+
+        static Endpoint of(Object channel, Selector selector) throws ClosedChannelException {
+            SelectionKey key = ((SelectableChannel) channel).keyFor(selector);
+            return key == null || !key.isValid() ? new Endpoint((SelectableChannel) channel, selector) : (Endpoint) key.attachment();
+        }
+
+        void process(SelectionKey key) {
+            Transfer r = reader;
+            Transfer w = writer;
+            try {
+                int ready = key.readyOps();
+                if (r != null && (ready & SelectionKey.OP_READ) != 0) {
+                    r.onReadable();
+                }
+                if (w != null && w == writer && (ready & SelectionKey.OP_WRITE) != 0) {
+                    w.onWritable();
+                }
+            } catch (CancelledKeyException e) {
+                // channel closed by another thread
+                if (reader != null) reader.fail(new ClosedChannelException());
+                if (writer != null) writer.fail(new ClosedChannelException());
+            }
+        }
+
+        /**
+         * Stops the transfers of the channel after an unexpected failure. Those already stopped, like when the failure
+         * comes from a listener called at their end, are left alone.
+         */
+        void fail(Throwable e) {
+            IOException failure = e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+            for (Transfer transfer : new Transfer[]{reader, writer}) {
+                if (transfer != null) {
+                    try {
+                        transfer.fail(failure);
+                    } catch (Throwable t) {
+                        report(t);
+                    }
+                }
+            }
+        }
+
+        void update() {
+            int ops = 0;
+            if (reader != null && reader.wantsRead()) ops |= SelectionKey.OP_READ;
+            if (writer != null && writer.wantsWrite()) ops |= SelectionKey.OP_WRITE;
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException ignored) {
+                // the channel has been closed: the key is removed at next selection
+            }
+        }
+    }
+
+    private final class Transfer {
+
+        private final Loop loop;
+        private final ReadableByteChannel from;
+        private final WritableByteChannel to;
+        private final ByteBuffer buffer;
+        private final PipeCounters counters;
+        private final AtomicBoolean stopped = new AtomicBoolean();
+        private final PipeSkeleton.CopyCallback callback;
+        private Endpoint source;
+        private Endpoint sink;
+        private boolean eof;
+        private boolean counted;
+
+        private Transfer(Loop loop, ReadableByteChannel from, WritableByteChannel to, ByteBuffer buffer, PipeCounters counters, PipeSkeleton.CopyCallback callback) {
+            this.loop = loop;
+            this.from = from;
+            this.to = to;
+            this.buffer = buffer;
+            this.counters = counters;
+            this.callback = callback;
+        }
+
+        void start() {
+            if (stopped.get()) {
+                return;
+            }
+            pipes.incrementAndGet();
+            counted = true;
+            try {
+                source = Endpoint.of(from, loop.selector);
+                if (source.reader != null) throw new IOException("Channel already read by another pipe");
+                source.reader = this;
+                sink = Endpoint.of(to, loop.selector);
+                if (sink.writer != null) throw new IOException("Channel already written by another pipe");
+                sink.writer = this;
+                source.update();
+                sink.update();
+            } catch (IOException e) {
+                fail(e);
+            } catch (CancelledKeyException e) {
+                fail(new ClosedChannelException());
+            }
+        }
+
+        boolean wantsRead() {
+            return !eof && buffer.hasRemaining();
+        }
+
+        boolean wantsWrite() {
+            return buffer.position() > 0;
+        }
+
+        void onReadable() {
+            try {
+                long start = System.nanoTime();
+                int len = from.read(buffer);
+                counters.onRead(System.nanoTime() - start, len);
+                if (len == -1) {
+                    eof = true;
+                }
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void onWritable() {
+            try {
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                long start = System.nanoTime();
+                int written = to.write(buffer);
+                if (written > 0) {
+                    counters.onWrite(System.nanoTime() - start, written);
+                }
+            }
+            buffer.compact();
+            if (eof && buffer.position() == 0) {
+                if (stop()) {
+                    callback.onEnd();
+                }
+            } else {
+                source.update();
+                sink.update();
+            }
+        }
+
+        void fail(IOException e) {
+            if (stop()) {
+                callback.onBroken(e);
+            }
+        }
+
+        boolean stop() {
+            if (stopped.compareAndSet(false, true)) {
+                if (counted) {
+                    pipes.decrementAndGet();
+                }
+                PipeBuffers.shared().release(buffer);
+                if (source != null && source.reader == this) {
+                    source.reader = null;
+                    source.update();
+                }
+                if (sink != null && sink.writer == this) {
+                    sink.writer = null;
+                    sink.update();
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+}
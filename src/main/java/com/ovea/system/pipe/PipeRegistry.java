@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import com.ovea.system.proc.FutureProcess;
+import com.ovea.system.proc.ProcessPipe;
+import com.ovea.system.tunnel.Tunnel;
+import com.ovea.system.util.ProcUtils;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live pipes, tunnels and processes of the JVM. They join the registry when created and leave it when they end. The
+ * registry only holds them weakly, so that members dropped without being connected do not leak.
+ * <p/>
+ * The global registry is exposed in the platform MBean server, see {@link PipeRegistryMXBean}. Can be disabled with
+ * <code>-Dovea.pipe.registry=false</code>.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeRegistry implements PipeRegistryMXBean {
+
+    public static enum Kind {PIPE, TUNNEL, PROCESS_PIPE, PROCESS}
+
+    private static final PipeRegistry GLOBAL = new PipeRegistry(Boolean.parseBoolean(System.getProperty("ovea.pipe.registry", "true")));
+
+    static {
+        if (GLOBAL.enabled) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL, new ObjectName("com.ovea.system:type=PipeRegistry"));
+            } catch (Exception ignored) {
+                // already registered by another class loader, or no management
+            }
+        }
+    }
+
+    private final boolean enabled;
+    // concurrent maps lock per bin: joining and leaving do not contend
+    private final Set<Registration> members = Collections.newSetFromMap(new ConcurrentHashMap<Registration, Boolean>(256, 0.75f, 64));
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private final LongAdder[] joined = new LongAdder[Kind.values().length];
+
+    private PipeRegistry(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < joined.length; i++) {
+            joined[i] = new LongAdder();
+        }
+    }
+
+    public static PipeRegistry global() {
+        return GLOBAL;
+    }
+
+    public Registration join(Pipe pipe) {
+        return join(Kind.PIPE, pipe);
+    }
+
+    public Registration join(Tunnel tunnel) {
+        return join(Kind.TUNNEL, tunnel);
+    }
+
+    public Registration join(ProcessPipe process) {
+        return join(Kind.PROCESS_PIPE, process);
+    }
+
+    public Registration join(FutureProcess process) {
+        return join(Kind.PROCESS, process);
+    }
+
+    private Registration join(Kind kind, Object member) {
+        if (member == null) throw new IllegalArgumentException("Missing member");
+        Registration registration = new Registration(this, kind, member);
+        if (enabled) {
+            expunge();
+            members.add(registration);
+            joined[kind.ordinal()].increment();
+        }
+        return registration;
+    }
+
+    /**
+     * Removes the members collected without having left
+     */
+    private void expunge() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            members.remove(ref);
+        }
+    }
+
+    /**
+     * Number of live members of the given kind
+     */
+    public int size(Kind kind) {
+        int n = 0;
+        for (Registration registration : members) {
+            if (registration.kind == kind && registration.get() != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the live members of the given name
+     */
+    public List<Entry> find(String name) {
+        if (name == null) throw new IllegalArgumentException("Missing name");
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Registration registration : members) {
+            Entry entry = registration.entry();
+            if (entry != null && name.equals(entry.name)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public int getSize() {
+        expunge();
+        return members.size();
+    }
+
+    @Override
+    public Map<String, Integer> getStates() {
+        Map<String, Integer> states = new TreeMap<String, Integer>();
+        for (Registration registration : members) {
+            Object member = registration.get();
+            if (member != null) {
+                String key = registration.kind + "." + state(member);
+                Integer n = states.get(key);
+                states.put(key, n == null ? 1 : n + 1);
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public Map<String, Long> getJoined() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Kind kind : Kind.values()) {
+            counts.put(kind.name(), joined[kind.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getBytes() {
+        long bytes = 0;
+        for (Registration registration : members) {
+            Object member = registration.get();
+            if (member instanceof Pipe) {
+                bytes += ((Pipe) member).metrics().bytes();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getOldestAge() {
+        long now = System.nanoTime();
+        long oldest = 0;
+        for (Registration registration : members) {
+            if (registration.get() != null) {
+                oldest = Math.max(oldest, now - registration.created);
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(oldest);
+    }
+
+    @Override
+    public List<Entry> oldest(int max) {
+        if (max < 0) throw new IllegalArgumentException("Invalid count: " + max);
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Registration registration : members) {
+            Entry entry = registration.entry();
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.ageMillis < o2.ageMillis ? 1 : o1.ageMillis == o2.ageMillis ? 0 : -1;
+            }
+        });
+        return entries.size() > max ? new ArrayList<Entry>(entries.subList(0, max)) : entries;
+    }
+
+    @Override
+    public int interrupt(String name) {
+        if (name == null) throw new IllegalArgumentException("Missing name");
+        int n = 0;
+        for (Registration registration : members) {
+            Object member = registration.get();
+            if (member != null && name.equals(name(member)) && interrupt(member)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return "PipeRegistry" + getStates();
+    }
+
+    private static boolean interrupt(Object member) {
+        if (member instanceof Pipe) {
+            Pipe pipe = (Pipe) member;
+            // connecting a ready pipe would start it
+            if (pipe.isOpened()) {
+                pipe.connect().interruptAsync();
+                return true;
+            }
+            return false;
+        }
+        if (member instanceof Tunnel) {
+            ((Tunnel) member).interruptAsync();
+            return true;
+        }
+        if (member instanceof ProcessPipe) {
+            ((ProcessPipe) member).destroyAsync();
+            return true;
+        }
+        ((FutureProcess) member).process().destroy();
+        return true;
+    }
+
+    private static String name(Object member) {
+        if (member instanceof Pipe) {
+            return ((Pipe) member).name();
+        }
+        if (member instanceof FutureProcess) {
+            try {
+                return "process-" + ProcUtils.pid(((FutureProcess) member).process());
+            } catch (RuntimeException e) {
+                return "process-" + System.identityHashCode(member);
+            }
+        }
+        if (member instanceof ProcessPipe) {
+            return "process-pipe-" + System.identityHashCode(member);
+        }
+        return member.toString();
+    }
+
+    private static String state(Object member) {
+        if (member instanceof Pipe) {
+            Pipe pipe = (Pipe) member;
+            return pipe.isReady() ? "READY" : pipe.isOpened() ? "OPENED" : pipe.isClosed() ? "CLOSED" : pipe.isBroken() ? "BROKEN" : "INTERRUPTED";
+        }
+        if (member instanceof Tunnel) {
+            Tunnel tunnel = (Tunnel) member;
+            return tunnel.isOpened() ? "OPENED" : tunnel.isClosed() ? "CLOSED" : tunnel.isBroken() ? "BROKEN" : tunnel.isInterrupted() ? "INTERRUPTED" : "READY";
+        }
+        if (member instanceof ProcessPipe) {
+            return ((ProcessPipe) member).isAlive() ? "OPENED" : "CLOSED";
+        }
+        FutureProcess process = (FutureProcess) member;
+        return process.isCancelled() ? "INTERRUPTED" : process.isDone() ? "CLOSED" : "OPENED";
+    }
+
+    /**
+     * Membership of a pipe, tunnel or process, to end when it ends
+     */
+    public static final class Registration extends WeakReference<Object> {
+
+        private final PipeRegistry registry;
+        private final Kind kind;
+        private final long created = System.nanoTime();
+
+        private Registration(PipeRegistry registry, Kind kind, Object member) {
+            super(member, registry.collected);
+            this.registry = registry;
+            this.kind = kind;
+        }
+
+        public void leave() {
+            if (registry.members.remove(this)) {
+                clear();
+            }
+        }
+
+        private Entry entry() {
+            Object member = get();
+            return member == null ? null : new Entry(kind.name(), name(member), state(member), member instanceof Tunnel ? ((Tunnel) member).metrics().bytes() : member instanceof Pipe ? ((Pipe) member).metrics().bytes() : 0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - created));
+        }
+    }
+
+    /**
+     * Snapshot of a member of the registry
+     */
+    public static final class Entry {
+
+        private final String kind;
+        private final String name;
+        private final String state;
+        private final long bytes;
+        private final long ageMillis;
+
+        private Entry(String kind, String name, String state, long bytes, long ageMillis) {
+            this.kind = kind;
+            this.name = name;
+            this.state = state;
+            this.bytes = bytes;
+            this.ageMillis = ageMillis;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getAgeMillis() {
+            return ageMillis;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + name + " " + state + " bytes=" + bytes + " age=" + ageMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface of the {@link PipeRegistry}, registered in the platform MBean server as
+ * <code>com.ovea.system:type=PipeRegistry</code>
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface PipeRegistryMXBean {
+
+    /**
+     * Number of live pipes, tunnels and processes
+     */
+    int getSize();
+
+    /**
+     * Number of live members by kind and state, keyed like <code>PIPE.OPENED</code>
+     */
+    Map<String, Integer> getStates();
+
+    /**
+     * Number of members which have joined the registry since its creation, by kind
+     */
+    Map<String, Long> getJoined();
+
+    /**
+     * Bytes moved by the live pipes
+     */
+    long getBytes();
+
+    /**
+     * Age of the oldest live member, in milliseconds
+     */
+    long getOldestAge();
+
+    /**
+     * @return the oldest live members, up to the given number
+     */
+    List<PipeRegistry.Entry> oldest(int max);
+
+    /**
+     * Interrupts the connected pipes and tunnels and destroys the processes of the given name, without waiting
+     *
+     * @return the number of members interrupted
+     */
+    int interrupt(String name);
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer, single-consumer ring of preallocated buffers, letting a reader and a writer thread overlap. The reader
+ * fills the slot it claims and publishes it; the writer drains the slots in order. A full ring blocks the reader.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeRing {
+
+    private static final long PARK = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * Yields before parking: handing a slot over to a parked thread costs more than copying it in memory
+     */
+    private static final int SPINS = 64;
+
+    private final byte[][] slots;
+    private final ByteBuffer[] chunks;
+    private final int[] lengths;
+    private final boolean[] idle;
+    private final CountDownLatch drained = new CountDownLatch(1);
+    // reader and writer: the last one out releases the slots
+    private final AtomicInteger users = new AtomicInteger(2);
+
+    private volatile long head;
+    private volatile long tail;
+    private volatile Thread reader;
+    private volatile Thread writer;
+    private volatile boolean readerWaiting;
+    private volatile boolean writerWaiting;
+    private volatile boolean ended;
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    PipeRing(int depth, int bufferSize) {
+        if (depth <= 0) throw new IllegalArgumentException("Invalid ring depth: " + depth);
+        slots = new byte[depth][];
+        chunks = new ByteBuffer[depth];
+        lengths = new int[depth];
+        idle = new boolean[depth];
+        for (int i = 0; i < depth; i++) {
+            slots[i] = PipeBuffers.shared().bytes(bufferSize);
+            chunks[i] = ByteBuffer.wrap(slots[i]);
+        }
+    }
+
+    /**
+     * Reader side: waits for a free slot
+     *
+     * @return the slot to fill, or null if the ring is closed
+     */
+    byte[] claim() throws InterruptedIOException {
+        reader = Thread.currentThread();
+        for (int spin = 0; spin < SPINS && head - tail == slots.length; spin++) {
+            Thread.yield();
+        }
+        while (head - tail == slots.length && !closed) {
+            readerWaiting = true;
+            if (head - tail == slots.length && !closed) {
+                LockSupport.parkNanos(this, PARK);
+            }
+            readerWaiting = false;
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+        return closed ? null : slots[(int) (head % slots.length)];
+    }
+
+    /**
+     * Reader side: hands the claimed slot to the writer
+     *
+     * @param idle if no more input was available after filling the slot
+     */
+    void publish(int length, boolean idle) {
+        int index = (int) (head % slots.length);
+        lengths[index] = length;
+        this.idle[index] = idle;
+        head = head + 1;
+        if (writerWaiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Reader side: no more slots will be published
+     */
+    void end() {
+        ended = true;
+        wakeUp(writer);
+    }
+
+    /**
+     * Writer side: waits for a published slot
+     *
+     * @return the index of the slot to write, or -1 once the ring is ended and drained, or closed
+     */
+    int next() throws InterruptedIOException {
+        writer = Thread.currentThread();
+        for (int spin = 0; spin < SPINS && tail == head && !ended; spin++) {
+            Thread.yield();
+        }
+        while (tail == head) {
+            if (closed || ended && tail == head) {
+                return -1;
+            }
+            writerWaiting = true;
+            if (tail == head && !ended && !closed) {
+                LockSupport.parkNanos(this, PARK);
+            }
+            writerWaiting = false;
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+        return closed ? -1 : (int) (tail % slots.length);
+    }
+
+    byte[] slot(int index) {
+        return slots[index];
+    }
+
+    int length(int index) {
+        return lengths[index];
+    }
+
+    boolean isIdle(int index) {
+        return idle[index];
+    }
+
+    /**
+     * @return the published bytes of the slot, as a buffer
+     */
+    ByteBuffer chunk(int index) {
+        ByteBuffer chunk = chunks[index];
+        chunk.clear();
+        chunk.limit(lengths[index]);
+        return chunk;
+    }
+
+    /**
+     * @return true if the reader has ended without the ring being closed
+     */
+    boolean isComplete() {
+        return ended && !closed;
+    }
+
+    /**
+     * Writer side: gives the slot back to the reader
+     */
+    void consume() {
+        tail = tail + 1;
+        if (readerWaiting) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    /**
+     * Writer side: reports the end of the writer, with its failure if any
+     */
+    void writerDone(Throwable failure) {
+        if (failure != null) {
+            this.failure = failure;
+            close();
+        }
+        synchronized (this) {
+            drained.countDown();
+        }
+        leave();
+    }
+
+    /**
+     * Reader side: interrupts the writer if still running, when the reader ends first
+     */
+    synchronized void interruptWriter() {
+        Thread t = writer;
+        if (t != null && drained.getCount() > 0) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Reader side: waits for the writer to drain the ring
+     *
+     * @throws IOException the failure of the writer
+     */
+    void awaitWriter() throws IOException {
+        if (awaitStopped()) {
+            throw new InterruptedIOException();
+        }
+        Throwable t = failure;
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+    }
+
+    /**
+     * Reader side: waits for the writer to stop, even if interrupted, since the pipe releases the stages and the
+     * destination used by the writer once the reader returns. Close the ring first.
+     *
+     * @return true if the thread was interrupted while waiting. Its interrupt flag is set again.
+     */
+    boolean awaitStopped() {
+        boolean interrupted = false;
+        while (drained.getCount() > 0) {
+            try {
+                drained.await();
+            } catch (InterruptedException e) {
+                // passed on to the writer, the pipe being interrupted
+                interrupted = true;
+                interruptWriter();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return interrupted;
+    }
+
+    /**
+     * Stops both sides
+     */
+    void close() {
+        closed = true;
+        wakeUp(reader);
+        wakeUp(writer);
+    }
+
+    /**
+     * Reader side: the reader does not use the ring anymore
+     */
+    void readerDone() {
+        leave();
+    }
+
+    private void leave() {
+        if (users.decrementAndGet() == 0) {
+            for (byte[] slot : slots) {
+                PipeBuffers.shared().release(slot);
+            }
+        }
+    }
+
+    private static void wakeUp(Thread t) {
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+/**
+ * Adapts the buffer size of a pipe to its recent reads, between bounds: the size doubles after a few reads filling the
+ * buffer, and halves when the reads stay well below it. Used by the copier thread only.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeSizer {
+
+    /**
+     * Consecutive full reads before growing
+     */
+    private static final int GROW_AFTER = 4;
+    /**
+     * Reads since the last change before shrinking
+     */
+    private static final int SHRINK_AFTER = 16;
+
+    private final int min;
+    private final int max;
+    private volatile int size;
+    private int full;
+    private int reads;
+    private int average;
+
+    PipeSizer(int min, int max) {
+        if (min <= 0) throw new IllegalArgumentException("Invalid minimum buffer size: " + min);
+        if (max < min) throw new IllegalArgumentException("Invalid maximum buffer size: " + max);
+        this.min = min;
+        this.max = max;
+        this.size = min;
+        this.average = min;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the buffer size has changed
+     */
+    boolean onRead(int len) {
+        int size = this.size;
+        reads++;
+        // moving average over about 8 reads
+        average += (len - average) >> 3;
+        full = len >= size ? full + 1 : 0;
+        if (full >= GROW_AFTER && size < max) {
+            resize((int) Math.min((long) size * 2, max));
+            return true;
+        }
+        if (reads >= SHRINK_AFTER && average < size / 4 && size > min) {
+            resize(Math.max(size / 2, min));
+            return true;
+        }
+        return false;
+    }
+
+    private void resize(int size) {
+        this.size = size;
+        full = 0;
+        reads = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PipeSizer[" + min + ".." + max + ", size=" + size + "]";
+    }
+}
@@ -20,9 +20,12 @@ import com.ovea.system.util.IoUtils;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
@@ -32,12 +35,20 @@ abstract class PipeSkeleton<IN extends Closeable, OUT extends Closeable> impleme
     private static enum State {READY, OPENED, CLOSED, INTERRUPTED, BROKEN}
 
     private static final PipeListener EMPTY = new PipeListenerAdapter();
+    private static final PipeRateLimiter[] UNLIMITED = new PipeRateLimiter[0];
+    private static final PipeStage[] NO_STAGES = new PipeStage[0];
 
     private final AtomicReference<State> state = new AtomicReference<State>(State.READY);
     private final String name;
 
-    private PipeConnection connection;
+    final PipeCounters counters = new PipeCounters();
+    private final PipeRegistry.Registration registration;
+
+    private volatile PipeConnection connection;
     private PipeListener listener;
+    private PipeExecutor executor;
+    private volatile PipeRateLimiter[] limiters = UNLIMITED;
+    private volatile PipeStage[] stages = NO_STAGES;
     private IN from;
     private OUT to;
 
@@ -48,6 +59,7 @@ abstract class PipeSkeleton<IN extends Closeable, OUT extends Closeable> impleme
         this.from = from;
         this.to = to;
         this.name = name;
+        this.registration = PipeRegistry.global().join(this);
     }
 
     protected PipeSkeleton(IN from, OUT to) {
@@ -71,12 +83,55 @@ abstract class PipeSkeleton<IN extends Closeable, OUT extends Closeable> impleme
         return this;
     }
 
+    @Override
+    public final Pipe executedBy(PipeExecutor executor) {
+        if (executor == null) throw new IllegalArgumentException("Executor cannot be null");
+        this.executor = executor;
+        return this;
+    }
+
+    @Override
+    public final Pipe limitedBy(PipeRateLimiter... limiters) {
+        if (limiters == null) throw new IllegalArgumentException("Missing rate limiters");
+        for (PipeRateLimiter limiter : limiters) {
+            if (limiter == null) throw new IllegalArgumentException("Rate limiter cannot be null");
+        }
+        this.limiters = limiters.clone();
+        return this;
+    }
+
+    @Override
+    public final Pipe through(PipeStage... stages) {
+        if (stages == null) throw new IllegalArgumentException("Missing stages");
+        for (PipeStage stage : stages) {
+            if (stage == null) throw new IllegalArgumentException("Stage cannot be null");
+        }
+        if (!isStageable()) throw new UnsupportedOperationException("Pipe " + name + " cannot run stages");
+        this.stages = stages.clone();
+        return this;
+    }
+
+    @Override
+    public final PipeMetrics metrics() {
+        return counters;
+    }
+
     @Override
     public final PipeConnection connect() {
         if (state.compareAndSet(State.READY, State.OPENED)) {
-            connection = new Connection<IN, OUT>(this);
+            // published before the copy starts: the listeners of a pipe ending right away, like the other direction of
+            // a tunnel, connect it to get the connection
+            Connection<IN, OUT> c = new Connection<IN, OUT>(this);
+            connection = c;
+            c.start();
+            return c;
         }
-        return connection;
+        PipeConnection c;
+        while ((c = connection) == null) {
+            // being connected by another thread
+            Thread.yield();
+        }
+        return c;
     }
 
     @Override
@@ -108,22 +163,137 @@ abstract class PipeSkeleton<IN extends Closeable, OUT extends Closeable> impleme
         return !Thread.interrupted() && isOpened();
     }
 
+    /**
+     * Waits for the rate limiters of this pipe to allow sending the given number of bytes
+     */
+    protected final void throttle(long bytes) throws InterruptedIOException {
+        for (PipeRateLimiter limiter : limiters) {
+            limiter.acquire(bytes);
+        }
+    }
+
+    final boolean isLimited() {
+        return limiters.length > 0;
+    }
+
+    /**
+     * @return the current size of the copy buffer, or 0 if this pipe does not copy through a buffer
+     */
+    int bufferSize() {
+        return 0;
+    }
+
+    /**
+     * @return the bytes this pipe has spilled to disk
+     */
+    long spilledBytes() {
+        return 0;
+    }
+
+    /**
+     * @return the age of the oldest bytes read and not yet written, if this pipe queues them
+     */
+    long backlogAge(TimeUnit unit) {
+        return 0;
+    }
+
+    /**
+     * @return true if this pipe can run its chunks through stages
+     */
+    boolean isStageable() {
+        return false;
+    }
+
+    final boolean isStaged() {
+        return stages.length > 0;
+    }
+
+    final int stages() {
+        return stages.length;
+    }
+
+    /**
+     * Runs a chunk through the stages, starting at the given one
+     *
+     * @return the chunk to write, possibly empty
+     */
+    final ByteBuffer stage(ByteBuffer chunk, int first) throws IOException {
+        PipeStage[] stages = this.stages;
+        for (int i = first; i < stages.length && chunk.hasRemaining(); i++) {
+            chunk = stages[i].apply(chunk);
+            if (chunk == null) throw new IllegalStateException("Stage " + stages[i] + " returned no chunk");
+        }
+        return chunk;
+    }
+
+    /**
+     * Ends the given stage at the end of the source
+     *
+     * @return the bytes it still held, run through the next stages, or null
+     */
+    final ByteBuffer finish(int stage) throws IOException {
+        ByteBuffer tail = stages[stage].finish();
+        return tail == null ? null : stage(tail, stage + 1);
+    }
+
     protected abstract void copy(IN from, OUT to) throws IOException, BrokenPipeException;
 
+    /**
+     * @return true if this pipe copies with {@link #copyAsync(Closeable, Closeable, CopyCallback)} instead of blocking a thread
+     */
+    boolean isAsync() {
+        return false;
+    }
+
+    /**
+     * Starts copying without blocking the caller. The end of the copy must be reported to the callback. The returned
+     * handle is closed with the endpoints when the pipe ends.
+     */
+    Closeable copyAsync(IN from, OUT to, CopyCallback callback) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Called when the pipe is interrupted, before its copier is stopped
+     */
+    void onInterrupt() {
+    }
+
     private PipeListener listener() {
         PipeListener l = listener;
         return l == null ? EMPTY : l;
     }
 
+    final PipeExecutor executor() {
+        PipeExecutor e = executor;
+        return e == null ? Pipes.defaultExecutor() : e;
+    }
+
+    /**
+     * Receives the end of asynchronous copies
+     */
+    interface CopyCallback {
+        void onEnd();
+
+        void onBroken(IOException e);
+    }
+
     private static final class Connection<IN extends Closeable, OUT extends Closeable> implements PipeConnection {
 
         private final PipeSkeleton<IN, OUT> pipe;
-        private final FutureTask<Object> task;
-        private Thread copier;
+        private final Task task;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final AtomicBoolean ended = new AtomicBoolean();
+        private final CompletableFuture<Pipe> completion = new CompletableFuture<Pipe>();
+        private volatile Thread copier;
+        private volatile Closeable handle;
+        private volatile Runnable onFinished;
 
         private Connection(final PipeSkeleton<IN, OUT> pipe) {
             this.pipe = pipe;
-            this.task = new FutureTask<Object>(new Callable<Object>() {
+            pipe.counters.onConnect();
+            this.task = new Task(new Callable<Object>() {
                 @Override
                 public Object call() throws Exception {
                     pipe.listener().onConnect(pipe);
@@ -142,18 +312,60 @@ abstract class PipeSkeleton<IN extends Closeable, OUT extends Closeable> impleme
                     }
                     return Boolean.TRUE;
                 }
-            }) {
-                @Override
-                protected void done() {
-                    if (isCancelled()) {
-                        closeStreams(State.INTERRUPTED);
-                    } else {
-                        closeStreams(State.CLOSED);
+            });
+        }
+
+        private void start() {
+            if (pipe.isAsync()) {
+                // no copier thread to wait for
+                started.set(true);
+                finished.countDown();
+                pipe.listener().onConnect(pipe);
+                try {
+                    handle = pipe.copyAsync(pipe.from, pipe.to, new CopyCallback() {
+                        @Override
+                        public void onEnd() {
+                            task.complete();
+                        }
+
+                        @Override
+                        public void onBroken(IOException e) {
+                            BrokenPipeException bpe = new BrokenPipeException(e);
+                            closeStreams(State.BROKEN, bpe);
+                            task.fail(bpe);
+                        }
+                    });
+                    // the pipe may have been ended before getting the handle
+                    if (!pipe.isOpened()) {
+                        IoUtils.close(handle);
                     }
+                } catch (IOException e) {
+                    BrokenPipeException bpe = new BrokenPipeException(e);
+                    closeStreams(State.BROKEN, bpe);
+                    task.fail(bpe);
                 }
-            };
-            copier = new Thread(task, pipe.name);
-            copier.start();
+            } else {
+                pipe.executor().execute(pipe.name, new Runnable() {
+                    @Override
+                    public void run() {
+                        // the connection may have been closed before the executor runs the task
+                        if (started.compareAndSet(false, true)) {
+                            copier = Thread.currentThread();
+                            try {
+                                task.run();
+                            } finally {
+                                copier = null;
+                                finished.countDown();
+                                // the end of an asynchronous interrupt waits for the copier
+                                Runnable r = onFinished;
+                                if (r != null) {
+                                    r.run();
+                                }
+                            }
+                        }
+                    }
+                });
+            }
         }
 
         @Override
@@ -166,11 +378,95 @@ abstract class PipeSkeleton<IN extends Closeable, OUT extends Closeable> impleme
             return pipe;
         }
 
+        @Override
+        public PipeMetrics metrics() {
+            return pipe.counters;
+        }
+
+        @Override
+        public int bufferSize() {
+            return pipe.bufferSize();
+        }
+
+        @Override
+        public PipeStages.Digest digest() {
+            for (PipeStage stage : pipe.stages) {
+                if (stage instanceof PipeStages.Digest) {
+                    return (PipeStages.Digest) stage;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public long spilledBytes() {
+            return pipe.spilledBytes();
+        }
+
+        @Override
+        public long backlogAge(TimeUnit unit) {
+            return pipe.backlogAge(unit);
+        }
+
+        @Override
+        public double compressionRatio() {
+            return PipeCodec.ratio(pipe.stages);
+        }
+
         @Override
         public void interrupt() {
             closeStreams(State.INTERRUPTED);
         }
 
+        @Override
+        public CompletableFuture<Pipe> interruptAsync() {
+            closeStreams(State.INTERRUPTED, false);
+            return toCompletableFuture();
+        }
+
+        @Override
+        public PipeConnection onComplete(final PipeListener listener) {
+            if (listener == null) throw new IllegalArgumentException("Missing listener");
+            completion.whenComplete(new BiConsumer<Pipe, Throwable>() {
+                @Override
+                public void accept(Pipe p, Throwable t) {
+                    if (t == null) {
+                        listener.onClose(pipe);
+                    } else if (t instanceof CancellationException) {
+                        listener.onInterrupt(pipe);
+                    } else {
+                        listener.onBroken(pipe, (BrokenPipeException) t);
+                    }
+                }
+            });
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<Pipe> toCompletableFuture() {
+            final CompletableFuture<Pipe> future = new CompletableFuture<Pipe>() {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    if (cancelled) {
+                        interruptAsync();
+                    }
+                    return cancelled;
+                }
+            };
+            completion.whenComplete(new BiConsumer<Pipe, Throwable>() {
+                @Override
+                public void accept(Pipe p, Throwable t) {
+                    if (t == null) {
+                        future.complete(p);
+                    } else {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+            return future;
+        }
+
         @Override
         public void await(long time, TimeUnit unit) throws InterruptedException, TimeoutException, BrokenPipeException {
             if (Thread.interrupted())
@@ -238,22 +534,63 @@ abstract class PipeSkeleton<IN extends Closeable, OUT extends Closeable> impleme
         }
 
         private void closeStreams(State end, BrokenPipeException... e) {
+            closeStreams(end, true, e);
+        }
+
+        /**
+         * @param wait true to wait for the copier to stop before ending the pipe, otherwise the copier ends it when it
+         *             stops
+         */
+        private void closeStreams(final State end, boolean wait, final BrokenPipeException... e) {
             if (pipe.state.compareAndSet(State.OPENED, end) || pipe.state.compareAndSet(State.READY, end)) {
-                if (end == State.INTERRUPTED && copier != Thread.currentThread()) {
-                    task.cancel(true);
-                    copier.interrupt();
+                boolean onCopier = copier == Thread.currentThread();
+                if (end == State.INTERRUPTED) {
+                    pipe.onInterrupt();
+                    if (!onCopier) {
+                        task.cancel(true);
+                    }
                 }
-                IoUtils.close(pipe.from, pipe.to);
+                IoUtils.close(pipe.from, pipe.to, handle);
                 pipe.from = null;
                 pipe.to = null;
-                if (copier != Thread.currentThread()) {
-                    try {
-                        copier.join();
-                    } catch (InterruptedException e1) {
-                        Thread.currentThread().interrupt();
+                if (!onCopier) {
+                    if (started.compareAndSet(false, true)) {
+                        finished.countDown();
+                    } else if (wait) {
+                        try {
+                            finished.await();
+                        } catch (InterruptedException e1) {
+                            Thread.currentThread().interrupt();
+                        }
+                    } else {
+                        onFinished = new Runnable() {
+                            @Override
+                            public void run() {
+                                end(end, e);
+                            }
+                        };
+                        if (finished.getCount() > 0) {
+                            return;
+                        }
                     }
                 }
-                copier = null;
+                end(end, e);
+            }
+        }
+
+        /**
+         * Closes the stages and notifies the end of the pipe, once its copier has stopped
+         */
+        private void end(State end, BrokenPipeException... e) {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            for (PipeStage stage : pipe.stages) {
+                if (stage instanceof Closeable) {
+                    IoUtils.close((Closeable) stage);
+                }
+            }
+            try {
                 switch (end) {
                     case INTERRUPTED:
                         pipe.listener().onInterrupt(pipe());
@@ -265,6 +602,39 @@ abstract class PipeSkeleton<IN extends Closeable, OUT extends Closeable> impleme
                         pipe.listener().onBroken(pipe(), e[0]);
                         break;
                 }
+            } finally {
+                pipe.registration.leave();
+                if (end == State.CLOSED) {
+                    completion.complete(pipe);
+                } else if (end == State.BROKEN) {
+                    completion.completeExceptionally(e[0]);
+                } else {
+                    completion.cancel(false);
+                }
+            }
+        }
+
+        private final class Task extends FutureTask<Object> {
+
+            private Task(Callable<Object> callable) {
+                super(callable);
+            }
+
+            void complete() {
+                set(Boolean.TRUE);
+            }
+
+            void fail(Throwable t) {
+                setException(t);
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    closeStreams(State.INTERRUPTED);
+                } else {
+                    closeStreams(State.CLOSED);
+                }
             }
         }
     }
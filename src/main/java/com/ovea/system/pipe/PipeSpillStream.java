@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import com.ovea.system.util.IoUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream pipe which never makes its source wait for a slow destination: the copier reads into a {@link PipeSpool},
+ * drained by a writer thread of the executor. The destination is flushed each time the writer catches up.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeSpillStream extends PipeSkeleton<InputStream, OutputStream> {
+
+    private final int bufferSize;
+    private final long memoryLimit;
+    private final Path directory;
+    private volatile PipeSpool spool;
+
+    PipeSpillStream(String name, InputStream from, OutputStream to, int bufferSize, long memoryLimit, Path directory) {
+        super(name, from, to);
+        if (bufferSize <= 0) throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        if (memoryLimit < 0) throw new IllegalArgumentException("Invalid memory limit: " + memoryLimit);
+        if (directory == null) throw new IllegalArgumentException("Missing spill directory");
+        this.bufferSize = bufferSize;
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+    }
+
+    @Override
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    long spilledBytes() {
+        PipeSpool s = spool;
+        return s == null ? 0 : s.spilled();
+    }
+
+    @Override
+    long backlogAge(TimeUnit unit) {
+        PipeSpool s = spool;
+        return s == null ? 0 : s.backlogAge(unit);
+    }
+
+    @Override
+    void onInterrupt() {
+        PipeSpool s = spool;
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    @Override
+    protected void copy(final InputStream from, final OutputStream to) throws IOException, BrokenPipeException {
+        final PipeSpool spool = new PipeSpool(name(), memoryLimit, directory, PipeSpool.SEGMENT);
+        this.spool = spool;
+        try {
+            executor().execute(name() + "-writer", new Runnable() {
+                @Override
+                public void run() {
+                    Throwable failure = null;
+                    try {
+                        drain(spool, to);
+                    } catch (Throwable e) {
+                        failure = e;
+                    } finally {
+                        spool.writerDone(failure);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            spool.writerDone(new IOException("Cannot start the writer of " + name(), e));
+        }
+        byte[] buffer = PipeBuffers.shared().bytes(bufferSize);
+        boolean done = false;
+        try {
+            int len;
+            long start = System.nanoTime();
+            while (canCopy() && (len = from.read(buffer, 0, bufferSize)) != -1) {
+                counters.onRead(System.nanoTime() - start, len);
+                if (!spool.write(buffer, 0, len)) {
+                    break;
+                }
+                start = System.nanoTime();
+            }
+            spool.end();
+            spool.awaitWriter();
+            done = true;
+        } finally {
+            spool.close();
+            if (!done) {
+                // releases a writer blocked on the destination, closed anyway when the pipe ends
+                IoUtils.close(to);
+                spool.interruptWriter();
+            }
+            spool.awaitStopped();
+            PipeBuffers.shared().release(buffer);
+        }
+    }
+
+    private void drain(PipeSpool spool, OutputStream to) throws IOException {
+        byte[] buffer = PipeBuffers.shared().bytes(bufferSize);
+        try {
+            int len;
+            while ((len = spool.read(buffer)) != -1) {
+                throttle(len);
+                long write = System.nanoTime();
+                to.write(buffer, 0, len);
+                if (spool.isEmpty()) {
+                    to.flush();
+                }
+                counters.onWrite(System.nanoTime() - write, len);
+            }
+        } finally {
+            PipeBuffers.shared().release(buffer);
+        }
+    }
+}
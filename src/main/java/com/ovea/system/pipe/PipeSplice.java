@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import com.ovea.system.util.LinuxIO;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static com.ovea.system.util.LinuxIO.*;
+
+/**
+ * Moves data between the file descriptors of two streams through a kernel pipe with splice(2), so that the data never
+ * enters the JVM. Linux only.
+ * <p/>
+ * Sockets are blocking descriptors on which splice ignores its non-blocking flag: the pipe waits for them to be ready
+ * before each splice, and shuts them down when interrupted to wake up a blocked splice.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeSplice extends PipeSkeleton<InputStream, OutputStream> {
+
+    private static final int POLL_TIMEOUT = 250;
+    /**
+     * Chunk size of limited pipes, so that they are throttled smoothly
+     */
+    private static final int LIMITED_CHUNK = 64 * 1024;
+
+    private final int fdIn;
+    private final int fdOut;
+    private final int bufferSize;
+    private final boolean sockets;
+    // only used by the copier
+    private final Pointer pollfd = LinuxIO.pollfd();
+    private final Object lock = new Object();
+    private int in = -1;
+    private int out = -1;
+    private boolean interrupted;
+
+    private PipeSplice(String name, InputStream from, OutputStream to, int fdIn, int fdOut, int bufferSize, boolean sockets) {
+        super(name, from, to);
+        this.fdIn = fdIn;
+        this.fdOut = fdOut;
+        this.bufferSize = bufferSize;
+        this.sockets = sockets;
+    }
+
+    /**
+     * @return a splice pipe, or null if splice is not supported or if the file descriptors of the streams cannot be recovered
+     */
+    static Pipe create(String name, InputStream from, OutputStream to, int bufferSize) {
+        if (!LinuxIO.isSupported()) {
+            return null;
+        }
+        int fdIn = LinuxIO.fd(from);
+        int fdOut = LinuxIO.fd(to);
+        return fdIn < 0 || fdOut < 0 ? null : new PipeSplice(name, from, to, fdIn, fdOut, bufferSize, false);
+    }
+
+    /**
+     * @return a splice pipe reading a socket and writing another one, or null if splice is not supported or if the file
+     *         descriptors of the sockets cannot be recovered
+     */
+    static Pipe create(String name, Socket from, Socket to, int bufferSize) throws IOException {
+        if (!LinuxIO.isSupported()) {
+            return null;
+        }
+        int fdIn = LinuxIO.fd(from);
+        int fdOut = LinuxIO.fd(to);
+        return fdIn < 0 || fdOut < 0 ? null : new PipeSplice(name, from.getInputStream(), to.getOutputStream(), fdIn, fdOut, bufferSize, true);
+    }
+
+    @Override
+    void onInterrupt() {
+        if (sockets) {
+            synchronized (lock) {
+                interrupted = true;
+                LinuxIO.shutdown(in);
+                LinuxIO.shutdown(out);
+            }
+        }
+    }
+
+    @Override
+    protected void copy(InputStream from, OutputStream to) throws IOException, BrokenPipeException {
+        // work on our own descriptors: closing the streams from another thread must not let the numbers be reused under us
+        int in = -1;
+        int out = -1;
+        int[] pipe = null;
+        try {
+            int chunk = isLimited() ? Math.min(bufferSize, LIMITED_CHUNK) : bufferSize;
+            synchronized (lock) {
+                if (interrupted) {
+                    return;
+                }
+                this.in = in = LinuxIO.dup(fdIn);
+                this.out = out = LinuxIO.dup(fdOut);
+            }
+            if (sockets) {
+                pipe = LinuxIO.pipe();
+                copy(in, out, pipe, chunk);
+                return;
+            }
+            // when one of the descriptors is a pipe, as between processes, splice directly
+            long start = System.nanoTime();
+            long n = LinuxIO.trySplice(in, out, chunk, SPLICE_F_MOVE | SPLICE_F_MORE | SPLICE_F_NONBLOCK);
+            if (n > 0) {
+                throttle(n);
+                counters.onWrite(System.nanoTime() - start, n);
+            }
+            if (n == -2) {
+                pipe = LinuxIO.pipe();
+                copy(in, out, pipe, chunk);
+            } else if (n != 0) {
+                copy(in, out, chunk);
+            }
+        } finally {
+            if (pipe != null) {
+                LinuxIO.close(pipe);
+            }
+            synchronized (lock) {
+                LinuxIO.close(in, out);
+                this.in = this.out = -1;
+            }
+        }
+        // the JDK drains the output of exited processes in memory: copy what it took from us
+        byte[] buffer = PipeBuffers.shared().bytes(8192);
+        try {
+            int len;
+            long start = System.nanoTime();
+            while (canCopy() && (len = from.read(buffer)) != -1) {
+                long read = System.nanoTime();
+                counters.onRead(read - start, len);
+                throttle(len);
+                to.write(buffer, 0, len);
+                start = System.nanoTime();
+                counters.onWrite(start - read, len);
+            }
+        } finally {
+            PipeBuffers.shared().release(buffer);
+        }
+        to.flush();
+    }
+
+    private void copy(int in, int out, int chunk) throws IOException {
+        NativeLong len = new NativeLong(chunk);
+        long start = System.nanoTime();
+        while (canCopy()) {
+            long n = LinuxIO.splice(in, out, len, SPLICE_F_MOVE | SPLICE_F_MORE | SPLICE_F_NONBLOCK);
+            if (n == 0) {
+                break;
+            }
+            if (n > 0) {
+                throttle(n);
+                long now = System.nanoTime();
+                counters.onWrite(now - start, n);
+                start = now;
+            } else {
+                // wait without holding the thread forever so that interruptions are seen
+                LinuxIO.poll(pollfd, in, POLLIN, POLL_TIMEOUT);
+                LinuxIO.poll(pollfd, out, POLLOUT, POLL_TIMEOUT);
+            }
+        }
+    }
+
+    private void copy(int in, int out, int[] pipe, int chunk) throws IOException {
+        int size = LinuxIO.setPipeSize(pipe[1], chunk);
+        // more data hints make TCP wait for full segments: not on interactive sockets
+        int writeFlags = sockets ? SPLICE_F_MOVE | SPLICE_F_NONBLOCK : SPLICE_F_MOVE | SPLICE_F_MORE | SPLICE_F_NONBLOCK;
+        // allocated once: the loop runs for every chunk
+        NativeLong readLen = new NativeLong(size);
+        NativeLong writeLen = new NativeLong();
+        long start = System.nanoTime();
+        while (canCopy()) {
+            if (sockets && !LinuxIO.poll(pollfd, in, POLLIN, POLL_TIMEOUT)) {
+                continue;
+            }
+            long n = LinuxIO.splice(in, pipe[1], readLen, SPLICE_F_MOVE | SPLICE_F_MORE | SPLICE_F_NONBLOCK);
+            if (n == 0) {
+                break;
+            }
+            if (n < 0) {
+                LinuxIO.poll(pollfd, in, POLLIN, POLL_TIMEOUT);
+                continue;
+            }
+            long read = System.nanoTime();
+            counters.onRead(read - start, n);
+            throttle(n);
+            while (n > 0 && canCopy()) {
+                if (sockets && !LinuxIO.poll(pollfd, out, POLLOUT, POLL_TIMEOUT)) {
+                    continue;
+                }
+                writeLen.setValue(n);
+                long w = LinuxIO.splice(pipe[0], out, writeLen, writeFlags);
+                if (w > 0) {
+                    n -= w;
+                    start = System.nanoTime();
+                    counters.onWrite(start - read, w);
+                    read = start;
+                } else {
+                    LinuxIO.poll(pollfd, out, POLLOUT, POLL_TIMEOUT);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import com.ovea.system.util.IoUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Unbounded single-producer, single-consumer queue of bytes, letting a reader run ahead of a slow writer. Bytes are kept
+ * in memory up to a limit, then appended to segment files, read back in order and deleted once drained. Once spilling,
+ * the reader only goes back to memory when half of the limit is free, so that it does not create a segment per read.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class PipeSpool {
+
+    private static final int CHUNK = 64 * 1024;
+    static final long SEGMENT = 64 * 1024 * 1024;
+
+    private final long memoryLimit;
+    private final long segmentSize;
+    private final Path directory;
+    private final String prefix;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final CountDownLatch drained = new CountDownLatch(1);
+
+    // guarded by lock
+    private final ArrayDeque<Part> parts = new ArrayDeque<Part>();
+    private long memory;
+    private boolean spilling;
+    private boolean ended;
+    private boolean closed;
+
+    private volatile long spilled;
+    private volatile Thread writer;
+    private volatile Throwable failure;
+
+    PipeSpool(String prefix, long memoryLimit, Path directory, long segmentSize) {
+        if (memoryLimit < 0) throw new IllegalArgumentException("Invalid memory limit: " + memoryLimit);
+        if (directory == null) throw new IllegalArgumentException("Missing spill directory");
+        if (segmentSize <= 0) throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        this.prefix = prefix;
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Bytes written to segment files since the creation of the spool
+     */
+    long spilled() {
+        return spilled;
+    }
+
+    /**
+     * @return the time since the oldest bytes not yet read were written, or 0 if there are none
+     */
+    long backlogAge(TimeUnit unit) {
+        lock.lock();
+        try {
+            Part head = parts.peekFirst();
+            return head == null ? 0 : unit.convert(System.nanoTime() - head.time, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return parts.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reader side: queues the bytes, never waiting for the writer
+     *
+     * @return false if the spool is closed
+     * @throws IOException if a segment cannot be written
+     */
+    boolean write(byte[] b, int off, int len) throws IOException {
+        Segment segment;
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (spilling && memory <= memoryLimit / 2) {
+                spilling = false;
+            }
+            Part tail = parts.peekLast();
+            if (!spilling && memory + len <= memoryLimit) {
+                if (tail instanceof Segment) {
+                    ((Segment) tail).sealed = true;
+                }
+                Chunk chunk = tail instanceof Chunk && ((Chunk) tail).bytes.length - ((Chunk) tail).length >= len ? (Chunk) tail : null;
+                if (chunk == null) {
+                    byte[] bytes = PipeBuffers.shared().bytes(Math.max(len, CHUNK));
+                    if (memory + bytes.length > memoryLimit) {
+                        // the pooled size does not fit: count what is asked
+                        bytes = new byte[len];
+                    }
+                    chunk = new Chunk(bytes);
+                    memory += bytes.length;
+                    parts.add(chunk);
+                }
+                System.arraycopy(b, off, chunk.bytes, chunk.length, len);
+                chunk.length += len;
+                readable.signal();
+                return true;
+            }
+            spilling = true;
+            segment = tail instanceof Segment && !((Segment) tail).sealed ? (Segment) tail : null;
+        } finally {
+            lock.unlock();
+        }
+        if (segment == null) {
+            segment = new Segment(Files.createTempFile(directory, prefix + "-", ".spill"));
+            lock.lock();
+            try {
+                if (closed) {
+                    segment.close();
+                    return false;
+                }
+                parts.add(segment);
+            } finally {
+                lock.unlock();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        long position = segment.written;
+        while (buffer.hasRemaining()) {
+            position += segment.channel.write(buffer, position);
+        }
+        spilled += len;
+        lock.lock();
+        try {
+            segment.written = position;
+            if (position >= segmentSize) {
+                segment.sealed = true;
+            }
+            readable.signal();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Reader side: no more bytes will be written
+     */
+    void end() {
+        lock.lock();
+        try {
+            ended = true;
+            Part tail = parts.peekLast();
+            if (tail instanceof Segment) {
+                ((Segment) tail).sealed = true;
+            }
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writer side: waits for bytes
+     *
+     * @return the number of bytes read, or -1 once the spool is ended and drained, or closed
+     */
+    int read(byte[] into) throws IOException {
+        writer = Thread.currentThread();
+        Segment segment;
+        int n;
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    return -1;
+                }
+                Part head = parts.peekFirst();
+                if (head == null) {
+                    if (ended) {
+                        return -1;
+                    }
+                    readable.await();
+                } else if (head instanceof Chunk) {
+                    Chunk chunk = (Chunk) head;
+                    n = Math.min(into.length, chunk.length - chunk.position);
+                    System.arraycopy(chunk.bytes, chunk.position, into, 0, n);
+                    chunk.position += n;
+                    if (chunk.position == chunk.length) {
+                        parts.poll();
+                        memory -= chunk.bytes.length;
+                        PipeBuffers.shared().release(chunk.bytes);
+                    }
+                    return n;
+                } else {
+                    segment = (Segment) head;
+                    long available = segment.written - segment.position;
+                    if (available > 0) {
+                        n = (int) Math.min(into.length, available);
+                        break;
+                    }
+                    if (segment.sealed) {
+                        parts.poll();
+                        segment.close();
+                    } else {
+                        readable.await();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+        // only the writer moves the read position: the segment is read without holding the lock
+        ByteBuffer buffer = ByteBuffer.wrap(into, 0, n);
+        while (buffer.hasRemaining()) {
+            int r = segment.channel.read(buffer, segment.position + buffer.position());
+            if (r < 0) {
+                throw new IOException("Truncated spill segment: " + segment.file);
+            }
+        }
+        segment.position += n;
+        return n;
+    }
+
+    /**
+     * Writer side: reports the end of the writer, with its failure if any
+     */
+    void writerDone(Throwable failure) {
+        if (failure != null) {
+            this.failure = failure;
+            close();
+        }
+        synchronized (this) {
+            drained.countDown();
+        }
+    }
+
+    /**
+     * Reader side: interrupts the writer if still running, when the reader ends first
+     */
+    synchronized void interruptWriter() {
+        Thread t = writer;
+        if (t != null && drained.getCount() > 0) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Reader side: waits for the writer to drain the spool
+     *
+     * @throws IOException the failure of the writer
+     */
+    void awaitWriter() throws IOException {
+        if (awaitStopped()) {
+            throw new InterruptedIOException();
+        }
+        Throwable t = failure;
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+    }
+
+    /**
+     * Reader side: waits for the writer to stop, even if interrupted, since the pipe releases the stages and the
+     * destination used by the writer once the reader returns. Close the spool first.
+     *
+     * @return true if the thread was interrupted while waiting. Its interrupt flag is set again.
+     */
+    boolean awaitStopped() {
+        boolean interrupted = false;
+        while (drained.getCount() > 0) {
+            try {
+                drained.await();
+            } catch (InterruptedException e) {
+                // passed on to the writer, the pipe being interrupted
+                interrupted = true;
+                interruptWriter();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return interrupted;
+    }
+
+    /**
+     * Stops both sides, deletes the remaining segments and releases the chunks in memory
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Part part : parts) {
+                if (part instanceof Segment) {
+                    ((Segment) part).close();
+                } else {
+                    PipeBuffers.shared().release(((Chunk) part).bytes);
+                }
+            }
+            parts.clear();
+            memory = 0;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static abstract class Part {
+        final long time = System.nanoTime();
+    }
+
+    private static final class Chunk extends Part {
+
+        final byte[] bytes;
+        int length;
+        int position;
+
+        Chunk(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Segment extends Part {
+
+        final Path file;
+        final FileChannel channel;
+        volatile long written;
+        volatile boolean sealed;
+        long position;
+
+        Segment(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void close() {
+            IoUtils.close(channel);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transformation applied to the chunks copied by a pipe, see {@link Pipe#through(PipeStage...)}.
+ * <p/>
+ * A stage receives each chunk as a buffer between its position and limit, and returns the chunk to pass to the next
+ * stage: the same buffer to let it through without copy, a slice of it, an empty buffer to drop it, or a buffer owned by
+ * the stage. The chunk received must not be kept after returning, and the returned buffer only needs to stay valid until
+ * the next call. A stage belongs to one pipe. Stages implementing {@link java.io.Closeable} are closed when the pipe ends.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface PipeStage {
+
+    /**
+     * @return the chunk to pass to the next stage, never null
+     */
+    ByteBuffer apply(ByteBuffer chunk) throws IOException;
+
+    /**
+     * Called at the end of the source
+     *
+     * @return the bytes still held by this stage, or null
+     */
+    ByteBuffer finish() throws IOException;
+}
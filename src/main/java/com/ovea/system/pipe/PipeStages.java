@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Built-in {@link PipeStage}s
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeStages {
+
+    private PipeStages() {
+    }
+
+    /**
+     * @return a stage letting all the chunks through
+     */
+    public static PipeStage passThrough() {
+        return new PipeStage() {
+            @Override
+            public ByteBuffer apply(ByteBuffer chunk) {
+                return chunk;
+            }
+
+            @Override
+            public ByteBuffer finish() {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return a stage counting the chunks going through it. Unlike {@link Pipe#metrics()}, which counts the bytes
+     *         written, it counts the bytes at its place in the stages.
+     */
+    public static Counter counting() {
+        return new Counter();
+    }
+
+    /**
+     * @param every   sampling interval, in chunks
+     * @param sampler stage given a read-only view of one chunk out of <code>every</code>. What it returns is ignored.
+     * @return a stage letting all the chunks through
+     */
+    public static PipeStage sampling(final int every, final PipeStage sampler) {
+        if (every <= 0) throw new IllegalArgumentException("Invalid sampling interval: " + every);
+        if (sampler == null) throw new IllegalArgumentException("Missing sampler");
+        return new PipeStage() {
+            private long chunks;
+
+            @Override
+            public ByteBuffer apply(ByteBuffer chunk) throws IOException {
+                if (chunks++ % every == 0) {
+                    sampler.apply(chunk.asReadOnlyBuffer());
+                }
+                return chunk;
+            }
+
+            @Override
+            public ByteBuffer finish() {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @param level compression level, from 0 to 9, or -1 for the default level
+     * @return a stage compressing in zlib format. The compressed data is only flushed at the end of the source.
+     */
+    public static PipeStage deflate(int level) {
+        return PipeCodec.deflater(false, level, PipeCodec.NEVER);
+    }
+
+    /**
+     * @param syncFlush maximum time between two sync flushes, which let the peer inflate all the data received so far.
+     *                  A chunk is also flushed when it does not fill the copy buffer, meaning that the source has nothing
+     *                  more to give for now. 0 flushes every chunk.
+     * @return a stage compressing in zlib format, for interactive traffic
+     */
+    public static PipeStage deflate(int level, long syncFlush, TimeUnit unit) {
+        return PipeCodec.deflater(false, level, unit.toNanos(syncFlush));
+    }
+
+    /**
+     * @return a stage decompressing the zlib format
+     */
+    public static PipeStage inflate() {
+        return PipeCodec.inflater(false);
+    }
+
+    /**
+     * Same as {@link #deflate(int)}, in gzip format
+     */
+    public static PipeStage gzip(int level) {
+        return PipeCodec.deflater(true, level, PipeCodec.NEVER);
+    }
+
+    /**
+     * Same as {@link #deflate(int, long, TimeUnit)}, in gzip format
+     */
+    public static PipeStage gzip(int level, long syncFlush, TimeUnit unit) {
+        return PipeCodec.deflater(true, level, unit.toNanos(syncFlush));
+    }
+
+    /**
+     * @return a stage decompressing the gzip format, including concatenated members
+     */
+    public static PipeStage gunzip() {
+        return PipeCodec.inflater(true);
+    }
+
+    /**
+     * @return a stage computing the CRC-32C of the chunks going through it, with the CPU instructions on Java 9+
+     */
+    public static Digest crc32c() {
+        return new Digest("CRC32C", PipeChecksums.crc32c(), null);
+    }
+
+    /**
+     * @return a stage computing the CRC-32 of the chunks going through it
+     */
+    public static Digest crc32() {
+        return new Digest("CRC32", new CRC32(), null);
+    }
+
+    /**
+     * @return a stage computing the Adler-32 of the chunks going through it
+     */
+    public static Digest adler32() {
+        return new Digest("Adler32", new Adler32(), null);
+    }
+
+    /**
+     * @param algorithm a {@link MessageDigest} algorithm, like <code>SHA-256</code>
+     * @return a stage computing the digest of the chunks going through it
+     */
+    public static Digest digest(String algorithm) {
+        if (algorithm == null) throw new IllegalArgumentException("Missing digest algorithm");
+        try {
+            return new Digest(algorithm, null, MessageDigest.getInstance(algorithm));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Invalid digest algorithm: " + algorithm, e);
+        }
+    }
+
+    /**
+     * Checksum or digest of the chunks going through the stage, without copying them. The result is set when the source
+     * ends, before the pipe is closed: it can be read from {@link PipeListener#onClose(Pipe)} and after
+     * {@link PipeConnection#await()}.
+     */
+    public static final class Digest implements PipeStage {
+
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final String algorithm;
+        private final Checksum checksum;
+        private final MessageDigest digest;
+        private volatile byte[] result;
+
+        private Digest(String algorithm, Checksum checksum, MessageDigest digest) {
+            this.algorithm = algorithm;
+            this.checksum = checksum;
+            this.digest = digest;
+        }
+
+        public String algorithm() {
+            return algorithm;
+        }
+
+        /**
+         * @return the checksum, or the digest, in big-endian order, or null until the source has ended
+         */
+        public byte[] bytes() {
+            byte[] r = result;
+            return r == null ? null : r.clone();
+        }
+
+        /**
+         * @return the result as an hexadecimal string, or null until the source has ended
+         */
+        public String hex() {
+            byte[] r = result;
+            if (r == null) {
+                return null;
+            }
+            char[] chars = new char[r.length * 2];
+            for (int i = 0; i < r.length; i++) {
+                chars[2 * i] = HEX[(r[i] >> 4) & 0xF];
+                chars[2 * i + 1] = HEX[r[i] & 0xF];
+            }
+            return new String(chars);
+        }
+
+        /**
+         * @return the value of a CRC or Adler checksum, or -1 until the source has ended
+         * @throws UnsupportedOperationException for message digests
+         */
+        public long value() {
+            if (checksum == null) throw new UnsupportedOperationException("Digest " + algorithm + " has no numeric value");
+            byte[] r = result;
+            return r == null ? -1 : checksum.getValue();
+        }
+
+        @Override
+        public ByteBuffer apply(ByteBuffer chunk) {
+            if (checksum != null) {
+                PipeChecksums.update(checksum, chunk);
+            } else {
+                int position = chunk.position();
+                digest.update(chunk);
+                chunk.position(position);
+            }
+            return chunk;
+        }
+
+        @Override
+        public ByteBuffer finish() {
+            if (checksum != null) {
+                long v = checksum.getValue();
+                result = new byte[]{(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+            } else {
+                result = digest.digest();
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            String hex = hex();
+            return algorithm + "[" + (hex == null ? "pending" : hex) + "]";
+        }
+    }
+
+    public static final class Counter implements PipeStage {
+
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder chunks = new LongAdder();
+
+        private Counter() {
+        }
+
+        public long bytes() {
+            return bytes.sum();
+        }
+
+        public long chunks() {
+            return chunks.sum();
+        }
+
+        @Override
+        public ByteBuffer apply(ByteBuffer chunk) {
+            bytes.add(chunk.remaining());
+            chunks.increment();
+            return chunk;
+        }
+
+        @Override
+        public ByteBuffer finish() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "Counter[bytes=" + bytes() + ", chunks=" + chunks() + "]";
+        }
+    }
+}
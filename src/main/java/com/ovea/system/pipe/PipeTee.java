@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.pipe;
+
+import java.util.List;
+
+/**
+ * Pipe copying one source to several sinks. The source is read once and each chunk is queued to every sink, each sink
+ * being written by its own pipe: a sink can be listened, limited and interrupted without affecting the others.
+ * <p/>
+ * The tee completes when all the sinks have written their queue.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface PipeTee extends Pipe {
+
+    /**
+     * The sinks, in the order given at creation
+     */
+    List<Sink> sinks();
+
+    interface Sink extends Pipe {
+
+        /**
+         * Set what to do when the queue of this sink is full. Defaults to {@link PipeOverflow#BLOCK}.
+         */
+        Sink overflow(PipeOverflow overflow);
+
+        PipeOverflow overflow();
+
+        /**
+         * Number of chunks dropped because the queue of this sink was full
+         */
+        long dropped();
+
+        /**
+         * Number of chunks waiting to be written
+         */
+        int queued();
+    }
+}
@@ -17,27 +17,77 @@ package com.ovea.system.pipe;
 
 import com.ovea.system.proc.ProcessPipe;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.net.Socket;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 public final class Pipes {
+
+    private static volatile PipeExecutor defaultExecutor;
+
     private Pipes() {
     }
 
+    /* executors */
+
+    /**
+     * The executor used by pipes which have not been given one with {@link Pipe#executedBy(PipeExecutor)}. Defaults to
+     * a shared {@link PipeExecutors#pooled()} executor, or to the one selected by the <code>ovea.pipe.executor</code> system
+     * property (<code>pooled</code>, <code>thread</code> or <code>virtual</code>).
+     */
+    public static PipeExecutor defaultExecutor() {
+        PipeExecutor executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (Pipes.class) {
+                executor = defaultExecutor;
+                if (executor == null) {
+                    defaultExecutor = executor = PipeExecutors.configured();
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Run all pipes, tunnels and process waiters not given a specific executor on virtual threads
+     *
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads
+     * @see PipeExecutors#virtual()
+     */
+    public static void useVirtualThreads() {
+        setDefaultExecutor(PipeExecutors.virtual());
+    }
+
+    public static void setDefaultExecutor(PipeExecutor executor) {
+        if (executor == null) throw new IllegalArgumentException("Missing executor");
+        defaultExecutor = executor;
+    }
+
     /* create */
 
+    /**
+     * Creates a stream pipe. File streams are copied through their channels so that the kernel copies the data.
+     */
     public static Pipe create(InputStream in, OutputStream out) {
-        return new PipeByteStream(in, out);
+        return isFiles(in, out) ?
+                create("pipe-" + UUID.randomUUID().toString(), in, out) :
+                new PipeByteStream(in, out);
     }
 
     public static Pipe create(String name, InputStream in, OutputStream out) {
@@ -45,9 +95,47 @@ public final class Pipes {
     }
 
     public static Pipe create(String name, InputStream in, OutputStream out, int bufferSize) {
+        if (isFiles(in, out)) {
+            return new PipeByteChannel(name, ((FileInputStream) in).getChannel(), ((FileOutputStream) out).getChannel(), bufferSize);
+        }
         return new PipeByteStream(name, in, out, bufferSize);
     }
 
+    /**
+     * File streams are copied through their channels: regular files by the kernel, and the files without size, like
+     * procfs files, FIFOs and devices, through a buffer
+     */
+    private static boolean isFiles(InputStream in, OutputStream out) {
+        return in instanceof FileInputStream && out instanceof FileOutputStream;
+    }
+
+    /**
+     * Creates a stream pipe flushing its destination according to the given policy
+     */
+    public static Pipe create(String name, InputStream in, OutputStream out, int bufferSize, PipeFlushPolicy flush) {
+        if (isFiles(in, out)) {
+            // unbuffered: nothing to flush
+            return create(name, in, out, bufferSize);
+        }
+        return new PipeByteStream(name, in, out, bufferSize, flush);
+    }
+
+    /**
+     * Creates a stream pipe reading and writing from two threads, so that a slow write does not hold the reads back: up
+     * to <code>ringDepth</code> buffers can be read ahead of the writer before the reader blocks. File streams keep their
+     * streams when given a ring, and are copied through their channels otherwise.
+     */
+    public static Pipe create(String name, InputStream in, OutputStream out, int bufferSize, int ringDepth) {
+        return create(name, in, out, bufferSize, PipeFlushPolicy.NEVER, ringDepth);
+    }
+
+    public static Pipe create(String name, InputStream in, OutputStream out, int bufferSize, PipeFlushPolicy flush, int ringDepth) {
+        if (ringDepth == 0 && isFiles(in, out)) {
+            return create(name, in, out, bufferSize);
+        }
+        return new PipeByteStream(name, in, out, bufferSize, flush, ringDepth);
+    }
+
     public static Pipe create(Reader in, Writer out) {
         return new PipeCharacterStream(in, out);
     }
@@ -60,8 +148,21 @@ public final class Pipes {
         return new PipeCharacterStream(name, in, out, bufferSize);
     }
 
+    /**
+     * Creates a character pipe flushing its destination according to the given policy
+     */
+    public static Pipe create(String name, Reader in, Writer out, int bufferSize, PipeFlushPolicy flush) {
+        return new PipeCharacterStream(name, in, out, bufferSize, flush);
+    }
+
+    /**
+     * Creates a channel pipe. When both channels are {@link java.nio.channels.SelectableChannel}, the copy is made by the
+     * {@link PipeReactor#shared()} reactor and the channels are switched to non-blocking mode.
+     */
     public static Pipe create(ReadableByteChannel in, WritableByteChannel out) {
-        return new PipeByteChannel(in, out);
+        return PipeReactor.isSelectable(in, out) ?
+                new PipeByteChannel("pipe-" + UUID.randomUUID().toString(), in, out, 64 * 1024, PipeReactor.shared()) :
+                new PipeByteChannel(in, out);
     }
 
     public static Pipe create(String name, ReadableByteChannel in, WritableByteChannel out) {
@@ -69,7 +170,207 @@ public final class Pipes {
     }
 
     public static Pipe create(String name, ReadableByteChannel in, WritableByteChannel out, int bufferSize) {
-        return new PipeByteChannel(name, in, out, bufferSize);
+        return new PipeByteChannel(name, in, out, bufferSize, PipeReactor.isSelectable(in, out) ? PipeReactor.shared() : null);
+    }
+
+    public static Pipe create(String name, ReadableByteChannel in, WritableByteChannel out, int bufferSize, PipeReactor reactor) {
+        return new PipeByteChannel(name, in, out, bufferSize, reactor);
+    }
+
+    /* batched */
+
+    /**
+     * Creates a channel pipe queueing up to 16 buffers of 16 KiB between its reads and its writes
+     */
+    public static Pipe batched(ReadableByteChannel in, WritableByteChannel out) {
+        return batched("pipe-" + UUID.randomUUID().toString(), in, out, 16 * 1024, 16);
+    }
+
+    /**
+     * Creates a channel pipe queueing up to <code>batch</code> buffers between its reads and its writes. A scattering
+     * input fills several buffers with one read and a gathering output, like a socket, writes them with one call. The
+     * short reads of a non-blocking input are queued until it has nothing more to read, then written at once. File
+     * channels are still copied by the kernel.
+     */
+    public static Pipe batched(String name, ReadableByteChannel in, WritableByteChannel out, int bufferSize, int batch) {
+        return PipeByteChannel.batched(name, in, out, bufferSize, batch);
+    }
+
+    /* adaptive */
+
+    /**
+     * Creates a stream pipe adapting its buffer size to its reads, from 1 KiB to 256 KiB
+     */
+    public static Pipe adaptive(InputStream in, OutputStream out) {
+        return adaptive("pipe-" + UUID.randomUUID().toString(), in, out, 1024, 256 * 1024);
+    }
+
+    /**
+     * Creates a stream pipe adapting its buffer size to its reads, between the given bounds: the buffer grows when the
+     * reads fill it and shrinks when they stay well below. The size in use is given by {@link PipeConnection#bufferSize()}.
+     */
+    public static Pipe adaptive(String name, InputStream in, OutputStream out, int minBufferSize, int maxBufferSize) {
+        if (isFiles(in, out)) {
+            return new PipeByteChannel(name, ((FileInputStream) in).getChannel(), ((FileOutputStream) out).getChannel(), minBufferSize, maxBufferSize);
+        }
+        return new PipeByteStream(name, in, out, minBufferSize, maxBufferSize);
+    }
+
+    /**
+     * Creates a channel pipe adapting its buffer size to its reads, from 4 KiB to 1 MiB. Such pipes block a thread.
+     */
+    public static Pipe adaptive(ReadableByteChannel in, WritableByteChannel out) {
+        return adaptive("pipe-" + UUID.randomUUID().toString(), in, out, 4 * 1024, 1024 * 1024);
+    }
+
+    public static Pipe adaptive(String name, ReadableByteChannel in, WritableByteChannel out, int minBufferSize, int maxBufferSize) {
+        return new PipeByteChannel(name, in, out, minBufferSize, maxBufferSize);
+    }
+
+    /* splice */
+
+    public static Pipe splice(InputStream in, OutputStream out) {
+        return splice("pipe-" + UUID.randomUUID().toString(), in, out);
+    }
+
+    /**
+     * Creates a pipe moving data between the file descriptors of the streams with splice(2), so that it never enters
+     * the JVM. This requires Linux and streams whose descriptors can be recovered, like process or file streams.
+     * Otherwise returns a {@link #create(String, InputStream, OutputStream)} pipe.
+     * <p/>
+     * Can be disabled with <code>-Dovea.pipe.splice=false</code>.
+     */
+    public static Pipe splice(String name, InputStream in, OutputStream out) {
+        Pipe pipe = PipeSplice.create(name, in, out, 1024 * 1024);
+        return pipe == null ? create(name, in, out) : pipe;
+    }
+
+    public static Pipe splice(Socket in, Socket out) throws IOException {
+        return splice("pipe-" + UUID.randomUUID().toString(), in, out);
+    }
+
+    /**
+     * Creates a pipe moving data from a socket to another one with splice(2), through a kernel pipe, so that it never
+     * enters the JVM. On Java 9+ the descriptors of the sockets can only be recovered with
+     * <code>--add-opens java.base/java.io=ALL-UNNAMED --add-opens java.base/java.net=ALL-UNNAMED</code>. Sockets of
+     * channels are not supported. Otherwise returns a {@link #create(String, InputStream, OutputStream)} pipe between the
+     * streams of the sockets.
+     */
+    public static Pipe splice(String name, Socket in, Socket out) throws IOException {
+        Pipe pipe = PipeSplice.create(name, in, out, 256 * 1024);
+        return pipe == null ? create(name, in.getInputStream(), out.getOutputStream()) : pipe;
+    }
+
+    /* mapped files */
+
+    /**
+     * Creates a pipe reading a file through memory-mapped windows sliding over it, so that it can be of any size. If the
+     * stream is a file stream, possibly buffered, the windows are written to its channel.
+     */
+    public static Pipe create(Path source, OutputStream out) throws IOException {
+        return create("pipe-" + UUID.randomUUID().toString(), source, out, PipeMapping.WINDOW);
+    }
+
+    public static Pipe create(String name, Path source, OutputStream out, int windowSize) throws IOException {
+        return PipeMappedSource.create(name, source, out, windowSize);
+    }
+
+    /**
+     * @param out a channel in blocking mode
+     */
+    public static Pipe create(Path source, WritableByteChannel out) throws IOException {
+        return create("pipe-" + UUID.randomUUID().toString(), source, out, PipeMapping.WINDOW);
+    }
+
+    public static Pipe create(String name, Path source, WritableByteChannel out, int windowSize) throws IOException {
+        return PipeMappedSource.create(name, source, out, windowSize);
+    }
+
+    /**
+     * Creates a pipe writing a file, created or truncated, through memory-mapped windows sliding over it. If the stream
+     * is a file stream, possibly buffered, its channel reads straight into the windows.
+     */
+    public static Pipe create(InputStream in, Path sink) throws IOException {
+        return create("pipe-" + UUID.randomUUID().toString(), in, sink, PipeMapping.WINDOW);
+    }
+
+    public static Pipe create(String name, InputStream in, Path sink, int windowSize) throws IOException {
+        return PipeMappedSink.create(name, in, sink, windowSize);
+    }
+
+    /**
+     * @param in a channel in blocking mode
+     */
+    public static Pipe create(ReadableByteChannel in, Path sink) throws IOException {
+        return create("pipe-" + UUID.randomUUID().toString(), in, sink, PipeMapping.WINDOW);
+    }
+
+    public static Pipe create(String name, ReadableByteChannel in, Path sink, int windowSize) throws IOException {
+        return PipeMappedSink.create(name, in, sink, windowSize);
+    }
+
+    /* spill */
+
+    /**
+     * Creates a stream pipe which never makes its input wait for a slow output: up to <code>memoryLimit</code> bytes
+     * are buffered in memory, the next ones are spilled to segment files in the temporary directory, read back in order
+     * and deleted as the output catches up.
+     */
+    public static Pipe spilling(InputStream in, OutputStream out, long memoryLimit) {
+        return spilling("pipe-" + UUID.randomUUID().toString(), in, out, 8192, memoryLimit, Paths.get(System.getProperty("java.io.tmpdir")));
+    }
+
+    public static Pipe spilling(String name, InputStream in, OutputStream out, int bufferSize, long memoryLimit, Path directory) {
+        return new PipeSpillStream(name, in, out, bufferSize, memoryLimit, directory);
+    }
+
+    /* tee */
+
+    /**
+     * Copies a stream to several streams, see {@link PipeTee}
+     */
+    public static PipeTee tee(InputStream in, OutputStream... outs) {
+        return tee("tee-" + UUID.randomUUID().toString(), in, 8192, 16, outs);
+    }
+
+    /**
+     * @param queueSize number of chunks each sink can be late
+     */
+    public static PipeTee tee(String name, InputStream in, int bufferSize, int queueSize, OutputStream... outs) {
+        if (in == null) throw new IllegalArgumentException("Missing origin endpoint");
+        if (outs == null || outs.length == 0) throw new IllegalArgumentException("Missing sinks");
+        return PipeFanOut.create(name, in, Arrays.asList(outs), bufferSize, queueSize, PipeFanOut.STREAMS);
+    }
+
+    /**
+     * Copies a channel to several channels, see {@link PipeTee}. The channels must be in blocking mode.
+     */
+    public static PipeTee tee(ReadableByteChannel in, WritableByteChannel... outs) {
+        return tee("tee-" + UUID.randomUUID().toString(), in, 64 * 1024, 16, outs);
+    }
+
+    public static PipeTee tee(String name, ReadableByteChannel in, int bufferSize, int queueSize, WritableByteChannel... outs) {
+        if (in == null) throw new IllegalArgumentException("Missing origin endpoint");
+        if (outs == null || outs.length == 0) throw new IllegalArgumentException("Missing sinks");
+        return PipeFanOut.create(name, in, Arrays.asList(outs), bufferSize, queueSize, PipeFanOut.CHANNELS);
+    }
+
+    /* merge */
+
+    /**
+     * Copies several streams to one stream, chunk by chunk, see {@link PipeMerge}
+     */
+    public static PipeMerge merge(OutputStream out, InputStream... ins) {
+        return merge("merge-" + UUID.randomUUID().toString(), out, 8192, false, ins);
+    }
+
+    /**
+     * @param lines if true, the sources are merged line by line instead of chunk by chunk
+     */
+    public static PipeMerge merge(String name, OutputStream out, int bufferSize, boolean lines, InputStream... ins) {
+        if (out == null) throw new IllegalArgumentException("Missing destination endpoint");
+        if (ins == null || ins.length == 0) throw new IllegalArgumentException("Missing sources");
+        return PipeFanIn.create(name, out, Arrays.asList(ins), bufferSize, lines);
     }
 
     /* connects*/
@@ -110,6 +411,16 @@ public final class Pipes {
         return create(name, in, out, bufferSize).connect();
     }
 
+    /* metrics */
+
+    /**
+     * @return a live view summing the metrics of several pipes
+     */
+    public static PipeMetrics sum(PipeMetrics... metrics) {
+        if (metrics == null) throw new IllegalArgumentException("Missing metrics");
+        return PipeCounters.sum(metrics);
+    }
+
     /* process */
 
     public static ProcessPipe pipe(Process first, Process next, Process... others) {
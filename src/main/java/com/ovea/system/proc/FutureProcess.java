@@ -15,6 +15,9 @@
  */
 package com.ovea.system.proc;
 
+import com.ovea.system.pipe.PipeExecutor;
+import com.ovea.system.pipe.PipeRegistry;
+import com.ovea.system.pipe.Pipes;
 import com.ovea.system.util.ProcUtils;
 
 import java.util.concurrent.*;
@@ -28,12 +31,20 @@ public final class FutureProcess implements Future<Integer> {
 
     private final Process process;
     private final Future<Integer> exitCode;
+    private final PipeRegistry.Registration registration = PipeRegistry.global().join(this);
 
     public FutureProcess(Process process) {
         this(process, EMPTY);
     }
 
-    public FutureProcess(final Process process, final FutureProcessListener listener) {
+    public FutureProcess(Process process, FutureProcessListener listener) {
+        this(process, listener, Pipes.defaultExecutor());
+    }
+
+    /**
+     * @param executor executor running the task waiting for the process to end
+     */
+    public FutureProcess(final Process process, final FutureProcessListener listener, PipeExecutor executor) {
         FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
             @Override
             public Integer call() throws InterruptedException {
@@ -57,12 +68,13 @@ public final class FutureProcess implements Future<Integer> {
                         process.destroy();
                     } catch (Throwable ignored) {
                     }
+                    registration.leave();
                 }
             }
         };
         this.process = process;
         this.exitCode = task;
-        new Thread(task).start();
+        executor.execute("process-waiter", task);
     }
 
     public Process process() {
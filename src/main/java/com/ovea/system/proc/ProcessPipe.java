@@ -15,7 +15,9 @@
  */
 package com.ovea.system.proc;
 
+import com.ovea.system.pipe.Pipe;
 import com.ovea.system.pipe.PipeConnection;
+import com.ovea.system.pipe.PipeRegistry;
 import com.ovea.system.pipe.Pipes;
 import com.ovea.system.util.IoUtils;
 
@@ -24,12 +26,14 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
@@ -44,6 +48,8 @@ public final class ProcessPipe extends Process {
     private final AtomicReference<Integer> exitValue = new AtomicReference<Integer>();
     private final Queue<FutureProcess> processes = new LinkedList<FutureProcess>();
     private final Queue<PipeConnection> pipes = new LinkedList<PipeConnection>();
+    private final CompletableFuture<ProcessPipe> completion = new CompletableFuture<ProcessPipe>();
+    private final PipeRegistry.Registration registration = PipeRegistry.global().join(this);
 
     public ProcessPipe(List<? extends Process> processes) {
         processes = new ArrayList<Process>(processes);
@@ -72,10 +78,14 @@ public final class ProcessPipe extends Process {
                         IoUtils.close(sharedErrorStream);
                     }
                     finished.countDown();
+                    if (finished.getCount() == 0) {
+                        registration.leave();
+                        completion.complete(ProcessPipe.this);
+                    }
                 }
             }));
             if (i > 0) {
-                pipes.add(Pipes.connect(processes.get(i - 1).getInputStream(), current.getOutputStream()));
+                pipes.add(Pipes.splice(processes.get(i - 1).getInputStream(), current.getOutputStream()).connect());
             }
         }
         this.outputStream = processes.get(0).getOutputStream();
@@ -124,15 +134,15 @@ public final class ProcessPipe extends Process {
         }
     }
 
-    public int waitFor(long time, TimeUnit unit) throws InterruptedException, TimeoutException {
+    /**
+     * @return true if all the processes have exited, false if the time is up
+     */
+    @Override
+    public boolean waitFor(long time, TimeUnit unit) throws InterruptedException {
         if (Thread.interrupted())
             throw new InterruptedException();
         try {
-            if (finished.await(time, unit)) {
-                return exitValue();
-            } else {
-                throw new TimeoutException();
-            }
+            return finished.await(time, unit);
         } catch (InterruptedException e) {
             destroy();
             throw e;
@@ -148,10 +158,20 @@ public final class ProcessPipe extends Process {
         return i;
     }
 
+    /**
+     * @return true until all the processes have exited
+     */
+    @Override
+    public boolean isAlive() {
+        return finished.getCount() > 0;
+    }
+
     @Override
     public void destroy() {
+        // the pipes stop in parallel
+        List<CompletableFuture<Pipe>> interrupted = new ArrayList<CompletableFuture<Pipe>>(pipes.size());
         while (!pipes.isEmpty()) {
-            pipes.poll().interrupt();
+            interrupted.add(pipes.poll().interruptAsync());
         }
         for (FutureProcess process : processes) {
             process.cancel(true);
@@ -162,6 +182,62 @@ public final class ProcessPipe extends Process {
             } catch (Throwable ignored) {
             }
         }
+        try {
+            CompletableFuture.allOf(interrupted.toArray(new CompletableFuture<?>[interrupted.size()])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+            // interrupted pipes end cancelled
+        }
+    }
+
+    /**
+     * Interrupts the pipes and kills the processes without waiting for them to exit
+     *
+     * @return a future completed once all the processes have exited, as {@link #toCompletableFuture()}
+     */
+    public CompletableFuture<ProcessPipe> destroyAsync() {
+        while (!pipes.isEmpty()) {
+            pipes.poll().interruptAsync();
+        }
+        for (FutureProcess process : processes) {
+            process.process().destroy();
+        }
+        return toCompletableFuture();
+    }
+
+    /**
+     * Runs the callback once all the processes have exited, from the thread seeing the last one exit, or right away if
+     * they already have
+     */
+    public ProcessPipe onComplete(final Runnable callback) {
+        if (callback == null) throw new IllegalArgumentException("Missing callback");
+        completion.thenRun(callback);
+        return this;
+    }
+
+    /**
+     * @return a future completed with this pipe once all the processes have exited. Cancelling the future destroys the
+     *         pipe without waiting.
+     */
+    public CompletableFuture<ProcessPipe> toCompletableFuture() {
+        final CompletableFuture<ProcessPipe> future = new CompletableFuture<ProcessPipe>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    destroyAsync();
+                }
+                return cancelled;
+            }
+        };
+        completion.thenAccept(new Consumer<ProcessPipe>() {
+            @Override
+            public void accept(ProcessPipe pipe) {
+                future.complete(pipe);
+            }
+        });
+        return future;
     }
 
     private static final class SharedErrorStream extends PipedOutputStream {
@@ -20,10 +20,10 @@ import com.ovea.system.util.IoUtils;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
@@ -36,8 +36,11 @@ public final class Tunnel {
 
     private final AtomicReference<State> state = new AtomicReference<State>(null);
     private final CountDownLatch latch = new CountDownLatch(2);
+    private final CompletableFuture<Tunnel> completion = new CompletableFuture<Tunnel>();
     private final String name;
     private final TunnelListener listener;
+    private final PipeMetrics metrics;
+    private final PipeRegistry.Registration registration;
 
     private PipeConnection up;
     private PipeConnection down;
@@ -47,6 +50,8 @@ public final class Tunnel {
     private Tunnel(String name, Pipe up, Pipe down, TunnelListener listener) {
         this.name = name;
         this.listener = new OnceTunnelListener(listener);
+        this.metrics = Pipes.sum(up.metrics(), down.metrics());
+        this.registration = PipeRegistry.global().join(this);
         this.up = up.listenedBy(new Listener(down, listener)).connect();
         this.down = down.listenedBy(new Listener(up, listener)).connect();
     }
@@ -67,13 +72,96 @@ public final class Tunnel {
         return state.get() == State.INTERRUPTED;
     }
 
+    /**
+     * Metrics of both directions of the tunnel
+     */
+    public PipeMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Interrupts both directions of the tunnel and waits for them to stop
+     */
     public void interrupt() {
         if (state.compareAndSet(null, State.INTERRUPTED) || state.compareAndSet(State.OPENED, State.INTERRUPTED)) {
-            up.interrupt();
-            down.interrupt();
+            // both directions stop in parallel
+            CompletableFuture<Pipe> u = up.interruptAsync();
+            CompletableFuture<Pipe> d = down.interruptAsync();
+            up = down = null;
+            try {
+                CompletableFuture.allOf(u, d).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+                // interrupted pipes end cancelled
+            }
+            listener.onInterrupt(Tunnel.this);
+        }
+    }
+
+    /**
+     * Interrupts both directions of the tunnel without waiting for them to stop
+     *
+     * @return a future completed once the tunnel has ended, as {@link #toCompletableFuture()}
+     */
+    public CompletableFuture<Tunnel> interruptAsync() {
+        if (state.compareAndSet(null, State.INTERRUPTED) || state.compareAndSet(State.OPENED, State.INTERRUPTED)) {
+            up.interruptAsync();
+            down.interruptAsync();
             up = down = null;
             listener.onInterrupt(Tunnel.this);
         }
+        return toCompletableFuture();
+    }
+
+    /**
+     * Calls the end event of the listener once both directions of the tunnel have ended, or right away if they already
+     * have. The connect event is not called.
+     */
+    public Tunnel onComplete(final TunnelListener listener) {
+        if (listener == null) throw new IllegalArgumentException("Missing tunnel listener");
+        completion.whenComplete(new BiConsumer<Tunnel, Throwable>() {
+            @Override
+            public void accept(Tunnel tunnel, Throwable t) {
+                if (t == null) {
+                    listener.onClose(Tunnel.this);
+                } else if (t instanceof CancellationException) {
+                    listener.onInterrupt(Tunnel.this);
+                } else {
+                    listener.onBroken(Tunnel.this, (BrokenTunnelException) t);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * @return a future completed with the tunnel once both directions have ended: exceptionally with the
+     *         {@link BrokenTunnelException} if the tunnel is broken, cancelled if it is interrupted. Cancelling the future
+     *         interrupts the tunnel without waiting.
+     */
+    public CompletableFuture<Tunnel> toCompletableFuture() {
+        final CompletableFuture<Tunnel> future = new CompletableFuture<Tunnel>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    interruptAsync();
+                }
+                return cancelled;
+            }
+        };
+        completion.whenComplete(new BiConsumer<Tunnel, Throwable>() {
+            @Override
+            public void accept(Tunnel tunnel, Throwable t) {
+                if (t == null) {
+                    future.complete(tunnel);
+                } else {
+                    future.completeExceptionally(t);
+                }
+            }
+        });
+        return future;
     }
 
     @Override
@@ -112,6 +200,23 @@ public final class Tunnel {
         }
     }
 
+    private void countDown() {
+        latch.countDown();
+        if (latch.getCount() == 0) {
+            registration.leave();
+            switch (state.get()) {
+                case CLOSED:
+                    completion.complete(this);
+                    break;
+                case BROKEN:
+                    completion.completeExceptionally(brokenTunnelException);
+                    break;
+                default:
+                    completion.cancel(false);
+            }
+        }
+    }
+
     private class Listener implements PipeListener {
 
         private Pipe other;
@@ -132,34 +237,39 @@ public final class Tunnel {
         @Override
         public void onClose(Pipe pipe) {
             if (state.compareAndSet(null, State.CLOSED) || state.compareAndSet(State.OPENED, State.CLOSED)) {
-                other.connect().interrupt();
+                other.connect().interruptAsync();
                 listener.onClose(Tunnel.this);
                 other = null;
                 listener = null;
             }
-            latch.countDown();
+            countDown();
         }
 
         @Override
         public void onBroken(Pipe pipe, BrokenPipeException e) {
+            if (other != null && other.isClosed()) {
+                // the other direction ended first and closed the sockets both directions share
+                onClose(pipe);
+                return;
+            }
             if (state.compareAndSet(null, State.BROKEN) || state.compareAndSet(State.OPENED, State.BROKEN)) {
-                other.connect().interrupt();
+                other.connect().interruptAsync();
                 listener.onBroken(Tunnel.this, brokenTunnelException = new BrokenTunnelException(e));
                 other = null;
                 listener = null;
             }
-            latch.countDown();
+            countDown();
         }
 
         @Override
         public void onInterrupt(Pipe pipe) {
             if (state.compareAndSet(null, State.INTERRUPTED) || state.compareAndSet(State.OPENED, State.INTERRUPTED)) {
-                other.connect().interrupt();
+                other.connect().interruptAsync();
                 listener.onInterrupt(Tunnel.this);
                 other = null;
                 listener = null;
             }
-            latch.countDown();
+            countDown();
         }
     }
 
@@ -167,16 +277,102 @@ public final class Tunnel {
         return connect(left, right, EMPTY);
     }
 
-    public static Tunnel connect(final Socket left, final Socket right, TunnelListener listener) throws IOException {
+    public static Tunnel connect(Socket left, Socket right, TunnelListener listener) throws IOException {
+        return connect(left, right, listener, new PipeRateLimiter[0]);
+    }
+
+    /**
+     * @param limiters rate limiters of both directions of the tunnel. Share a limiter between tunnels to share its budget.
+     */
+    public static Tunnel connect(Socket left, Socket right, TunnelListener listener, PipeRateLimiter... limiters) throws IOException {
+        return connect(left, right, listener, TunnelCompression.NONE, limiters);
+    }
+
+    /**
+     * @param compression side of the tunnel carrying compressed traffic
+     * @param limiters    rate limiters of both directions of the tunnel, applied to the bytes written
+     */
+    public static Tunnel connect(Socket left, Socket right, TunnelListener listener, TunnelCompression compression, PipeRateLimiter... limiters) throws IOException {
+        if (left == null) throw new IllegalArgumentException("Missing left socket");
+        if (right == null) throw new IllegalArgumentException("Missing right socket");
+        if (listener == null) throw new IllegalArgumentException("Missing tunnel listener");
+        if (compression == null) throw new IllegalArgumentException("Missing compression");
+        if (limiters == null) throw new IllegalArgumentException("Missing rate limiters");
+        String l = left.getInetAddress().getHostAddress() + ":" + left.getPort();
+        String r = right.getInetAddress().getHostAddress() + ":" + right.getPort();
+        return connect(l + "<=>" + r, left, right, listener,
+                Pipes.create(l + "=>" + r, left.getInputStream(), right.getOutputStream()).limitedBy(limiters).through(compression.leftToRight()),
+                Pipes.create(r + "=>" + l, right.getInputStream(), left.getOutputStream()).limitedBy(limiters).through(compression.rightToLeft()));
+    }
+
+    public static Tunnel splice(Socket left, Socket right) throws IOException {
+        return splice(left, right, EMPTY);
+    }
+
+    /**
+     * Connects two sockets, moving the data between their descriptors with splice(2) so that it never enters the JVM.
+     * Falls back to {@link #connect(Socket, Socket, TunnelListener, PipeRateLimiter...)} when not running on Linux or
+     * when the descriptors cannot be recovered, see {@link Pipes#splice(String, Socket, Socket)}.
+     *
+     * @param limiters rate limiters of both directions of the tunnel
+     */
+    public static Tunnel splice(Socket left, Socket right, TunnelListener listener, PipeRateLimiter... limiters) throws IOException {
         if (left == null) throw new IllegalArgumentException("Missing left socket");
         if (right == null) throw new IllegalArgumentException("Missing right socket");
         if (listener == null) throw new IllegalArgumentException("Missing tunnel listener");
+        if (limiters == null) throw new IllegalArgumentException("Missing rate limiters");
         String l = left.getInetAddress().getHostAddress() + ":" + left.getPort();
         String r = right.getInetAddress().getHostAddress() + ":" + right.getPort();
+        return connect(l + "<=>" + r, left, right, listener,
+                Pipes.splice(l + "=>" + r, left, right).limitedBy(limiters),
+                Pipes.splice(r + "=>" + l, right, left).limitedBy(limiters));
+    }
+
+    private static Tunnel connect(String name, final Socket left, final Socket right, TunnelListener listener, Pipe up, Pipe down) {
+        return new Tunnel(
+                name,
+                up,
+                down,
+                new TunnelListeners(new TunnelListenerAdapter() {
+                    @Override
+                    public void onClose(Tunnel tunnel) {
+                        IoUtils.close(left, right);
+                    }
+
+                    @Override
+                    public void onBroken(Tunnel tunnel, BrokenTunnelException e) {
+                        onClose(tunnel);
+                    }
+
+                    @Override
+                    public void onInterrupt(Tunnel tunnel) {
+                        onClose(tunnel);
+                    }
+                }, listener));
+    }
+
+    public static Tunnel connect(SocketChannel left, SocketChannel right, TunnelListener listener) throws IOException {
+        return connect(left, right, listener, 64 * 1024, PipeReactor.shared());
+    }
+
+    /**
+     * Connects two socket channels from the selector threads of a reactor instead of two blocked threads. The channels
+     * are switched to non-blocking mode.
+     *
+     * @param bufferSize size of the buffer of each direction
+     */
+    public static Tunnel connect(final SocketChannel left, final SocketChannel right, TunnelListener listener, int bufferSize, PipeReactor reactor) throws IOException {
+        if (left == null) throw new IllegalArgumentException("Missing left channel");
+        if (right == null) throw new IllegalArgumentException("Missing right channel");
+        if (listener == null) throw new IllegalArgumentException("Missing tunnel listener");
+        if (reactor == null) throw new IllegalArgumentException("Missing reactor");
+        if (bufferSize <= 0) throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        String l = left.socket().getInetAddress().getHostAddress() + ":" + left.socket().getPort();
+        String r = right.socket().getInetAddress().getHostAddress() + ":" + right.socket().getPort();
         return new Tunnel(
                 l + "<=>" + r,
-                Pipes.create(l + "=>" + r, left.getInputStream(), right.getOutputStream()),
-                Pipes.create(r + "=>" + l, right.getInputStream(), left.getOutputStream()),
+                Pipes.create(l + "=>" + r, left, right, bufferSize, reactor),
+                Pipes.create(r + "=>" + l, right, left, bufferSize, reactor),
                 new TunnelListeners(new TunnelListenerAdapter() {
                     @Override
                     public void onClose(Tunnel tunnel) {
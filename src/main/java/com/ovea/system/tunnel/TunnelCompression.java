@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.tunnel;
+
+import com.ovea.system.pipe.PipeStage;
+import com.ovea.system.pipe.PipeStages;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression of one side of a tunnel, see {@link Tunnel#connect(java.net.Socket, java.net.Socket, TunnelListener, TunnelCompression, com.ovea.system.pipe.PipeRateLimiter...)}.
+ * <p/>
+ * The data sent to the compressed side is deflated and the data received from it is inflated, in zlib format: the peer
+ * at the other end of the link is typically another tunnel compressing its own side facing this one.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class TunnelCompression {
+
+    public static final TunnelCompression NONE = new TunnelCompression(null, 0, 0);
+
+    private final Boolean left;
+    private final int level;
+    private final long syncFlush;
+
+    private TunnelCompression(Boolean left, int level, long syncFlush) {
+        if (level < -1 || level > 9) throw new IllegalArgumentException("Invalid compression level: " + level);
+        if (syncFlush < 0) throw new IllegalArgumentException("Invalid sync flush interval: " + syncFlush);
+        this.left = left;
+        this.level = level;
+        this.syncFlush = syncFlush;
+    }
+
+    /**
+     * Compress the traffic of the left socket, flushing every chunk
+     */
+    public static TunnelCompression left(int level) {
+        return left(level, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compress the traffic of the left socket
+     *
+     * @param syncFlush see {@link PipeStages#deflate(int, long, TimeUnit)}
+     */
+    public static TunnelCompression left(int level, long syncFlush, TimeUnit unit) {
+        return new TunnelCompression(true, level, unit.toNanos(syncFlush));
+    }
+
+    /**
+     * Compress the traffic of the right socket, flushing every chunk
+     */
+    public static TunnelCompression right(int level) {
+        return right(level, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compress the traffic of the right socket
+     *
+     * @param syncFlush see {@link PipeStages#deflate(int, long, TimeUnit)}
+     */
+    public static TunnelCompression right(int level, long syncFlush, TimeUnit unit) {
+        return new TunnelCompression(false, level, unit.toNanos(syncFlush));
+    }
+
+    /**
+     * @return the stages of the pipe reading the left socket
+     */
+    PipeStage[] leftToRight() {
+        return stages(Boolean.TRUE);
+    }
+
+    /**
+     * @return the stages of the pipe reading the right socket
+     */
+    PipeStage[] rightToLeft() {
+        return stages(Boolean.FALSE);
+    }
+
+    private PipeStage[] stages(Boolean reading) {
+        if (left == null) {
+            return new PipeStage[0];
+        }
+        return new PipeStage[]{left.equals(reading) ? PipeStages.inflate() : PipeStages.deflate(level, syncFlush, TimeUnit.NANOSECONDS)};
+    }
+
+    @Override
+    public String toString() {
+        return left == null ? "none" : (left ? "left" : "right") + "(level=" + level + ")";
+    }
+}
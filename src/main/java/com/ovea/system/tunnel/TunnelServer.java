@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.tunnel;
+
+import com.ovea.system.pipe.PipeReactor;
+import com.ovea.system.util.IoUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Listens on a local port and forwards each accepted connection to a target address through a {@link Tunnel}.
+ * <p/>
+ * One thread accepts the connections and connects them to the target without blocking; the forwarded data is copied by
+ * the selector threads of a {@link PipeReactor}. Each tunnel only holds the buffers of its two directions, so that
+ * tens of thousands of connections can be forwarded by a few threads, as long as the open files limit allows it.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class TunnelServer implements Closeable {
+
+    /**
+     * Pause of the accepts after a failure, typically when the open files limit is reached
+     */
+    private static final long ACCEPT_BACKOFF = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final InetSocketAddress target;
+    private final TunnelListener listener;
+    private final int bufferSize;
+    private final PipeReactor reactor;
+    private final Set<Tunnel> tunnels = Collections.newSetFromMap(new ConcurrentHashMap<Tunnel, Boolean>());
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong acceptFailures = new AtomicLong();
+    private volatile boolean running = true;
+    private boolean paused;
+    private long resumeAccepts;
+
+    private TunnelServer(ServerSocketChannel server, Selector selector, InetSocketAddress target, TunnelListener listener, int bufferSize, PipeReactor reactor) {
+        this.server = server;
+        this.selector = selector;
+        this.target = target;
+        this.listener = listener;
+        this.bufferSize = bufferSize;
+        this.reactor = reactor;
+    }
+
+    /**
+     * Forwards the connections accepted on a local port, with 16 KiB buffers per direction copied by the shared reactor
+     */
+    public static TunnelServer open(int port, InetSocketAddress target, TunnelListener listener) throws IOException {
+        return open(new InetSocketAddress(port), target, listener, 16 * 1024, PipeReactor.shared());
+    }
+
+    /**
+     * @param bind       local address to listen on. Port 0 picks a free port, see {@link #localAddress()}.
+     * @param target     address each accepted connection is forwarded to
+     * @param listener   listener of each forwarded tunnel
+     * @param bufferSize size of the buffer of each direction of a tunnel
+     * @param reactor    reactor copying the data of the tunnels
+     */
+    public static TunnelServer open(InetSocketAddress bind, InetSocketAddress target, TunnelListener listener, int bufferSize, PipeReactor reactor) throws IOException {
+        if (bind == null) throw new IllegalArgumentException("Missing bind address");
+        if (target == null) throw new IllegalArgumentException("Missing target address");
+        if (listener == null) throw new IllegalArgumentException("Missing tunnel listener");
+        if (bufferSize <= 0) throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        if (reactor == null) throw new IllegalArgumentException("Missing reactor");
+        ServerSocketChannel server = ServerSocketChannel.open();
+        Selector selector = null;
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(bind, 1024);
+            server.configureBlocking(false);
+            selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            IoUtils.close(server, selector);
+            throw e;
+        }
+        final TunnelServer tunnelServer = new TunnelServer(server, selector, target, listener, bufferSize, reactor);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tunnelServer.run();
+            }
+        }, "tunnel-server-" + server.socket().getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+        return tunnelServer;
+    }
+
+    public InetSocketAddress localAddress() {
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    public InetSocketAddress target() {
+        return target;
+    }
+
+    public boolean isOpened() {
+        return running;
+    }
+
+    /**
+     * Number of tunnels currently forwarding
+     */
+    public int activeTunnels() {
+        return tunnels.size();
+    }
+
+    /**
+     * Number of connections accepted since the server was opened
+     */
+    public long acceptedConnections() {
+        return accepted.get();
+    }
+
+    /**
+     * Number of accepted connections closed because the target could not be connected
+     */
+    public long failedConnections() {
+        return failed.get();
+    }
+
+    /**
+     * Number of failed accepts, like when the open files limit is reached. The server stops accepting for a short while
+     * after each of them.
+     */
+    public long failedAccepts() {
+        return acceptFailures.get();
+    }
+
+    /**
+     * Stops listening and interrupts the tunnels without waiting for them to stop
+     */
+    @Override
+    public void close() {
+        if (running) {
+            running = false;
+            selector.wakeup();
+            for (Tunnel tunnel : tunnels) {
+                tunnel.interruptAsync();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TunnelServer[" + localAddress() + "=>" + target + ", tunnels=" + activeTunnels() + "]";
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                try {
+                    if (!paused) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(resumeAccepts - System.nanoTime())));
+                        if (System.nanoTime() - resumeAccepts >= 0) {
+                            paused = false;
+                            server.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+                        }
+                    }
+                } catch (IOException ignored) {
+                    continue;
+                }
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(key);
+                    } else if (key.isConnectable()) {
+                        connected(key);
+                    }
+                }
+            }
+        } finally {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    IoUtils.close(key.channel(), (Closeable) key.attachment());
+                }
+            }
+            IoUtils.close(server, selector);
+            for (Tunnel tunnel : tunnels) {
+                tunnel.interruptAsync();
+            }
+        }
+    }
+
+    private void accept(SelectionKey key) {
+        while (running) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                // too many open files: the key stays ready, stop accepting for a while instead of spinning on it
+                acceptFailures.incrementAndGet();
+                key.interestOps(0);
+                paused = true;
+                resumeAccepts = System.nanoTime() + ACCEPT_BACKOFF;
+                return;
+            }
+            if (client == null) {
+                return;
+            }
+            accepted.incrementAndGet();
+            SocketChannel remote = null;
+            try {
+                client.configureBlocking(false);
+                remote = SocketChannel.open();
+                remote.configureBlocking(false);
+                if (remote.connect(target)) {
+                    forward(client, remote);
+                } else {
+                    remote.register(selector, SelectionKey.OP_CONNECT, client);
+                }
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                IoUtils.close(client, remote);
+            }
+        }
+    }
+
+    private void connected(SelectionKey key) {
+        SocketChannel remote = (SocketChannel) key.channel();
+        SocketChannel client = (SocketChannel) key.attachment();
+        key.cancel();
+        try {
+            remote.finishConnect();
+            forward(client, remote);
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            IoUtils.close(client, remote);
+        }
+    }
+
+    private void forward(SocketChannel client, SocketChannel remote) throws IOException {
+        final Tunnel tunnel;
+        try {
+            tunnel = Tunnel.connect(client, remote, listener, bufferSize, reactor);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to forward " + client + ": " + e.getMessage(), e);
+        }
+        tunnels.add(tunnel);
+        // removes the tunnel right away if it has already ended
+        tunnel.onComplete(new TunnelListenerAdapter() {
+            @Override
+            public void onClose(Tunnel t) {
+                tunnels.remove(tunnel);
+            }
+
+            @Override
+            public void onBroken(Tunnel t, BrokenTunnelException e) {
+                tunnels.remove(tunnel);
+            }
+
+            @Override
+            public void onInterrupt(Tunnel t) {
+                tunnels.remove(tunnel);
+            }
+        });
+        if (!running) {
+            tunnel.interruptAsync();
+        }
+    }
+}
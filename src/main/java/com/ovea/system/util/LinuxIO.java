@@ -0,0 +1,372 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system.util;
+
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketImpl;
+
+/**
+ * Linux file descriptor operations used to move data between descriptors without copying it in the JVM heap.
+ * <p/>
+ * Recovering the descriptor of a JDK stream requires reflective access to <code>java.io</code>: on Java 9+ run with
+ * <code>--add-opens java.base/java.io=ALL-UNNAMED</code>, otherwise {@link #fd(InputStream)} returns -1. Recovering the
+ * descriptor of a socket also requires <code>--add-opens java.base/java.net=ALL-UNNAMED</code>.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class LinuxIO {
+
+    public static final int SPLICE_F_MOVE = 1;
+    public static final int SPLICE_F_NONBLOCK = 2;
+    public static final int SPLICE_F_MORE = 4;
+
+    public static final short POLLIN = 0x1;
+    public static final short POLLOUT = 0x4;
+
+    private static final int F_SETPIPE_SZ = 1031;
+    private static final int SHUT_RDWR = 2;
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+    private static final int EINVAL = 22;
+
+    private LinuxIO() {
+    }
+
+    /**
+     * @return true if running on Linux with a loadable C library
+     */
+    public static boolean isSupported() {
+        return LibC.INSTANCE != null;
+    }
+
+    /**
+     * @return the file descriptor read by this stream, or -1 if it cannot be recovered or if the stream has buffered data
+     */
+    public static int fd(InputStream stream) {
+        FileInputStream file = unwrap(stream);
+        try {
+            return file == null ? -1 : fd(file.getFD());
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the file descriptor written by this stream, or -1 if it cannot be recovered or if the stream has buffered data
+     */
+    public static int fd(OutputStream stream) {
+        FileOutputStream file = unwrap(stream);
+        try {
+            return file == null ? -1 : fd(file.getFD());
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the file descriptor of a socket, or -1 if it cannot be recovered, as for the sockets of channels
+     */
+    public static int fd(Socket socket) {
+        if (!Reflect.ACCESSIBLE || Reflect.SOCKET_IMPL == null || Reflect.SOCKET_FD == null || socket.getChannel() != null) {
+            return -1;
+        }
+        try {
+            Object impl = Reflect.SOCKET_IMPL.get(socket);
+            return impl == null ? -1 : fd((FileDescriptor) Reflect.SOCKET_FD.invoke(impl));
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Finds the file stream under JDK filter streams, such as the streams of a {@link Process}. Works on any platform.
+     *
+     * @return the file stream read by this stream, or null if it cannot be recovered or if the stream has buffered data
+     */
+    public static FileInputStream unwrap(InputStream stream) {
+        if (stream instanceof FileInputStream) {
+            return (FileInputStream) stream;
+        }
+        if (!Reflect.ACCESSIBLE) {
+            return null;
+        }
+        try {
+            while (stream instanceof FilterInputStream) {
+                if (stream instanceof BufferedInputStream && Reflect.available((BufferedInputStream) stream) > 0) {
+                    return null;
+                }
+                if (!stream.getClass().getName().startsWith("java.")) {
+                    return null;
+                }
+                stream = (InputStream) Reflect.IN.get(stream);
+            }
+            return stream instanceof FileInputStream ? (FileInputStream) stream : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the file stream under JDK filter streams, such as the streams of a {@link Process}. Works on any platform.
+     *
+     * @return the file stream written by this stream, or null if it cannot be recovered or if the stream has buffered data
+     */
+    public static FileOutputStream unwrap(OutputStream stream) {
+        if (stream instanceof FileOutputStream) {
+            return (FileOutputStream) stream;
+        }
+        if (!Reflect.ACCESSIBLE) {
+            return null;
+        }
+        try {
+            while (stream instanceof FilterOutputStream) {
+                if (stream instanceof BufferedOutputStream && Reflect.buffered((BufferedOutputStream) stream) > 0) {
+                    return null;
+                }
+                if (!stream.getClass().getName().startsWith("java.") || stream instanceof PrintStream) {
+                    return null;
+                }
+                stream = (OutputStream) Reflect.OUT.get(stream);
+            }
+            return stream instanceof FileOutputStream ? (FileOutputStream) stream : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the int value of a file descriptor, or -1 if it cannot be recovered
+     */
+    public static int fd(FileDescriptor descriptor) {
+        if (!Reflect.ACCESSIBLE) {
+            return -1;
+        }
+        try {
+            return descriptor.valid() ? Reflect.FD.getInt(descriptor) : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public static int dup(int fd) throws IOException {
+        int r = LibC.INSTANCE.dup(fd);
+        if (r < 0) throw error("dup");
+        return r;
+    }
+
+    public static void close(int... fds) {
+        for (int fd : fds) {
+            if (fd >= 0) {
+                LibC.INSTANCE.close(fd);
+            }
+        }
+    }
+
+    /**
+     * Shuts down both directions of a socket, waking up the threads blocked on any of its descriptors
+     */
+    public static void shutdown(int fd) {
+        if (fd >= 0) {
+            LibC.INSTANCE.shutdown(fd, SHUT_RDWR);
+        }
+    }
+
+    /**
+     * @return the read and write ends of a new kernel pipe
+     */
+    public static int[] pipe() throws IOException {
+        int[] fds = new int[2];
+        if (LibC.INSTANCE.pipe(fds) < 0) throw error("pipe");
+        return fds;
+    }
+
+    /**
+     * Tries to resize a kernel pipe
+     *
+     * @return the new pipe capacity, or the default 64 KiB if the pipe cannot be resized
+     */
+    public static int setPipeSize(int fd, int size) {
+        int r = LibC.INSTANCE.fcntl(fd, F_SETPIPE_SZ, size);
+        return r > 0 ? r : 64 * 1024;
+    }
+
+    /**
+     * Moves up to len bytes between two descriptors, one of them being a pipe
+     *
+     * @return the number of bytes moved, 0 at the end of input, or -1 if the operation would block
+     */
+    public static long splice(int in, int out, long len, int flags) throws IOException {
+        return splice(in, out, new NativeLong(len), flags);
+    }
+
+    /**
+     * Like {@link #splice(int, int, long, int)}, with a length that copy loops allocate once and update
+     */
+    public static long splice(int in, int out, NativeLong len, int flags) throws IOException {
+        while (true) {
+            long n = LibC.INSTANCE.splice(in, null, out, null, len, flags).longValue();
+            if (n >= 0) return n;
+            int errno = Native.getLastError();
+            if (errno == EAGAIN) return -1;
+            if (errno != EINTR) throw error("splice", errno);
+        }
+    }
+
+    /**
+     * Moves up to len bytes between two descriptors, like {@link #splice(int, int, long, int)}
+     *
+     * @return the number of bytes moved, 0 at the end of input, -1 if the operation would block, or -2 if splice is not
+     *         possible between these descriptors, when none of them is a pipe
+     */
+    public static long trySplice(int in, int out, long len, int flags) throws IOException {
+        while (true) {
+            long n = LibC.INSTANCE.splice(in, null, out, null, new NativeLong(len), flags).longValue();
+            if (n >= 0) return n;
+            int errno = Native.getLastError();
+            if (errno == EAGAIN) return -1;
+            if (errno == EINVAL) return -2;
+            if (errno != EINTR) throw error("splice", errno);
+        }
+    }
+
+    /**
+     * Waits for a descriptor to be ready
+     *
+     * @return true if ready, or closed, false if the timeout elapsed
+     */
+    public static boolean poll(int fd, short events, int timeoutMillis) throws IOException {
+        return poll(pollfd(), fd, events, timeoutMillis);
+    }
+
+    /**
+     * @return the native poll structure of one descriptor, to reuse across calls to
+     *         {@link #poll(Pointer, int, short, int)} from one thread
+     */
+    public static Pointer pollfd() {
+        return new Memory(8);
+    }
+
+    /**
+     * Waits for a descriptor to be ready, without allocating native memory
+     *
+     * @param pollfd see {@link #pollfd()}
+     * @return true if ready, or closed, false if the timeout elapsed
+     */
+    public static boolean poll(Pointer pollfd, int fd, short events, int timeoutMillis) throws IOException {
+        pollfd.setInt(0, fd);
+        pollfd.setShort(4, events);
+        pollfd.setShort(6, (short) 0);
+        int r = LibC.INSTANCE.poll(pollfd, 1, timeoutMillis);
+        if (r < 0) {
+            int errno = Native.getLastError();
+            if (errno == EINTR) return false;
+            throw error("poll", errno);
+        }
+        return r > 0;
+    }
+
+    private static IOException error(String call) {
+        return error(call, Native.getLastError());
+    }
+
+    private static IOException error(String call, int errno) {
+        return new IOException(call + " failed: errno " + errno);
+    }
+
+    private static interface LibC extends Library {
+
+        LibC INSTANCE = Loader.load();
+
+        int dup(int fd);
+
+        int close(int fd);
+
+        int pipe(int[] fds);
+
+        int shutdown(int fd, int how);
+
+        int fcntl(int fd, int cmd, int arg);
+
+        NativeLong splice(int fdIn, Pointer offIn, int fdOut, Pointer offOut, NativeLong len, int flags);
+
+        int poll(Pointer fds, int nfds, int timeout);
+    }
+
+    private static final class Loader {
+        static LibC load() {
+            if (!Platform.isLinux() || !Boolean.parseBoolean(System.getProperty("ovea.pipe.splice", "true"))) {
+                return null;
+            }
+            try {
+                return (LibC) Native.loadLibrary("c", LibC.class);
+            } catch (Throwable e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class Reflect {
+
+        static final Field IN = field(FilterInputStream.class, "in");
+        static final Field OUT = field(FilterOutputStream.class, "out");
+        static final Field FD = field(FileDescriptor.class, "fd");
+        static final Field IN_COUNT = field(BufferedInputStream.class, "count");
+        static final Field IN_POS = field(BufferedInputStream.class, "pos");
+        static final Field OUT_COUNT = field(BufferedOutputStream.class, "count");
+        static final Field SOCKET_IMPL = field(Socket.class, "impl");
+        static final Method SOCKET_FD = method(SocketImpl.class, "getFileDescriptor");
+        static final boolean ACCESSIBLE = IN != null && OUT != null && FD != null && IN_COUNT != null && IN_POS != null && OUT_COUNT != null;
+
+        static int available(BufferedInputStream stream) throws IllegalAccessException {
+            return IN_COUNT.getInt(stream) - IN_POS.getInt(stream);
+        }
+
+        static int buffered(BufferedOutputStream stream) throws IllegalAccessException {
+            return OUT_COUNT.getInt(stream);
+        }
+
+        private static Field field(Class<?> c, String name) {
+            try {
+                Field f = c.getDeclaredField(name);
+                f.setAccessible(true);
+                return f;
+            } catch (Exception e) {
+                // inaccessible on this JVM
+                return null;
+            }
+        }
+
+        private static Method method(Class<?> c, String name) {
+            try {
+                Method m = c.getDeclaredMethod(name);
+                m.setAccessible(true);
+                return m;
+            } catch (Exception e) {
+                // inaccessible on this JVM
+                return null;
+            }
+        }
+    }
+}
@@ -34,10 +34,30 @@ import java.util.regex.Pattern;
  */
 public final class ProcUtils {
 
+    private static final Method PROCESS_PID;
+
+    static {
+        Method pid;
+        try {
+            // Java 9+
+            pid = Process.class.getMethod("pid");
+        } catch (NoSuchMethodException e) {
+            pid = null;
+        }
+        PROCESS_PID = pid;
+    }
+
     private ProcUtils() {
     }
 
     public static long pid(Process process) {
+        if (PROCESS_PID != null) {
+            try {
+                return (Long) PROCESS_PID.invoke(process);
+            } catch (Exception ignored) {
+                // the process implementation does not know its pid
+            }
+        }
         String cName = process.getClass().getName();
         if (cName.equals("java.lang.UNIXProcess")) {
             /* get the PID on unix/linux systems */
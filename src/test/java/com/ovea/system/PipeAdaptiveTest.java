@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeAdaptiveTest {
+
+    byte[] data = new byte[4 * 1024 * 1024];
+
+    {
+        new Random().nextBytes(data);
+    }
+
+    @Test
+    public void test_grow() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeConnection connection = Pipes.adaptive("adaptive", new ByteArrayInputStream(data), out, 1024, 64 * 1024).connect();
+        connection.await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(64 * 1024, connection.bufferSize());
+    }
+
+    @Test
+    public void test_shrink() throws Exception {
+        // bulk reads, then a trickle
+        InputStream in = new InputStream() {
+            int reads;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                reads++;
+                return reads < 100 ? len : reads < 300 ? Math.min(len, 10) : -1;
+            }
+        };
+        PipeConnection connection = Pipes.adaptive("adaptive", in, new ByteArrayOutputStream(), 1024, 64 * 1024).connect();
+        connection.await();
+        assertEquals(1024, connection.bufferSize());
+    }
+
+    @Test
+    public void test_channels() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeConnection connection = Pipes.adaptive("adaptive", Channels.newChannel(new ByteArrayInputStream(data)), Channels.newChannel(out), 4096, 256 * 1024).connect();
+        connection.await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertTrue(connection.bufferSize() > 4096);
+    }
+
+    @Test
+    public void test_staged() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeStages.Counter counter = PipeStages.counting();
+        PipeConnection connection = Pipes.adaptive("adaptive", new ByteArrayInputStream(data), out, 1024, 64 * 1024).through(counter).connect();
+        connection.await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(64 * 1024, connection.bufferSize());
+        assertTrue(counter.chunks() < data.length / 32 / 1024);
+    }
+
+    @Test
+    public void test_fixed() throws Exception {
+        assertEquals(8192, Pipes.connect("fixed", new ByteArrayInputStream(data), new ByteArrayOutputStream(), 8192).bufferSize());
+        assertEquals(0, Pipes.tee(new ByteArrayInputStream(data), new ByteArrayOutputStream()).connect().bufferSize());
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeAdaptiveTest.class.getName());
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.PipeConnection;
+import com.ovea.system.pipe.Pipes;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeBatchedTest {
+
+    byte[] data = new byte[1024 * 1024 + 17];
+
+    {
+        new Random().nextBytes(data);
+    }
+
+    @Test
+    public void test_plain_channels() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.batched("batched", Channels.newChannel(new ByteArrayInputStream(data)), Channels.newChannel(out), 1024, 4).connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    @Test
+    public void test_partial_writes() throws Exception {
+        CountingChannel out = new CountingChannel(100);
+        Pipes.batched("partial", Channels.newChannel(new ByteArrayInputStream(data)), out, 1024, 8).connect().await();
+        assertTrue(Arrays.equals(data, out.bytes.toByteArray()));
+    }
+
+    @Test
+    public void test_short_reads() throws Exception {
+        final Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        CountingChannel out = new CountingChannel(Integer.MAX_VALUE);
+        PipeConnection connection = Pipes.batched("short", pipe.source(), out, 4096, 16).connect();
+        // small packets
+        for (int i = 0; i < data.length; i += 100) {
+            pipe.sink().write(ByteBuffer.wrap(data, i, Math.min(100, data.length - i)));
+        }
+        pipe.sink().close();
+        connection.await(10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(data, out.bytes.toByteArray()));
+        assertTrue(out.writes < data.length / 100);
+    }
+
+    /**
+     * Gathering channel writing at most the given bytes per call
+     */
+    static final class CountingChannel implements GatheringByteChannel {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final int max;
+        int writes;
+
+        CountingChannel(int max) {
+            this.max = max;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long n = 0;
+            for (int i = offset; i < offset + length && n < max; i++) {
+                n += copy(srcs[i], (int) (max - n));
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            writes++;
+            return copy(src, max);
+        }
+
+        private int copy(ByteBuffer src, int max) {
+            int n = Math.min(src.remaining(), max);
+            for (int i = 0; i < n; i++) {
+                bytes.write(src.get());
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeBatchedTest.class.getName());
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.PipeBuffers;
+import com.ovea.system.pipe.Pipes;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeBuffersTest {
+
+    @Test
+    public void test_size_classes() throws Exception {
+        PipeBuffers buffers = new PipeBuffers(1024 * 1024, 4);
+        assertEquals(1024, buffers.bytes(1).length);
+        assertEquals(8192, buffers.bytes(8192).length);
+        assertEquals(16384, buffers.chars(8193).length);
+        assertEquals(2 * 1024 * 1024 + 1, buffers.bytes(2 * 1024 * 1024 + 1).length);
+    }
+
+    @Test
+    public void test_reuse() throws Exception {
+        PipeBuffers buffers = new PipeBuffers(1024 * 1024, 4);
+        byte[] b1 = buffers.bytes(8192);
+        byte[] b2 = buffers.bytes(8192);
+        assertEquals(0, buffers.hits());
+        assertEquals(2, buffers.misses());
+        buffers.release(b1);
+        buffers.release(b2);
+        assertSame(b1, buffers.bytes(8192));
+        assertSame(b2, buffers.bytes(8192));
+        assertEquals(2, buffers.hits());
+    }
+
+    @Test
+    public void test_direct_cap() throws Exception {
+        PipeBuffers buffers = new PipeBuffers(64 * 1024, 1);
+        ByteBuffer b1 = buffers.direct(64 * 1024);
+        ByteBuffer b2 = buffers.direct(64 * 1024);
+        assertTrue(b1.isDirect());
+        assertFalse(b2.isDirect());
+        assertEquals(64 * 1024, buffers.directBytes());
+        b1.put((byte) 1);
+        buffers.release(b1);
+        ByteBuffer b3 = buffers.direct(1000);
+        assertEquals(1024, b3.capacity());
+        assertFalse(b3.isDirect());
+        assertEquals(64 * 1024, buffers.directBytes());
+        assertSame(b1, buffers.direct(64 * 1024));
+        assertEquals(0, b1.position());
+    }
+
+    @Test
+    public void test_released_by_ended_threads() throws Exception {
+        final PipeBuffers buffers = new PipeBuffers(64 * 1024, 4);
+        for (int i = 0; i < 100; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    buffers.release(buffers.direct(16 * 1024));
+                }
+            };
+            t.start();
+            t.join();
+        }
+        assertEquals(16 * 1024, buffers.directBytes());
+        assertEquals(99, buffers.hits());
+        assertTrue(buffers.direct(16 * 1024).isDirect());
+    }
+
+    @Test
+    public void test_full_pool_credits_direct_memory() throws Exception {
+        PipeBuffers buffers = new PipeBuffers(64 * 1024, 0);
+        ByteBuffer b1 = buffers.direct(64 * 1024);
+        buffers.release(b1);
+        assertEquals(0, buffers.directBytes());
+        assertTrue(buffers.direct(64 * 1024).isDirect());
+    }
+
+    @Test
+    public void test_pipes_use_pool() throws Exception {
+        byte[] data = new byte[100000];
+        Arrays.fill(data, (byte) 7);
+        long hits = PipeBuffers.shared().hits();
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Pipes.connect(new ByteArrayInputStream(data), out).await();
+            assertTrue(Arrays.equals(data, out.toByteArray()));
+        }
+        assertTrue(PipeBuffers.shared().hits() > hits);
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeBuffersTest.class.getName());
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeChecksumTest {
+
+    byte[] data = new byte[300 * 1024 + 17];
+
+    {
+        new Random().nextBytes(data);
+    }
+
+    @Test
+    public void test_crc32() throws Exception {
+        CRC32 expected = new CRC32();
+        expected.update(data);
+        PipeStages.Digest crc = PipeStages.crc32();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.create(new ByteArrayInputStream(data), out).through(crc).connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(expected.getValue(), crc.value());
+        assertEquals(String.format("%08x", expected.getValue()), crc.hex());
+    }
+
+    @Test
+    public void test_adler32_channels() throws Exception {
+        Adler32 expected = new Adler32();
+        expected.update(data);
+        PipeStages.Digest adler = PipeStages.adler32();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.create(Channels.newChannel(new ByteArrayInputStream(data)), Channels.newChannel(out)).through(adler).connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(expected.getValue(), adler.value());
+    }
+
+    @Test
+    public void test_crc32c() throws Exception {
+        PipeStages.Digest crc = PipeStages.crc32c();
+        Pipes.create(new ByteArrayInputStream("123456789".getBytes("ASCII")), new ByteArrayOutputStream()).through(crc).connect().await();
+        assertEquals(0xE3069283L, crc.value());
+    }
+
+    @Test
+    public void test_digest_on_close() throws Exception {
+        final AtomicReference<String> seen = new AtomicReference<String>();
+        PipeConnection connection = Pipes.create(new ByteArrayInputStream(data), new ByteArrayOutputStream())
+                .through(PipeStages.counting(), PipeStages.digest("SHA-256"))
+                .listenedBy(new PipeListenerAdapter() {
+                    @Override
+                    public void onClose(Pipe pipe) {
+                        seen.set(pipe.connect().digest().hex());
+                    }
+                })
+                .connect();
+        connection.await();
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+        assertTrue(Arrays.equals(expected, connection.digest().bytes()));
+        assertEquals(connection.digest().hex(), seen.get());
+        assertEquals("SHA-256", connection.digest().algorithm());
+    }
+
+    @Test
+    public void test_no_digest() throws Exception {
+        PipeConnection connection = Pipes.create(new ByteArrayInputStream(data), new ByteArrayOutputStream()).connect();
+        connection.await();
+        assertNull(connection.digest());
+        assertNull(PipeStages.crc32().hex());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_unknown_algorithm() throws Exception {
+        PipeStages.digest("NOPE-1");
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeChecksumTest.class.getName());
+    }
+}
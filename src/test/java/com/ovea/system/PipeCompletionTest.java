@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import com.ovea.system.proc.ProcessPipe;
+import com.ovea.system.tunnel.Tunnel;
+import com.ovea.system.tunnel.TunnelListener;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.mockito.Matchers;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeCompletionTest {
+
+    @Test
+    public void test_closed() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipe pipe = Pipes.create(new ByteArrayInputStream(new byte[1000]), out);
+        assertSame(pipe, pipe.connect().toCompletableFuture().get(5, TimeUnit.SECONDS));
+        assertEquals(1000, out.size());
+    }
+
+    @Test
+    public void test_broken() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        try {
+            Pipes.connect(new ByteArrayInputStream(new byte[1000]), failing).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BrokenPipeException);
+        }
+    }
+
+    @Test
+    public void test_on_complete() throws Exception {
+        PipeConnection connection = Pipes.connect(new ByteArrayInputStream(new byte[1000]), new ByteArrayOutputStream());
+        PipeListener before = mock(PipeListener.class);
+        connection.onComplete(before);
+        connection.await();
+        // registered after the end
+        PipeListener after = mock(PipeListener.class);
+        connection.onComplete(after);
+        for (PipeListener listener : new PipeListener[]{before, after}) {
+            verify(listener, timeout(5000)).onClose(connection.pipe());
+            verify(listener, never()).onConnect(Matchers.<Pipe>any());
+        }
+    }
+
+    @Test
+    public void test_interrupt_async() throws Exception {
+        StubbornInputStream in = new StubbornInputStream(500);
+        PipeListener listener = mock(PipeListener.class);
+        Pipe pipe = Pipes.create(in, new ByteArrayOutputStream()).listenedBy(listener);
+        PipeConnection connection = pipe.connect();
+        in.started.await();
+        long start = System.nanoTime();
+        CompletableFuture<Pipe> future = connection.interruptAsync();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 250);
+        assertTrue(pipe.isInterrupted());
+        // the end is notified once the copier has stopped
+        assertFalse(future.isDone());
+        verify(listener, never()).onInterrupt(pipe);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException ignored) {
+        }
+        verify(listener).onInterrupt(pipe);
+    }
+
+    @Test
+    public void test_cancel() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        Pipe pipe = Pipes.create(new PipedInputStream(writer), new ByteArrayOutputStream());
+        PipeConnection connection = pipe.connect();
+        assertTrue(connection.toCompletableFuture().cancel(false));
+        connection.toCompletableFuture().handle(new BiFunction<Pipe, Throwable, Object>() {
+            @Override
+            public Object apply(Pipe p, Throwable t) {
+                return null;
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertTrue(pipe.isInterrupted());
+    }
+
+    @Test
+    public void test_tunnel() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        ServerSocket server = new ServerSocket(0, 1, localhost);
+        Socket client = new Socket(localhost, server.getLocalPort());
+        Socket accepted = server.accept();
+        ServerSocket target = new ServerSocket(0, 1, localhost);
+        Socket forward = new Socket(localhost, target.getLocalPort());
+        Socket echo = target.accept();
+
+        Tunnel tunnel = Tunnel.connect(accepted, forward);
+        TunnelListener listener = mock(TunnelListener.class);
+        tunnel.onComplete(listener);
+        CompletableFuture<Tunnel> future = tunnel.interruptAsync();
+        assertTrue(tunnel.isInterrupted());
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException ignored) {
+        }
+        verify(listener, timeout(5000)).onInterrupt(tunnel);
+        assertTrue(accepted.isClosed());
+        assertTrue(forward.isClosed());
+
+        client.close();
+        echo.close();
+        server.close();
+        target.close();
+    }
+
+    @Test
+    public void test_process_pipe() throws Exception {
+        ProcessPipe pipe = Pipes.pipe(new ProcessBuilder("echo", "hello").start(), new ProcessBuilder("cat").start());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.connect(pipe.getInputStream(), out);
+        final CompletableFuture<Integer> exit = new CompletableFuture<Integer>();
+        pipe.onComplete(new Runnable() {
+            @Override
+            public void run() {
+                exit.complete(1);
+            }
+        });
+        assertSame(pipe, pipe.toCompletableFuture().get(5, TimeUnit.SECONDS));
+        assertEquals(0, pipe.exitValue());
+        assertEquals(1, exit.get(5, TimeUnit.SECONDS).intValue());
+    }
+
+    /**
+     * Blocks in read, ignoring interrupts and close, for the given time
+     */
+    static final class StubbornInputStream extends InputStream {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final long millis;
+
+        StubbornInputStream(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(new byte[1], 0, 1);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            started.countDown();
+            long end = System.currentTimeMillis() + millis;
+            long left;
+            while ((left = end - System.currentTimeMillis()) > 0) {
+                try {
+                    Thread.sleep(left);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return -1;
+        }
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeCompletionTest.class.getName());
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import com.ovea.system.tunnel.Tunnel;
+import com.ovea.system.tunnel.TunnelCompression;
+import com.ovea.system.tunnel.TunnelListenerAdapter;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeCompressionTest {
+
+    byte[] text;
+
+    {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random();
+        while (sb.length() < 500 * 1024) {
+            sb.append("GET /index.html?session=").append(random.nextInt(1000)).append(" HTTP/1.1\r\nHost: www.ovea.com\r\n\r\n");
+        }
+        text = sb.toString().getBytes();
+    }
+
+    @Test
+    public void test_deflate_inflate() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        PipeConnection connection = Pipes.create(new ByteArrayInputStream(text), compressed).through(PipeStages.deflate(6)).connect();
+        connection.await();
+        assertTrue(compressed.size() < text.length / 5);
+        assertEquals((double) text.length / compressed.size(), connection.compressionRatio(), 0.001);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        connection = Pipes.create(new ByteArrayInputStream(compressed.toByteArray()), out).through(PipeStages.inflate()).connect();
+        connection.await();
+        assertTrue(Arrays.equals(text, out.toByteArray()));
+        assertEquals((double) text.length / compressed.size(), connection.compressionRatio(), 0.001);
+    }
+
+    @Test
+    public void test_gzip_compatibility() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Pipes.create(new ByteArrayInputStream(text), compressed).through(PipeStages.gzip(9)).connect().await();
+        assertTrue(Arrays.equals(text, readFully(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())))));
+
+        // two members, with a file name
+        compressed.reset();
+        for (int i = 0; i < 2; i++) {
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed) {
+                {
+                    def.setLevel(1);
+                }
+            };
+            gzip.write(text);
+            gzip.finish();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.create("gunzip", new ByteArrayInputStream(compressed.toByteArray()), out, 1024).through(PipeStages.gunzip()).connect().await();
+        byte[] expected = new byte[text.length * 2];
+        System.arraycopy(text, 0, expected, 0, text.length);
+        System.arraycopy(text, 0, expected, text.length, text.length);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+    }
+
+    @Test
+    public void test_channels() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Pipes.create(Channels.newChannel(new ByteArrayInputStream(text)), Channels.newChannel(compressed)).through(PipeStages.gzip(-1)).connect().await();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.create(Channels.newChannel(new ByteArrayInputStream(compressed.toByteArray())), Channels.newChannel(out)).through(PipeStages.gunzip()).connect().await();
+        assertTrue(Arrays.equals(text, out.toByteArray()));
+    }
+
+    @Test
+    public void test_corrupt() throws Exception {
+        byte[] garbage = new byte[1000];
+        new Random().nextBytes(garbage);
+        PipeConnection connection = Pipes.create(new ByteArrayInputStream(garbage), new ByteArrayOutputStream()).through(PipeStages.gunzip()).connect();
+        try {
+            connection.await();
+            fail();
+        } catch (BrokenPipeException e) {
+            assertTrue(connection.pipe().isBroken());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void test_sync_flush() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        PipedInputStream compressed = new PipedInputStream(1024 * 1024);
+        PipedOutputStream link = new PipedOutputStream(compressed);
+        PipedInputStream reader = new PipedInputStream(1024 * 1024);
+        // piped streams only wake their reader up when flushed
+        PipeConnection deflate = Pipes.create("deflate", new PipedInputStream(writer, 1024 * 1024), link, 8192, PipeFlushPolicy.EVERY_CHUNK).through(PipeStages.deflate(6, 1, TimeUnit.MINUTES)).connect();
+        PipeConnection inflate = Pipes.create("inflate", compressed, new PipedOutputStream(reader), 8192, PipeFlushPolicy.EVERY_CHUNK).through(PipeStages.inflate()).connect();
+        // each message goes through without waiting for more data
+        for (int i = 0; i < 5; i++) {
+            byte[] message = ("message " + i + "\n").getBytes();
+            writer.write(message);
+            writer.flush();
+            byte[] received = new byte[message.length];
+            new DataInputStream(reader).readFully(received);
+            assertTrue(Arrays.equals(message, received));
+        }
+        writer.close();
+        deflate.await();
+        inflate.await();
+    }
+
+    @Test
+    public void test_tunnel() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        ServerSocket entry = new ServerSocket(0, 1, localhost);
+        ServerSocket link = new ServerSocket(0, 1, localhost);
+        ServerSocket target = new ServerSocket(0, 1, localhost);
+        Socket client = new Socket(localhost, entry.getLocalPort());
+        Socket entered = entry.accept();
+        Socket linkOut = new Socket(localhost, link.getLocalPort());
+        Socket linkIn = link.accept();
+        Socket forward = new Socket(localhost, target.getLocalPort());
+        Socket server = target.accept();
+
+        // client => [entered | linkOut] => compressed => [linkIn | forward] => server
+        Tunnel t1 = Tunnel.connect(entered, linkOut, new TunnelListenerAdapter(), TunnelCompression.right(6));
+        Tunnel t2 = Tunnel.connect(linkIn, forward, new TunnelListenerAdapter(), TunnelCompression.left(6));
+
+        client.getOutputStream().write(text);
+        byte[] received = new byte[text.length];
+        new DataInputStream(server.getInputStream()).readFully(received);
+        assertTrue(Arrays.equals(text, received));
+        server.getOutputStream().write("pong".getBytes());
+        received = new byte[4];
+        new DataInputStream(client.getInputStream()).readFully(received);
+        assertEquals("pong", new String(received));
+
+        client.close();
+        t1.await(5, TimeUnit.SECONDS);
+        t2.await(5, TimeUnit.SECONDS);
+        assertTrue(t1.metrics().bytes() < t2.metrics().bytes());
+        server.close();
+        entry.close();
+        link.close();
+        target.close();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeCompressionTest.class.getName());
+    }
+}
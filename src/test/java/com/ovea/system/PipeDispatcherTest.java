@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import com.ovea.system.proc.FutureProcess;
+import com.ovea.system.proc.FutureProcessListener;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeDispatcherTest {
+
+    @Test
+    public void test_slow_listener() throws Exception {
+        PipeDispatcher dispatcher = new PipeDispatcher(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        Pipe pipe = Pipes.create(new ByteArrayInputStream(new byte[1000]), new ByteArrayOutputStream()).listenedBy(dispatcher.dispatch(new PipeListenerAdapter() {
+            @Override
+            public void onConnect(Pipe pipe) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add("connect");
+            }
+
+            @Override
+            public void onClose(Pipe pipe) {
+                events.add("close");
+            }
+        }));
+        // the pipe ends while its listener is still busy
+        pipe.connect().await(5, TimeUnit.SECONDS);
+        assertTrue(pipe.isClosed());
+        assertTrue(events.isEmpty());
+        assertTrue(dispatcher.queueDepth() >= 1);
+        release.countDown();
+        for (int i = 0; i < 500 && dispatcher.dispatched() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("connect", "close"), events);
+        assertEquals(0, dispatcher.queueDepth());
+        assertEquals(2, dispatcher.dispatched());
+        assertEquals(2, dispatcher.dispatchLag().count());
+        assertTrue(dispatcher.dispatchLag().percentile(100, TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void test_order() throws Exception {
+        PipeDispatcher dispatcher = new PipeDispatcher(4);
+        final List<Integer> events = Collections.synchronizedList(new ArrayList<Integer>());
+        PipeListener listener = dispatcher.dispatch(new PipeListenerAdapter() {
+            @Override
+            public void onConnect(Pipe pipe) {
+                events.add(events.size());
+            }
+        });
+        Pipe pipe = Pipes.create(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+        for (int i = 0; i < 1000; i++) {
+            listener.onConnect(pipe);
+        }
+        for (int i = 0; i < 500 && dispatcher.dispatched() < 1000; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1000, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(i, events.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void test_failing_listener() throws Exception {
+        PipeDispatcher dispatcher = new PipeDispatcher(1);
+        PipeListener failing = mock(PipeListener.class);
+        doThrow(new IllegalStateException("expected")).when(failing).onConnect(any(Pipe.class));
+        Pipe pipe = Pipes.create(new ByteArrayInputStream(new byte[10]), new ByteArrayOutputStream()).listenedBy(dispatcher.dispatch(failing));
+        pipe.connect().await();
+        verify(failing, timeout(5000)).onClose(pipe);
+    }
+
+    @Test
+    public void test_process_listener() throws Exception {
+        PipeDispatcher dispatcher = new PipeDispatcher();
+        FutureProcessListener listener = mock(FutureProcessListener.class);
+        FutureProcess process = new FutureProcess(new ProcessBuilder("true").start(), dispatcher.dispatch(listener));
+        process.get(5, TimeUnit.SECONDS);
+        verify(listener, timeout(5000)).onComplete(process);
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeDispatcherTest.class.getName());
+    }
+}
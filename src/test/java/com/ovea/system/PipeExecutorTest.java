@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeExecutorTest {
+
+    @Test
+    public void test_pooled_reuses_threads() throws Exception {
+        PipeExecutor executor = PipeExecutors.pooled(4, 10, TimeUnit.SECONDS);
+        for (int i = 0; i < 20; i++) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            Pipes.create("pooled-" + i, new ByteArrayInputStream("Hello world !".getBytes()), baos).executedBy(executor).connect().await();
+            assertEquals("Hello world !", new String(baos.toByteArray()));
+        }
+        assertEquals(20, executor.submittedTasks());
+        assertTrue(executor.createdThreads() < 20);
+    }
+
+    @Test
+    public void test_thread_per_task() throws Exception {
+        PipeExecutor executor = PipeExecutors.threadPerTask();
+        for (int i = 0; i < 5; i++) {
+            Pipes.create("thread-" + i, new ByteArrayInputStream("Hello world !".getBytes()), new ByteArrayOutputStream()).executedBy(executor).connect().await();
+        }
+        assertEquals(5, executor.submittedTasks());
+        assertEquals(5, executor.createdThreads());
+    }
+
+    @Test
+    public void test_pooled_interrupt() throws Exception {
+        PipeExecutor executor = PipeExecutors.pooled(1, 10, TimeUnit.SECONDS);
+        PipeListener listener = mock(PipeListener.class);
+        PipedOutputStream out = new PipedOutputStream();
+        Pipe pipe = Pipes.create("blocking", new PipedInputStream(out), new ByteArrayOutputStream()).executedBy(executor).listenedBy(listener);
+        PipeConnection connection = pipe.connect();
+        Thread.sleep(500);
+        assertEquals(1, executor.activeThreads());
+        connection.interrupt();
+        assertTrue(pipe.isInterrupted());
+        verify(listener, times(1)).onInterrupt(pipe);
+        verify(listener, times(0)).onClose(pipe);
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeExecutorTest.class.getName());
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.Pipes;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeFileChannelTest {
+
+    File source;
+    File target;
+    byte[] data = new byte[3 * 1024 * 1024 + 17];
+
+    @Before
+    public void setup() throws Exception {
+        new Random().nextBytes(data);
+        source = File.createTempFile("pipe-source-", ".bin");
+        target = File.createTempFile("pipe-target-", ".bin");
+        FileOutputStream out = new FileOutputStream(source);
+        out.write(data);
+        out.close();
+    }
+
+    @After
+    public void cleanup() {
+        source.delete();
+        target.delete();
+    }
+
+    @Test
+    public void test_file_streams() throws Exception {
+        Pipes.connect("files", new FileInputStream(source), new FileOutputStream(target)).await();
+        assertTrue(Arrays.equals(data, read(target)));
+    }
+
+    @Test
+    public void test_transfer_to() throws Exception {
+        java.nio.channels.Pipe pipe = java.nio.channels.Pipe.open();
+        final java.nio.channels.Pipe.SourceChannel in = pipe.source();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(8192);
+                    while (in.read(buffer) != -1) {
+                        baos.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        Pipes.connect("transferTo", new FileInputStream(source).getChannel(), pipe.sink()).await();
+        reader.join();
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+    }
+
+    @Test
+    public void test_transfer_from() throws Exception {
+        Pipes.connect("transferFrom", Channels.newChannel(new ByteArrayInputStream(data)), new FileOutputStream(target).getChannel()).await();
+        assertTrue(Arrays.equals(data, read(target)));
+    }
+
+    @Test
+    public void test_procfs() throws Exception {
+        File status = new File("/proc/self/status");
+        Assume.assumeTrue(status.exists());
+        Pipes.connect("procfs", new FileInputStream(status), new FileOutputStream(target)).await();
+        assertTrue(new String(read(target), "ASCII").startsWith("Name:"));
+    }
+
+    @Test
+    public void test_fifo() throws Exception {
+        final File fifo = new File(target.getPath() + ".fifo");
+        Assume.assumeTrue(new ProcessBuilder("mkfifo", fifo.getPath()).start().waitFor() == 0);
+        try {
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        FileOutputStream out = new FileOutputStream(fifo);
+                        out.write(data);
+                        out.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            writer.start();
+            Pipes.connect("fifo", new FileInputStream(fifo), new FileOutputStream(target)).await();
+            writer.join();
+            assertTrue(Arrays.equals(data, read(target)));
+        } finally {
+            fifo.delete();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeFileChannelTest.class.getName());
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.PipeConnection;
+import com.ovea.system.pipe.PipeFlushPolicy;
+import com.ovea.system.pipe.Pipes;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeFlushPolicyTest {
+
+    @Test
+    public void test_never() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        Pipes.create("never", new ByteArrayInputStream(new byte[100000]), out, 8192, PipeFlushPolicy.NEVER).connect().await();
+        assertEquals(0, out.flushes);
+    }
+
+    @Test
+    public void test_every_chunk() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        Pipes.create("every", new ByteArrayInputStream(new byte[100000]), out, 8192, PipeFlushPolicy.EVERY_CHUNK).connect().await();
+        assertEquals(13, out.flushes);
+    }
+
+    @Test
+    public void test_when_idle() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        Pipes.create("idle", new ByteArrayInputStream(new byte[100000]), out, 8192, PipeFlushPolicy.WHEN_IDLE).connect().await();
+        assertEquals(1, out.flushes);
+    }
+
+    @Test
+    public void test_when_idle_characters() throws Exception {
+        final int[] flushes = new int[1];
+        StringWriter sink = new StringWriter() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        Pipes.create("idle", new StringReader("hello"), sink, 8192, PipeFlushPolicy.WHEN_IDLE).connect().await();
+        assertEquals("hello", sink.toString());
+        assertEquals(1, flushes[0]);
+    }
+
+    @Test
+    public void test_when_idle_ring() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        // like the output of a process: available() waits for the read in progress
+        InputStream in = new BufferedInputStream(new PipedInputStream(writer));
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        PipeConnection connection = Pipes.create("idle", in, new BufferedOutputStream(sink, 65536), 8192, PipeFlushPolicy.WHEN_IDLE, 4).connect();
+        writer.write(new byte[5]);
+        writer.flush();
+        // the reader is blocked on the idle source: the writer flushes what it got
+        for (int i = 0; i < 100 && sink.size() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, sink.size());
+        writer.close();
+        connection.await();
+    }
+
+    @Test
+    public void test_coalesce_threshold() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        Pipes.create("coalesce", new ByteArrayInputStream(new byte[100000]), out, 8192, PipeFlushPolicy.coalesce(32768, 10, TimeUnit.SECONDS)).connect().await();
+        assertEquals(4, out.flushes);
+        assertEquals(100000, out.count);
+    }
+
+    @Test
+    public void test_coalesce_delay() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(writer);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        PipeConnection connection = Pipes.create("delay", in, new BufferedOutputStream(sink, 65536), 8192, PipeFlushPolicy.coalesce(32768, 50, TimeUnit.MILLISECONDS)).connect();
+        writer.write(new byte[10]);
+        writer.flush();
+        // the copier is blocked reading: the timer flushes
+        for (int i = 0; i < 100 && sink.size() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, sink.size());
+        writer.close();
+        connection.await();
+    }
+
+    static final class CountingOutputStream extends OutputStream {
+
+        int flushes;
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeFlushPolicyTest.class.getName());
+    }
+}
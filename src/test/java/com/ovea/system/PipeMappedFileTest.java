@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.Pipe;
+import com.ovea.system.pipe.PipeConnection;
+import com.ovea.system.pipe.Pipes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeMappedFileTest {
+
+    Path source;
+    Path target;
+    byte[] data = new byte[3 * 1024 * 1024 + 17];
+
+    @Before
+    public void setup() throws Exception {
+        new Random().nextBytes(data);
+        source = Files.createTempFile("pipe-source-", ".bin");
+        target = Files.createTempFile("pipe-target-", ".bin");
+        Files.write(source, data);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+    }
+
+    @Test
+    public void test_source_to_stream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeConnection connection = Pipes.create("mapped", source, out, 1024 * 1024).connect();
+        connection.await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(data.length, connection.metrics().bytes());
+    }
+
+    @Test
+    public void test_source_to_file_stream() throws Exception {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(target.toFile()));
+        Pipes.create("mapped", source, out, 64 * 1024).connect().await();
+        assertTrue(Arrays.equals(data, Files.readAllBytes(target)));
+    }
+
+    @Test
+    public void test_source_to_channel() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.create(source, Channels.newChannel(out)).connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    @Test
+    public void test_stream_to_sink() throws Exception {
+        PipeConnection connection = Pipes.create("mapped", new ByteArrayInputStream(data), target, 1024 * 1024).connect();
+        connection.await();
+        assertTrue(Arrays.equals(data, Files.readAllBytes(target)));
+        assertEquals(data.length, connection.metrics().bytes());
+    }
+
+    @Test
+    public void test_file_stream_to_sink() throws Exception {
+        InputStream in = new BufferedInputStream(new FileInputStream(source.toFile()));
+        Pipes.create("mapped", in, target, 64 * 1024).connect().await();
+        assertTrue(Arrays.equals(data, Files.readAllBytes(target)));
+    }
+
+    @Test
+    public void test_channel_to_sink() throws Exception {
+        FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        Pipes.create(in, target).connect().await();
+        assertTrue(Arrays.equals(data, Files.readAllBytes(target)));
+    }
+
+    @Test
+    public void test_sink_truncated() throws Exception {
+        Files.write(target, new byte[8 * 1024 * 1024]);
+        Pipes.create("mapped", new ByteArrayInputStream(data, 0, 100), target, 1024 * 1024).connect().await();
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 100), Files.readAllBytes(target)));
+    }
+
+    @Test
+    public void test_empty() throws Exception {
+        Files.write(source, new byte[0]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.create(source, out).connect().await();
+        assertEquals(0, out.size());
+        Pipes.create(new ByteArrayInputStream(new byte[0]), target).connect().await();
+        assertEquals(0, Files.size(target));
+    }
+
+    @Test
+    public void test_interrupt() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        Pipe pipe = Pipes.create(new PipedInputStream(writer), target);
+        PipeConnection connection = pipe.connect();
+        writer.write(1);
+        Thread.sleep(100);
+        connection.interrupt();
+        assertTrue(pipe.isInterrupted());
+    }
+
+    @Test
+    public void test_process_to_sink() throws Exception {
+        // the JDK drains the output of exited processes and closes their stream while the sink reads it
+        StringBuilder expected = new StringBuilder();
+        for (int i = 1; i <= 300000; i++) {
+            expected.append(i).append('\n');
+        }
+        for (int i = 0; i < 20; i++) {
+            Process process = new ProcessBuilder("seq", "1", "300000").start();
+            Pipes.create("spill", process.getInputStream(), target, 16 * 1024 * 1024).connect().await();
+            process.waitFor();
+            assertEquals(expected.toString(), new String(Files.readAllBytes(target), "ASCII"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_invalid_window() throws Exception {
+        Pipes.create("mapped", source, new ByteArrayOutputStream(), 0);
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeMappedFileTest.class.getName());
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.mockito.Matchers;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeMergeTest {
+
+    @Test
+    public void test_merge() throws Exception {
+        byte[] data1 = new byte[100 * 1024];
+        byte[] data2 = new byte[100 * 1024];
+        Arrays.fill(data1, (byte) 1);
+        Arrays.fill(data2, (byte) 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeMerge merge = Pipes.merge("merge", out, 1024, false, new ByteArrayInputStream(data1), new ByteArrayInputStream(data2));
+        merge.connect().await();
+        byte[] merged = out.toByteArray();
+        assertEquals(data1.length + data2.length, merged.length);
+        assertEquals(merged.length, merge.metrics().bytes());
+        // chunks are never interleaved
+        for (int i = 0; i < merged.length; i += 1024) {
+            for (int j = i; j < Math.min(i + 1024, merged.length); j++) {
+                assertEquals(merged[i], merged[j]);
+            }
+        }
+        for (PipeMerge.Source source : merge.sources()) {
+            assertTrue(source.isClosed());
+            assertEquals(data1.length, source.metrics().bytes());
+        }
+    }
+
+    @Test
+    public void test_lines() throws Exception {
+        StringBuilder text1 = new StringBuilder();
+        StringBuilder text2 = new StringBuilder();
+        Random random = new Random();
+        for (int i = 0; i < 2000; i++) {
+            text1.append("first line ").append(i).append(" ").append(random.nextInt()).append('\n');
+            text2.append("second line ").append(i).append('\n');
+        }
+        text2.append("no end");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeMerge merge = Pipes.merge("lines", out, 100, true, new ByteArrayInputStream(text1.toString().getBytes("UTF-8")), new ByteArrayInputStream(text2.toString().getBytes("UTF-8")));
+        merge.sources().get(0).prefixedBy("[1] ");
+        merge.sources().get(1).prefixedBy("[2] ");
+        merge.connect().await();
+        Set<String> expected = new HashSet<String>();
+        for (String line : text1.toString().split("\n")) {
+            expected.add("[1] " + line);
+        }
+        for (String line : text2.toString().split("\n")) {
+            expected.add("[2] " + line);
+        }
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(expected.size(), lines.length);
+        assertEquals(expected, new HashSet<String>(Arrays.asList(lines)));
+    }
+
+    @Test
+    public void test_failing_source() throws Exception {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("gone");
+            }
+        };
+        byte[] data = new byte[10000];
+        new Random().nextBytes(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeListener listener = mock(PipeListener.class);
+        PipeMerge merge = Pipes.merge(out, failing, new ByteArrayInputStream(data));
+        merge.sources().get(0).listenedBy(listener);
+        merge.connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertTrue(merge.isClosed());
+        assertTrue(merge.sources().get(0).isBroken());
+        verify(listener).onBroken(Matchers.<Pipe>any(), Matchers.<BrokenPipeException>any());
+    }
+
+    @Test
+    public void test_interrupt() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        PipeMerge merge = Pipes.merge(new ByteArrayOutputStream(), new PipedInputStream(writer), new PipedInputStream(new PipedOutputStream()));
+        PipeConnection connection = merge.connect();
+        writer.write(1);
+        Thread.sleep(100);
+        connection.interrupt();
+        assertTrue(merge.isInterrupted());
+        for (PipeMerge.Source source : merge.sources()) {
+            assertTrue(source.isInterrupted());
+        }
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeMergeTest.class.getName());
+    }
+}
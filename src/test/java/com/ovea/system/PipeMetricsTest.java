@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.PipeConnection;
+import com.ovea.system.pipe.PipeHistogram;
+import com.ovea.system.pipe.PipeMetrics;
+import com.ovea.system.pipe.Pipes;
+import com.ovea.system.tunnel.Tunnel;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeMetricsTest {
+
+    @Test
+    public void test_stream_metrics() throws Exception {
+        PipeConnection connection = Pipes.connect("metrics", new ByteArrayInputStream(new byte[100000]), new ByteArrayOutputStream(), 8192);
+        connection.await();
+        PipeMetrics metrics = connection.metrics();
+        assertSame(metrics, connection.pipe().metrics());
+        assertEquals(100000, metrics.bytes());
+        assertEquals(13, metrics.chunks());
+        assertEquals(13, metrics.readWaits().count());
+        assertEquals(13, metrics.writeWaits().count());
+        assertTrue(metrics.timeToFirstByte(TimeUnit.NANOSECONDS) >= 0);
+    }
+
+    @Test
+    public void test_not_connected() throws Exception {
+        PipeMetrics metrics = Pipes.create(new ByteArrayInputStream(new byte[10]), new ByteArrayOutputStream()).metrics();
+        assertEquals(0, metrics.bytes());
+        assertEquals(-1, metrics.timeToFirstByte(TimeUnit.NANOSECONDS));
+        assertEquals(0, metrics.readWaits().percentile(99, TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void test_tunnel_metrics() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+        Socket accepted = server.accept();
+        ServerSocket target = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket forward = new Socket(target.getInetAddress(), target.getLocalPort());
+        Socket echo = target.accept();
+
+        Tunnel tunnel = Tunnel.connect(accepted, forward);
+        client.getOutputStream().write(new byte[1000]);
+        readFully(echo.getInputStream(), 1000);
+        echo.getOutputStream().write(new byte[500]);
+        readFully(client.getInputStream(), 500);
+
+        // the copier records the write after the data was sent
+        PipeMetrics metrics = tunnel.metrics();
+        for (int i = 0; i < 100 && metrics.bytes() < 1500; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1500, metrics.bytes());
+        assertTrue(metrics.timeToFirstByte(TimeUnit.NANOSECONDS) >= 0);
+        PipeHistogram writes = metrics.writeWaits();
+        assertEquals(metrics.chunks(), writes.count());
+        assertTrue(writes.percentile(100, TimeUnit.NANOSECONDS) >= writes.percentile(50, TimeUnit.NANOSECONDS));
+
+        client.close();
+        echo.close();
+        tunnel.await();
+        server.close();
+        target.close();
+    }
+
+    private static void readFully(InputStream in, int len) throws IOException {
+        new DataInputStream(in).readFully(new byte[len]);
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeMetricsTest.class.getName());
+    }
+}
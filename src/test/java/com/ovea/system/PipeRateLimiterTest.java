@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.PipeConnection;
+import com.ovea.system.pipe.PipeRateLimiter;
+import com.ovea.system.pipe.Pipes;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeRateLimiterTest {
+
+    @Test
+    public void test_rate() throws Exception {
+        PipeRateLimiter limiter = new PipeRateLimiter(1024 * 1024, 8192);
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.create(new ByteArrayInputStream(new byte[300 * 1024]), out).limitedBy(limiter).connect().await();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(300 * 1024, out.size());
+        assertTrue("elapsed " + elapsed, elapsed >= 250 && elapsed < 2000);
+        assertTrue(limiter.throttled(TimeUnit.MILLISECONDS) > 0);
+    }
+
+    @Test
+    public void test_shared_budget() throws Exception {
+        PipeRateLimiter group = new PipeRateLimiter(1024 * 1024, 8192);
+        long start = System.nanoTime();
+        PipeConnection c1 = Pipes.create(new ByteArrayInputStream(new byte[200 * 1024]), new ByteArrayOutputStream()).limitedBy(group).connect();
+        PipeConnection c2 = Pipes.create(new ByteArrayInputStream(new byte[200 * 1024]), new ByteArrayOutputStream()).limitedBy(PipeRateLimiter.create(10 * 1024 * 1024), group).connect();
+        c1.await();
+        c2.await();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed " + elapsed, elapsed >= 350 && elapsed < 3000);
+    }
+
+    @Test
+    public void test_live_reconfiguration() throws Exception {
+        PipeRateLimiter limiter = new PipeRateLimiter(10 * 1024, 1024);
+        PipeConnection connection = Pipes.create(new ByteArrayInputStream(new byte[1024 * 1024]), new ByteArrayOutputStream()).limitedBy(limiter).connect();
+        Thread.sleep(200);
+        assertTrue(connection.metrics().bytes() < 1024 * 1024);
+        limiter.setRate(PipeRateLimiter.UNLIMITED);
+        connection.await(2, TimeUnit.SECONDS);
+        assertEquals(1024 * 1024, connection.metrics().bytes());
+    }
+
+    @Test
+    public void test_interrupt_while_throttled() throws Exception {
+        PipeConnection connection = Pipes.create(new ByteArrayInputStream(new byte[1024 * 1024]), new ByteArrayOutputStream()).limitedBy(new PipeRateLimiter(1024, 1024)).connect();
+        Thread.sleep(100);
+        connection.interrupt();
+        assertTrue(connection.pipe().isInterrupted());
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeRateLimiterTest.class.getName());
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.mockito.Matchers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeReactorTest {
+
+    PipeReactor reactor;
+    PipeListener listener = mock(PipeListener.class);
+
+    @Before
+    public void setup() throws Exception {
+        reactor = PipeReactor.create("test-reactor", 1);
+    }
+
+    @After
+    public void shutdown() throws Exception {
+        reactor.shutdown();
+    }
+
+    @Test
+    public void test_copy_with_backpressure() throws Exception {
+        java.nio.channels.Pipe in = java.nio.channels.Pipe.open();
+        java.nio.channels.Pipe out = java.nio.channels.Pipe.open();
+        final int size = 4 * 1024 * 1024;
+        Pipe pipe = Pipes.create("reactor", in.source(), out.sink(), 8192, reactor).listenedBy(listener);
+        PipeConnection connection = pipe.connect();
+
+        final java.nio.channels.Pipe.SinkChannel writer = in.sink();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(size);
+                    while (buffer.hasRemaining()) {
+                        writer.write(buffer);
+                    }
+                    writer.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+
+        // slow reader: the reactor has to wait for the sink to be writable
+        Thread.sleep(200);
+        ByteBuffer read = ByteBuffer.allocate(1024);
+        long total = 0;
+        int len;
+        while ((len = out.source().read(read)) != -1) {
+            total += len;
+            read.clear();
+        }
+        t.join();
+        connection.await(5, TimeUnit.SECONDS);
+
+        assertEquals(size, total);
+        assertTrue(pipe.isClosed());
+        assertEquals(0, reactor.activePipes());
+        verify(listener, times(1)).onConnect(pipe);
+        verify(listener, times(1)).onClose(pipe);
+        verify(listener, times(0)).onBroken(eq(pipe), Matchers.<BrokenPipeException>any());
+    }
+
+    @Test
+    public void test_interrupt() throws Exception {
+        java.nio.channels.Pipe in = java.nio.channels.Pipe.open();
+        java.nio.channels.Pipe out = java.nio.channels.Pipe.open();
+        Pipe pipe = Pipes.create("reactor", in.source(), out.sink(), 8192, reactor).listenedBy(listener);
+        PipeConnection connection = pipe.connect();
+        Thread.sleep(200);
+        assertEquals(1, reactor.activePipes());
+        connection.interrupt();
+        assertTrue(pipe.isInterrupted());
+        assertFalse(in.source().isOpen());
+        assertFalse(out.sink().isOpen());
+        verify(listener, times(1)).onInterrupt(pipe);
+        verify(listener, times(0)).onClose(pipe);
+        try {
+            connection.await(1, TimeUnit.SECONDS);
+            fail();
+        } catch (InterruptedException ignored) {
+        }
+        Thread.sleep(200);
+        assertEquals(0, reactor.activePipes());
+    }
+
+    @Test
+    public void test_failing_listener() throws Exception {
+        java.nio.channels.Pipe in = java.nio.channels.Pipe.open();
+        java.nio.channels.Pipe out = java.nio.channels.Pipe.open();
+        Pipe failing = Pipes.create("failing", in.source(), out.sink(), 8192, reactor).listenedBy(new PipeListenerAdapter() {
+            @Override
+            public void onClose(Pipe pipe) {
+                throw new IllegalStateException("expected");
+            }
+        });
+        failing.connect();
+        in.sink().close();
+        Thread.sleep(200);
+
+        // the selector thread survived the listener
+        java.nio.channels.Pipe in2 = java.nio.channels.Pipe.open();
+        java.nio.channels.Pipe out2 = java.nio.channels.Pipe.open();
+        PipeConnection connection = Pipes.create("next", in2.source(), out2.sink(), 8192, reactor).listenedBy(listener).connect();
+        in2.sink().write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        in2.sink().close();
+        connection.await(5, TimeUnit.SECONDS);
+        ByteBuffer read = ByteBuffer.allocate(3);
+        while (read.hasRemaining()) {
+            out2.source().read(read);
+        }
+        assertTrue(failing.isClosed());
+        assertEquals(0, reactor.activePipes());
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeReactorTest.class.getName());
+    }
+}
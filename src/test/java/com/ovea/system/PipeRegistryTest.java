@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import com.ovea.system.proc.FutureProcess;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeRegistryTest {
+
+    PipeRegistry registry = PipeRegistry.global();
+
+    @Test
+    public void test_join_leave() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        Pipe pipe = Pipes.create("registry-join", new PipedInputStream(writer), new ByteArrayOutputStream(), 1024);
+        List<PipeRegistry.Entry> entries = registry.find("registry-join");
+        assertEquals(1, entries.size());
+        assertEquals("PIPE", entries.get(0).getKind());
+        assertEquals("READY", entries.get(0).getState());
+
+        PipeConnection connection = pipe.connect();
+        writer.write(new byte[100]);
+        writer.close();
+        connection.await();
+        assertTrue(registry.find("registry-join").isEmpty());
+    }
+
+    @Test
+    public void test_states() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        PipeConnection connection = Pipes.connect("registry-states", new PipedInputStream(writer), new ByteArrayOutputStream(), 1024);
+        writer.write(new byte[100]);
+        for (int i = 0; i < 100 && connection.metrics().bytes() < 100; i++) {
+            Thread.sleep(10);
+        }
+        PipeRegistry.Entry entry = registry.find("registry-states").get(0);
+        assertEquals("OPENED", entry.getState());
+        assertEquals(100, entry.getBytes());
+        assertTrue(registry.getStates().get("PIPE.OPENED") >= 1);
+        assertTrue(registry.getJoined().get("PIPE") >= 1);
+        assertTrue(registry.size(PipeRegistry.Kind.PIPE) >= 1);
+        assertTrue(registry.oldest(Integer.MAX_VALUE).size() >= 1);
+        connection.interrupt();
+        assertTrue(registry.find("registry-states").isEmpty());
+    }
+
+    @Test
+    public void test_mbean() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        Pipe pipe = Pipes.create("registry-mbean", new PipedInputStream(writer), new ByteArrayOutputStream(), 1024);
+        pipe.connect();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.ovea.system:type=PipeRegistry");
+        assertTrue((Integer) server.getAttribute(name, "Size") >= 1);
+        assertTrue(server.getAttribute(name, "States") instanceof TabularData);
+        assertEquals(1, server.invoke(name, "interrupt", new Object[]{"registry-mbean"}, new String[]{String.class.getName()}));
+        pipe.connect().toCompletableFuture().handle(new BiFunction<Pipe, Throwable, Object>() {
+            @Override
+            public Object apply(Pipe pipe, Throwable throwable) {
+                return null;
+            }
+        }).get();
+        assertTrue(pipe.isInterrupted());
+        assertTrue(registry.find("registry-mbean").isEmpty());
+    }
+
+    @Test
+    public void test_process() throws Exception {
+        FutureProcess process = new FutureProcess(new ProcessBuilder("sleep", "10").start());
+        String name = "process-" + process.pid();
+        assertEquals("OPENED", registry.find(name).get(0).getState());
+        assertEquals(1, registry.interrupt(name));
+        process.get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 100 && !registry.find(name).isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(registry.find(name).isEmpty());
+    }
+
+    @Test
+    public void test_weak() throws Exception {
+        Pipes.create("registry-weak", new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+        assertEquals(1, registry.find("registry-weak").size());
+        for (int i = 0; i < 50 && !registry.find("registry-weak").isEmpty(); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(registry.find("registry-weak").isEmpty());
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeRegistryTest.class.getName());
+    }
+}
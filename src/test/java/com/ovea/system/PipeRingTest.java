@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeRingTest {
+
+    byte[] data = new byte[1024 * 1024];
+
+    {
+        new Random().nextBytes(data);
+    }
+
+    @Test
+    public void test_copy() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipe pipe = Pipes.create("ring", new ByteArrayInputStream(data), out, 1024, 4);
+        pipe.connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(data.length, pipe.metrics().bytes());
+    }
+
+    @Test
+    public void test_read_ahead_and_backpressure() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        InputStream in = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                reads.incrementAndGet();
+                return super.read(b, off, len);
+            }
+        };
+        final CountDownLatch blocked = new CountDownLatch(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.write(b, off, len);
+            }
+        };
+        PipeConnection connection = Pipes.create("ring", in, out, 1024, 4).connect();
+        // the first chunk is being written, the 3 others slots are read ahead
+        long end = System.currentTimeMillis() + 5000;
+        while (reads.get() < 4 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertEquals(4, reads.get());
+        blocked.countDown();
+        connection.await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    @Test
+    public void test_failing_sink() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        PipeConnection connection = Pipes.create("ring", new ByteArrayInputStream(data), failing, 1024, 4).connect();
+        try {
+            connection.await();
+            fail();
+        } catch (BrokenPipeException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void test_interrupt() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        Pipe pipe = Pipes.create("ring", new PipedInputStream(writer), new ByteArrayOutputStream(), 1024, 4);
+        PipeConnection connection = pipe.connect();
+        writer.write(1);
+        Thread.sleep(100);
+        connection.interrupt();
+        assertTrue(pipe.isInterrupted());
+    }
+
+    @Test
+    public void test_interrupt_writing() throws Exception {
+        PipedOutputStream writer = new PipedOutputStream();
+        SlowStage stage = new SlowStage();
+        PipeConnection connection = Pipes.create("ring", new PipedInputStream(writer), new ByteArrayOutputStream(), 1024, 4).through(stage).connect();
+        writer.write(1);
+        stage.applying.await();
+        connection.interrupt();
+        // the stage is closed once the writer is done with it
+        assertTrue(stage.closed);
+        assertFalse(stage.closedInUse);
+    }
+
+    @Test
+    public void test_stages() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeStages.Counter counter = PipeStages.counting();
+        Pipes.create("ring", new ByteArrayInputStream(data), out, 1024, 2).through(counter).connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(1024, counter.chunks());
+    }
+
+    @Test
+    public void test_files() throws Exception {
+        File source = File.createTempFile("pipe-source-", ".bin");
+        File target = File.createTempFile("pipe-target-", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(source);
+            out.write(data);
+            out.close();
+            PipeStages.Counter counter = PipeStages.counting();
+            Pipes.create("ring", new FileInputStream(source), new FileOutputStream(target), 1024, 2).through(counter).connect().await();
+            assertTrue(Arrays.equals(data, readAll(target)));
+            assertEquals(1024, counter.chunks());
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final class SlowStage implements PipeStage, Closeable {
+
+        final CountDownLatch applying = new CountDownLatch(1);
+        volatile boolean inUse;
+        volatile boolean closed;
+        volatile boolean closedInUse;
+
+        @Override
+        public ByteBuffer apply(ByteBuffer chunk) {
+            inUse = true;
+            applying.countDown();
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+            inUse = false;
+            return chunk;
+        }
+
+        @Override
+        public ByteBuffer finish() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            closedInUse = inUse;
+            closed = true;
+        }
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeRingTest.class.getName());
+    }
+}
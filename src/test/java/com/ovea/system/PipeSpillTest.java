@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeSpillTest {
+
+    byte[] data = new byte[4 * 1024 * 1024 + 17];
+    Path directory;
+
+    @Before
+    public void setup() throws Exception {
+        new Random().nextBytes(data);
+        directory = Files.createTempDirectory("pipe-spill-");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        assertEquals(0, segments());
+        Files.delete(directory);
+    }
+
+    @Test
+    public void test_spill() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        PipeConnection connection = Pipes.spilling("spill", new ByteArrayInputStream(data), out, 8192, 256 * 1024, directory).connect();
+        // the input is read while the output is blocked
+        for (int i = 0; i < 500 && connection.spilledBytes() < data.length - 256 * 1024; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(connection.spilledBytes() >= data.length - 256 * 1024);
+        assertTrue(segments() > 0);
+        Thread.sleep(20);
+        assertTrue(connection.backlogAge(TimeUnit.MILLISECONDS) >= 20);
+        out.gate.countDown();
+        connection.await(10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(0, connection.backlogAge(TimeUnit.MILLISECONDS));
+        assertEquals(data.length, connection.metrics().bytes());
+    }
+
+    @Test
+    public void test_memory() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeConnection connection = Pipes.spilling("memory", new ByteArrayInputStream(data), out, 8192, 64 * 1024 * 1024, directory).connect();
+        connection.await(10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(0, connection.spilledBytes());
+    }
+
+    @Test
+    public void test_disk_only() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeConnection connection = Pipes.spilling("disk", new ByteArrayInputStream(data), out, 8192, 0, directory).connect();
+        connection.await(10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(data.length, connection.spilledBytes());
+    }
+
+    @Test
+    public void test_interrupt() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        Pipe pipe = Pipes.spilling("interrupt", new ByteArrayInputStream(data), out, 8192, 0, directory);
+        PipeConnection connection = pipe.connect();
+        for (int i = 0; i < 500 && connection.spilledBytes() < data.length; i++) {
+            Thread.sleep(10);
+        }
+        connection.interrupt();
+        assertTrue(pipe.isInterrupted());
+        out.gate.countDown();
+    }
+
+    @Test
+    public void test_broken_output() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        Pipe pipe = Pipes.spilling("broken", new ByteArrayInputStream(data), failing, 8192, 0, directory);
+        try {
+            pipe.connect().await(10, TimeUnit.SECONDS);
+            fail();
+        } catch (BrokenPipeException e) {
+            assertTrue(pipe.isBroken());
+        }
+    }
+
+    private int segments() throws IOException {
+        int n = 0;
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+        try {
+            for (Path ignored : files) {
+                n++;
+            }
+        } finally {
+            files.close();
+        }
+        return n;
+    }
+
+    static final class GatedOutputStream extends ByteArrayOutputStream {
+
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.write(b, off, len);
+        }
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeSpillTest.class.getName());
+    }
+}
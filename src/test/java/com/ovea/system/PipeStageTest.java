@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeStageTest {
+
+    byte[] data = new byte[100 * 1024];
+
+    {
+        new Random().nextBytes(data);
+    }
+
+    @Test
+    public void test_pass_through() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeStages.Counter counter = PipeStages.counting();
+        Pipe pipe = Pipes.create(new ByteArrayInputStream(data), out).through(PipeStages.passThrough(), counter);
+        pipe.connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(data.length, counter.bytes());
+        assertEquals(data.length, pipe.metrics().bytes());
+        assertTrue(counter.chunks() > 0);
+    }
+
+    @Test
+    public void test_channels() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeStages.Counter counter = PipeStages.counting();
+        Pipes.create(Channels.newChannel(new ByteArrayInputStream(data)), Channels.newChannel(out)).through(new Xor(), counter, new Xor()).connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(data.length, counter.bytes());
+    }
+
+    @Test
+    public void test_transform() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Xor xor = new Xor();
+        Pipes.create(new ByteArrayInputStream(data), out).through(xor).connect().await();
+        byte[] result = out.toByteArray();
+        assertEquals(data.length, result.length);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals((byte) (data[i] ^ 0x5A), result[i]);
+        }
+        assertTrue(xor.closed);
+    }
+
+    @Test
+    public void test_sampling() throws Exception {
+        PipeStages.Counter all = PipeStages.counting();
+        PipeStages.Counter sampled = PipeStages.counting();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.create("sampled", new ByteArrayInputStream(data), out, 1024).through(all, PipeStages.sampling(10, sampled)).connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(100, all.chunks());
+        assertEquals(10, sampled.chunks());
+    }
+
+    @Test
+    public void test_finish() throws Exception {
+        // holds everything until the end of the source
+        PipeStage hold = new PipeStage() {
+            ByteArrayOutputStream held = new ByteArrayOutputStream();
+
+            @Override
+            public ByteBuffer apply(ByteBuffer chunk) {
+                while (chunk.hasRemaining()) {
+                    held.write(chunk.get());
+                }
+                return chunk;
+            }
+
+            @Override
+            public ByteBuffer finish() {
+                return ByteBuffer.wrap(held.toByteArray());
+            }
+        };
+        PipeStages.Counter counter = PipeStages.counting();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipes.create(new ByteArrayInputStream(data), out).through(hold, counter).connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(1, counter.chunks());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void test_unsupported() throws Exception {
+        Pipes.tee(new ByteArrayInputStream(data), new ByteArrayOutputStream()).through(PipeStages.passThrough());
+    }
+
+    static final class Xor implements PipeStage, Closeable {
+
+        final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+        volatile boolean closed;
+
+        @Override
+        public ByteBuffer apply(ByteBuffer chunk) {
+            out.clear();
+            while (chunk.hasRemaining() && out.hasRemaining()) {
+                out.put((byte) (chunk.get() ^ 0x5A));
+            }
+            assertFalse(chunk.hasRemaining());
+            out.flip();
+            return out;
+        }
+
+        @Override
+        public ByteBuffer finish() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeStageTest.class.getName());
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.*;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.mockito.Matchers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PipeTeeTest {
+
+    byte[] data = new byte[200 * 1024];
+
+    {
+        new Random().nextBytes(data);
+    }
+
+    @Test
+    public void test_tee() throws Exception {
+        ByteArrayOutputStream out1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+        ByteArrayOutputStream out3 = new ByteArrayOutputStream();
+        PipeTee tee = Pipes.tee(new ByteArrayInputStream(data), out1, out2, out3);
+        tee.connect().await();
+        assertTrue(Arrays.equals(data, out1.toByteArray()));
+        assertTrue(Arrays.equals(data, out2.toByteArray()));
+        assertTrue(Arrays.equals(data, out3.toByteArray()));
+        assertEquals(data.length, tee.metrics().bytes());
+        for (PipeTee.Sink sink : tee.sinks()) {
+            assertTrue(sink.isClosed());
+            assertEquals(data.length, sink.metrics().bytes());
+        }
+    }
+
+    @Test
+    public void test_channels() throws Exception {
+        ByteArrayOutputStream out1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+        Pipes.tee(Channels.newChannel(new ByteArrayInputStream(data)), Channels.newChannel(out1), Channels.newChannel(out2)).connect().await();
+        assertTrue(Arrays.equals(data, out1.toByteArray()));
+        assertTrue(Arrays.equals(data, out2.toByteArray()));
+    }
+
+    @Test
+    public void test_failing_sink() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        PipeListener listener = mock(PipeListener.class);
+        PipeTee tee = Pipes.tee(new ByteArrayInputStream(data), failing, out);
+        tee.sinks().get(0).listenedBy(listener);
+        tee.connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertTrue(tee.isClosed());
+        assertTrue(tee.sinks().get(0).isBroken());
+        verify(listener).onBroken(Matchers.<Pipe>any(), Matchers.<BrokenPipeException>any());
+    }
+
+    @Test
+    public void test_drop() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeTee tee = Pipes.tee("drop", new ByteArrayInputStream(data), 1024, 2, new SlowOutputStream(), out);
+        tee.sinks().get(0).overflow(PipeOverflow.DROP);
+        tee.connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertTrue(tee.sinks().get(0).dropped() > 0);
+        assertEquals(data.length, tee.sinks().get(0).metrics().bytes() + tee.sinks().get(0).dropped() * 1024);
+    }
+
+    @Test
+    public void test_disconnect() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipeListener listener = mock(PipeListener.class);
+        PipeTee tee = Pipes.tee("disconnect", new ByteArrayInputStream(data), 1024, 2, new SlowOutputStream(), out);
+        tee.sinks().get(0).overflow(PipeOverflow.DISCONNECT).listenedBy(listener);
+        tee.connect().await();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertTrue(tee.sinks().get(0).isBroken());
+        verify(listener).onBroken(Matchers.<Pipe>any(), Matchers.<BrokenPipeException>any());
+    }
+
+    @Test
+    public void test_interrupt() throws Exception {
+        java.io.PipedOutputStream writer = new java.io.PipedOutputStream();
+        PipeTee tee = Pipes.tee(new java.io.PipedInputStream(writer), new ByteArrayOutputStream(), new ByteArrayOutputStream());
+        PipeConnection connection = tee.connect();
+        writer.write(1);
+        Thread.sleep(100);
+        connection.interrupt();
+        assertTrue(tee.isInterrupted());
+        for (PipeTee.Sink sink : tee.sinks()) {
+            assertTrue(sink.isInterrupted());
+        }
+    }
+
+    static final class SlowOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(PipeTeeTest.class.getName());
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.Pipe;
+import com.ovea.system.pipe.Pipes;
+import com.sun.management.OperatingSystemMXBean;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares the throughput of a <code>cat file | cat | wc -c</code> chain wired with splice(2) and with a stream pipe.
+ * <p/>
+ * Usage: <code>ProcessPipeBenchMain [size in MB] [runs]</code> (defaults: 512, 3). Needs
+ * <code>--add-opens java.base/java.io=ALL-UNNAMED</code> on Java 9+ to recover the process descriptors.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class ProcessPipeBenchMain {
+
+    private static final OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        File file = File.createTempFile("bench-", ".bin");
+        file.deleteOnExit();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        byte[] chunk = new byte[1024 * 1024];
+        new Random().nextBytes(chunk);
+        for (int i = 0; i < mb; i++) {
+            out.write(chunk);
+        }
+        out.close();
+        for (int i = 0; i < runs; i++) {
+            run("stream", file, false);
+            run("splice", file, true);
+        }
+    }
+
+    private static void run(String mode, File file, boolean splice) throws Exception {
+        long start = System.nanoTime();
+        long cpu = os.getProcessCpuTime();
+        Process cat1 = new ProcessBuilder("cat", file.getAbsolutePath()).start();
+        Process cat2 = new ProcessBuilder("cat").start();
+        Process wc = new ProcessBuilder("wc", "-c").start();
+        Pipe hop1 = splice ? Pipes.splice(cat1.getInputStream(), cat2.getOutputStream()) : Pipes.create(cat1.getInputStream(), cat2.getOutputStream());
+        Pipe hop2 = splice ? Pipes.splice(cat2.getInputStream(), wc.getOutputStream()) : Pipes.create(cat2.getInputStream(), wc.getOutputStream());
+        hop1.connect();
+        hop2.connect();
+        String count = new BufferedReader(new InputStreamReader(wc.getInputStream())).readLine().trim();
+        wc.waitFor();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        cpu = os.getProcessCpuTime() - cpu;
+        System.out.println(String.format(" - %s (%s): %s bytes in %.2fs = %.1f MB/s, JVM CPU %d ms", mode, hop1.getClass().getSimpleName(), count, seconds, Long.parseLong(count) / seconds / 1024 / 1024, cpu / 1000000));
+    }
+}
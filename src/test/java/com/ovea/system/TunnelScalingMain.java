@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.PipeExecutor;
+import com.ovea.system.pipe.Pipes;
+import com.ovea.system.tunnel.Tunnel;
+import com.ovea.system.util.IoUtils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens many local socket tunnels and reports thread count and RSS.
+ * <p/>
+ * Usage: <code>TunnelScalingMain [pooled|thread|virtual] [tunnels]</code> (defaults: pooled, 20000). Each tunnel uses 4
+ * sockets: raise the open files limit accordingly (<code>ulimit -n 100000</code>).
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class TunnelScalingMain {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "pooled";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        System.setProperty("ovea.pipe.executor", mode);
+        PipeExecutor executor = Pipes.defaultExecutor();
+        System.out.println(" - Executor: " + executor);
+
+        ServerSocket server = new ServerSocket(0, 4096, InetAddress.getByName("127.0.0.1"));
+        List<Socket> clients = new ArrayList<Socket>(count * 2);
+        List<Tunnel> tunnels = new ArrayList<Tunnel>(count);
+        report("before", executor);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Socket leftClient = new Socket(server.getInetAddress(), server.getLocalPort());
+            Socket left = server.accept();
+            Socket rightClient = new Socket(server.getInetAddress(), server.getLocalPort());
+            Socket right = server.accept();
+            tunnels.add(Tunnel.connect(left, right));
+            clients.add(leftClient);
+            clients.add(rightClient);
+        }
+        System.out.println(" - " + count + " tunnels opened in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+        // check all tunnels forward data
+        byte[] ping = "ping".getBytes();
+        byte[] pong = new byte[ping.length];
+        for (int i = 0; i < count; i++) {
+            clients.get(2 * i).getOutputStream().write(ping);
+            int read = 0;
+            while (read < pong.length) {
+                read += clients.get(2 * i + 1).getInputStream().read(pong, read, pong.length - read);
+            }
+        }
+        report("opened", executor);
+
+        start = System.nanoTime();
+        for (Tunnel tunnel : tunnels) {
+            tunnel.interrupt();
+        }
+        System.out.println(" - " + count + " tunnels closed in " + (System.nanoTime() - start) / 1000000 + "ms");
+        IoUtils.close(clients.toArray(new Socket[clients.size()]));
+        IoUtils.close(server);
+        report("closed", executor);
+        System.exit(0);
+    }
+
+    private static void report(String step, PipeExecutor executor) throws IOException {
+        System.out.println(" - [" + step + "] platform threads=" + ManagementFactory.getThreadMXBean().getThreadCount()
+                + ", peak=" + ManagementFactory.getThreadMXBean().getPeakThreadCount()
+                + ", rss=" + rss()
+                + ", " + executor);
+    }
+
+    private static String rss() throws IOException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/status"));
+        } catch (IOException e) {
+            return "n/a";
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return line.substring(6).trim();
+                }
+            }
+            return "n/a";
+        } finally {
+            IoUtils.close(reader);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.PipeReactor;
+import com.ovea.system.tunnel.Tunnel;
+import com.ovea.system.tunnel.TunnelListenerAdapter;
+import com.ovea.system.tunnel.TunnelServer;
+import com.ovea.system.util.IoUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class TunnelServerTest {
+
+    PipeReactor reactor;
+    ServerSocket echo;
+    InetSocketAddress target;
+
+    @Before
+    public void setup() throws Exception {
+        reactor = PipeReactor.create("test-reactor", 2);
+        echo = new ServerSocket(0, 256, InetAddress.getByName("127.0.0.1"));
+        target = new InetSocketAddress("127.0.0.1", echo.getLocalPort());
+        Thread t = new Thread("echo") {
+            @Override
+            public void run() {
+                while (!echo.isClosed()) {
+                    try {
+                        final Socket socket = echo.accept();
+                        new Thread("echo-" + socket.getPort()) {
+                            @Override
+                            public void run() {
+                                try {
+                                    InputStream in = socket.getInputStream();
+                                    OutputStream out = socket.getOutputStream();
+                                    byte[] buffer = new byte[8192];
+                                    int len;
+                                    while ((len = in.read(buffer)) != -1) {
+                                        out.write(buffer, 0, len);
+                                    }
+                                } catch (Exception ignored) {
+                                } finally {
+                                    IoUtils.close(socket);
+                                }
+                            }
+                        }.start();
+                    } catch (Exception ignored) {
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @After
+    public void shutdown() throws Exception {
+        IoUtils.close(echo);
+        reactor.shutdown();
+    }
+
+    @Test
+    public void test_forward() throws Exception {
+        final AtomicInteger connected = new AtomicInteger();
+        final CountDownLatch closed = new CountDownLatch(20);
+        TunnelServer server = TunnelServer.open(new InetSocketAddress("127.0.0.1", 0), target, new TunnelListenerAdapter() {
+            @Override
+            public void onConnect(Tunnel tunnel) {
+                connected.incrementAndGet();
+            }
+
+            @Override
+            public void onClose(Tunnel tunnel) {
+                closed.countDown();
+            }
+        }, 4096, reactor);
+        try {
+            List<Socket> clients = new ArrayList<Socket>();
+            for (int i = 0; i < 20; i++) {
+                clients.add(new Socket(server.localAddress().getAddress(), server.localAddress().getPort()));
+            }
+            byte[] data = new byte[64 * 1024];
+            new Random().nextBytes(data);
+            for (Socket client : clients) {
+                assertTrue(Arrays.equals(data, roundTrip(client, data)));
+            }
+            assertEquals(20, server.acceptedConnections());
+            assertEquals(20, server.activeTunnels());
+            assertEquals(20, connected.get());
+            assertEquals(0, server.failedConnections());
+
+            IoUtils.close(clients.toArray(new Socket[clients.size()]));
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            assertEquals(0, server.activeTunnels());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void test_unreachable_target() throws Exception {
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        InetSocketAddress unreachable = new InetSocketAddress("127.0.0.1", closed.getLocalPort());
+        closed.close();
+        TunnelServer server = TunnelServer.open(new InetSocketAddress("127.0.0.1", 0), unreachable, new TunnelListenerAdapter(), 4096, reactor);
+        try {
+            Socket client = new Socket(server.localAddress().getAddress(), server.localAddress().getPort());
+            client.setSoTimeout(5000);
+            assertEquals(-1, client.getInputStream().read());
+            client.close();
+            assertEquals(1, server.acceptedConnections());
+            assertEquals(1, server.failedConnections());
+            assertEquals(0, server.activeTunnels());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void test_close() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        TunnelServer server = TunnelServer.open(new InetSocketAddress("127.0.0.1", 0), target, new TunnelListenerAdapter() {
+            @Override
+            public void onInterrupt(Tunnel tunnel) {
+                interrupted.countDown();
+            }
+        }, 4096, reactor);
+        Socket client = new Socket(server.localAddress().getAddress(), server.localAddress().getPort());
+        assertEquals(1, roundTrip(client, new byte[]{42}).length);
+        server.close();
+        assertFalse(server.isOpened());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        client.setSoTimeout(5000);
+        assertEquals(-1, client.getInputStream().read());
+        client.close();
+    }
+
+    private static byte[] roundTrip(Socket client, byte[] data) throws Exception {
+        client.getOutputStream().write(data);
+        byte[] read = new byte[data.length];
+        int total = 0;
+        while (total < read.length) {
+            int len = client.getInputStream().read(read, total, read.length - total);
+            if (len == -1) {
+                break;
+            }
+            total += len;
+        }
+        return read;
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(TunnelServerTest.class.getName());
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2011 Ovea <dev@ovea.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ovea.system;
+
+import com.ovea.system.pipe.Pipe;
+import com.ovea.system.pipe.Pipes;
+import com.ovea.system.tunnel.Tunnel;
+import com.ovea.system.tunnel.TunnelListener;
+import com.ovea.system.util.IoUtils;
+import com.ovea.system.util.LinuxIO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the splice path with <code>--add-opens java.base/java.io=ALL-UNNAMED --add-opens java.base/java.net=ALL-UNNAMED</code>
+ * on Linux, and the stream fallback otherwise.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class TunnelSpliceTest {
+
+    ServerSocket server;
+    ServerSocket echo;
+    Socket client;
+    Socket left;
+    Socket right;
+
+    @Before
+    public void setup() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        echo = new ServerSocket(0, 1, loopback);
+        server = new ServerSocket(0, 1, loopback);
+        Thread t = new Thread("echo") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = echo.accept();
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int len;
+                    while ((len = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, len);
+                    }
+                    socket.close();
+                } catch (Exception ignored) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        client = new Socket(loopback, server.getLocalPort());
+        left = server.accept();
+        right = new Socket(loopback, echo.getLocalPort());
+    }
+
+    @After
+    public void shutdown() throws Exception {
+        IoUtils.close(client, left, right);
+        IoUtils.close(server, echo);
+    }
+
+    @Test
+    public void test_splice_or_fallback() throws Exception {
+        Pipe pipe = Pipes.splice("probe", left, right);
+        assertEquals(LinuxIO.isSupported() && LinuxIO.fd(left) >= 0, pipe.getClass().getSimpleName().equals("PipeSplice"));
+    }
+
+    @Test
+    public void test_forward_and_close() throws Exception {
+        TunnelListener listener = mock(TunnelListener.class);
+        Tunnel tunnel = Tunnel.splice(left, right, listener);
+        byte[] data = new byte[4 * 1024 * 1024];
+        new Random().nextBytes(data);
+        final OutputStream out = client.getOutputStream();
+        final byte[] sent = data;
+        Thread writer = new Thread("writer") {
+            @Override
+            public void run() {
+                try {
+                    out.write(sent);
+                } catch (Exception ignored) {
+                }
+            }
+        };
+        writer.start();
+        byte[] read = new byte[data.length];
+        new DataInputStream(client.getInputStream()).readFully(read);
+        writer.join();
+        assertTrue(Arrays.equals(data, read));
+        assertEquals(2L * data.length, tunnel.metrics().bytes());
+
+        client.close();
+        tunnel.await(5, TimeUnit.SECONDS);
+        assertTrue(tunnel.isClosed());
+        verify(listener).onConnect(tunnel);
+        verify(listener).onClose(tunnel);
+    }
+
+    @Test
+    public void test_interrupt_idle() throws Exception {
+        TunnelListener listener = mock(TunnelListener.class);
+        Tunnel tunnel = Tunnel.splice(left, right, listener);
+        client.getOutputStream().write(1);
+        assertEquals(1, client.getInputStream().read());
+        long start = System.nanoTime();
+        tunnel.interrupt();
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 2);
+        assertTrue(tunnel.isInterrupted());
+        verify(listener).onInterrupt(tunnel);
+        client.setSoTimeout(5000);
+        assertEquals(-1, client.getInputStream().read());
+    }
+
+    public static void main(String[] args) {
+        JUnitCore.main(TunnelSpliceTest.class.getName());
+    }
+}